@@ -0,0 +1,55 @@
+package norswap.skelex;
+
+import norswap.skelex.bench.Workloads;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.annotations.State;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the construction of automata for deeply nested regexes, with and without the
+ * precomputation of the chains between anchor states.
+ * <p>
+ * This benchmark lives in the {@code norswap.skelex} package in order to access {@link
+ * AutomatonBuilder}. The explicit import of JMH's {@link State} is required to shadow {@link
+ * norswap.skelex.State}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BuildBenchmark
+{
+    // ---------------------------------------------------------------------------------------------
+
+    @Param({"2", "16"})
+    public int alphabet;
+
+    @Param({"10", "100", "1000"})
+    public int depth;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Regex regex;
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Setup public void setup() {
+        regex = Workloads.nested(depth, alphabet);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public Object build_automaton() {
+        return new AutomatonBuilder(null).build_automaton(regex);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public Object compile() {
+        return AutomatonBuilder.compile(regex);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
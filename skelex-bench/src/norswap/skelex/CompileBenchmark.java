@@ -0,0 +1,68 @@
+package norswap.skelex;
+
+import norswap.skelex.bench.Workloads;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.annotations.State;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the compilation of many generated regexes that share sub-patterns (cf. {@link
+ * Workloads#shared}), with and without a {@link CompiledRegexCache}.
+ * <p>
+ * The regexes are generated before each invocation, as a regex keeps its automaton once compiled.
+ * This benchmark lives in the {@code norswap.skelex} package in order to compile regexes without
+ * a cache. The explicit import of JMH's {@link State} is required to shadow {@link
+ * norswap.skelex.State}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompileBenchmark
+{
+    // ---------------------------------------------------------------------------------------------
+
+    @Param({"8", "32"})
+    public int alphabet;
+
+    @Param({"12", "30"})
+    public int depth;
+
+    @Param({"1000"})
+    public int count;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private List<Regex> regexes;
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Setup(Level.Invocation) public void setup() {
+        regexes = Workloads.shared(count, depth, alphabet);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public Object compile()
+    {
+        Automaton automaton = null;
+        for (Regex regex: regexes)
+            automaton = regex.automaton();
+        return automaton;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public Object compile_cached()
+    {
+        CompiledRegexCache cache = new CompiledRegexCache(count);
+        for (Regex regex: regexes)
+            cache.compile(regex);
+        return cache;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
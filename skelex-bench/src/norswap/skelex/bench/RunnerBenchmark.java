@@ -0,0 +1,101 @@
+package norswap.skelex.bench;
+
+import norswap.skelex.Regex;
+import norswap.skelex.Runner;
+import org.openjdk.jmh.annotations.*;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of {@link Runner#advance(Object)} when feeding a long input to a runner,
+ * for a single regex and for many regexes registered at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RunnerBenchmark
+{
+    // ---------------------------------------------------------------------------------------------
+
+    @Param({"2", "16", "256"})
+    public int alphabet;
+
+    @Param({Workloads.UNAMBIGUOUS, Workloads.AMBIGUOUS})
+    public String ambiguity;
+
+    @Param({"100"})
+    public int regex_count;
+
+    @Param({"10000"})
+    public int length;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private List<Object> input;
+    private Regex regex;
+    private List<Regex> regexes;
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Setup public void setup()
+    {
+        input   = Workloads.input(alphabet, length);
+        regex   = Workloads.repetition(alphabet, ambiguity);
+        regexes = Workloads.regexes(regex_count, alphabet, ambiguity);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public Runner advance()
+    {
+        Runner runner = new Runner();
+        runner.add(regex);
+        runner.advance(input);
+        return runner;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public Runner advance_match_only()
+    {
+        Runner runner = Runner.match_only();
+        runner.add(regex);
+        runner.advance(input);
+        return runner;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public Runner advance_streaming()
+    {
+        Runner runner = new Runner().streaming();
+        runner.add(regex);
+        runner.advance(input);
+        return runner;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public Runner advance_pike()
+    {
+        Runner runner = Runner.pike();
+        runner.add(regex);
+        runner.advance(input);
+        return runner;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public Runner many_regexes()
+    {
+        Runner runner = new Runner();
+        regexes.forEach(runner::add);
+        runner.advance(input);
+        return runner;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,54 @@
+package norswap.skelex.bench;
+
+import norswap.skelex.Match;
+import norswap.skelex.Regex;
+import norswap.skelex.Skelex;
+import org.openjdk.jmh.annotations.*;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how {@link Skelex#matches_anywhere} scales with the length of the input.
+ * <p>
+ * The regex only matches short spans of input, which can start at many positions of the input.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SkelexBenchmark
+{
+    // ---------------------------------------------------------------------------------------------
+
+    @Param({"2", "16", "256"})
+    public int alphabet;
+
+    @Param({Workloads.UNAMBIGUOUS, Workloads.AMBIGUOUS})
+    public String ambiguity;
+
+    @Param({"1000", "10000", "100000"})
+    public int length;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private List<Object> input;
+    private Regex regex;
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Setup public void setup()
+    {
+        input = Workloads.input(alphabet, length);
+        regex = Workloads.bounded(alphabet, ambiguity);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public Match matches_anywhere() {
+        return Skelex.matches_anywhere(regex, input).longest();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
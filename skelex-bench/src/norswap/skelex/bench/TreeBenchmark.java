@@ -0,0 +1,52 @@
+package norswap.skelex.bench;
+
+import norswap.skelex.MatchStream;
+import norswap.skelex.MatchTree;
+import norswap.skelex.Runner;
+import org.openjdk.jmh.annotations.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the extraction of a match tree with {@link MatchStream#longest_tree()}, for a match
+ * covering a long repetition. The input is fed to the runner beforehand.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TreeBenchmark
+{
+    // ---------------------------------------------------------------------------------------------
+
+    @Param({"2", "16", "256"})
+    public int alphabet;
+
+    @Param({Workloads.UNAMBIGUOUS, Workloads.AMBIGUOUS})
+    public String ambiguity;
+
+    @Param({"100", "1000", "10000"})
+    public int length;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Runner runner;
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Setup public void setup()
+    {
+        runner = new Runner();
+        runner.add(Workloads.repetition(alphabet, ambiguity));
+        runner.advance(Workloads.input(alphabet, length));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public MatchTree longest_tree() {
+        return runner.matches().longest_tree();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,200 @@
+package norswap.skelex.bench;
+
+import norswap.skelex.Regex;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static norswap.skelex.DSL.*;
+
+/**
+ * Generates the inputs and regexes used by the benchmarks.
+ * <p>
+ * Inputs are made of strings drawn from an alphabet of a given size, using a fixed seed so that
+ * all runs see the same input.
+ */
+public final class Workloads
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Regexes that match any input in a single way.
+     */
+    public static final String UNAMBIGUOUS = "unambiguous";
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Regexes that can match an input in exponentially many ways.
+     */
+    public static final String AMBIGUOUS = "ambiguous";
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final long SEED = 0x5EED;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the alphabet of the given size.
+     */
+    public static String[] alphabet (int size)
+    {
+        String[] alphabet = new String[size];
+        for (int i = 0; i < size; ++i)
+            alphabet[i] = "s" + i;
+        return alphabet;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns an input of the given length over the alphabet of the given size.
+     */
+    public static List<Object> input (int alphabet, int length)
+    {
+        String[] symbols = alphabet(alphabet);
+        Random random = new Random(SEED);
+        ArrayList<Object> input = new ArrayList<>(length);
+
+        for (int i = 0; i < length; ++i)
+            input.add(symbols[random.nextInt(alphabet)]);
+
+        return input;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a regex matching any single item of the alphabet of the given size.
+     */
+    public static Regex any (int alphabet) {
+        return choice((Object[]) alphabet(alphabet));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a regex that matches any input over the alphabet of the given size, whose ambiguity
+     * is either {@link #UNAMBIGUOUS} or {@link #AMBIGUOUS}.
+     */
+    public static Regex repetition (int alphabet, String ambiguity)
+    {
+        Regex any = any(alphabet);
+
+        switch (ambiguity) {
+            case UNAMBIGUOUS:
+                return zeromore(any);
+            case AMBIGUOUS:
+                return zeromore(choice(any, seq(any, any), onemore(any)));
+            default:
+                throw new IllegalArgumentException("unknown ambiguity: " + ambiguity);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a regex that only matches short spans of input starting with the first item of the
+     * alphabet of the given size, whose ambiguity is either {@link #UNAMBIGUOUS} or {@link
+     * #AMBIGUOUS}.
+     */
+    public static Regex bounded (int alphabet, String ambiguity)
+    {
+        String first = alphabet(alphabet)[0];
+        Regex any = any(alphabet);
+
+        switch (ambiguity) {
+            case UNAMBIGUOUS:
+                return seq(first, any, maybe(any));
+            case AMBIGUOUS:
+                return seq(first, choice(seq(any, maybe(any)), seq(maybe(any), any)), maybe(any));
+            default:
+                throw new IllegalArgumentException("unknown ambiguity: " + ambiguity);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns {@code count} distinct regexes over the alphabet of the given size, with the
+     * given ambiguity. Each regex starts with a different item sequence.
+     */
+    public static List<Regex> regexes (int count, int alphabet, String ambiguity)
+    {
+        String[] symbols = alphabet(alphabet);
+        ArrayList<Regex> regexes = new ArrayList<>(count);
+
+        for (int i = 0; i < count; ++i)
+            regexes.add(seq(
+                symbols[i % alphabet],
+                symbols[i / alphabet % alphabet],
+                repetition(alphabet, ambiguity)));
+
+        return regexes;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a regex nested {@code depth} levels deep, alternating between sequences, choices
+     * and repetitions.
+     */
+    public static Regex nested (int depth, int alphabet) {
+        return nested(depth, alphabet, 0);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #nested(int, int)}, but the symbol used at each level is offset by {@code
+     * offset} in the alphabet, yielding distinct regexes for distinct offsets.
+     */
+    private static Regex nested (int depth, int alphabet, int offset)
+    {
+        String[] symbols = alphabet(alphabet);
+        Regex regex = any(alphabet);
+
+        for (int i = 0; i < depth; ++i)
+        {
+            String symbol = symbols[(i + offset) % alphabet];
+
+            switch (i % 3) {
+                case 0:  regex = seq(symbol, regex);        break;
+                case 1:  regex = choice(regex, symbol);     break;
+                default: regex = zeromore(regex);           break;
+            }
+        }
+
+        return regex;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns {@code count} regexes over the alphabet of the given size, which share their
+     * sub-patterns: each regex combines three regexes nested {@code depth} levels deep (cf. {@link
+     * #nested}), drawn from a pool of {@code alphabet} such regexes.
+     */
+    public static List<Regex> shared (int count, int depth, int alphabet)
+    {
+        String[] symbols = alphabet(alphabet);
+        Random random = new Random(SEED);
+        Regex[] pool = new Regex[alphabet];
+        ArrayList<Regex> regexes = new ArrayList<>(count);
+
+        for (int i = 0; i < alphabet; ++i)
+            pool[i] = nested(depth, alphabet, i);
+
+        for (int i = 0; i < count; ++i)
+            regexes.add(seq(
+                symbols[i % alphabet],
+                choice(pool[random.nextInt(alphabet)], pool[random.nextInt(alphabet)]),
+                maybe(pool[random.nextInt(alphabet)]),
+                symbols[i / alphabet % alphabet]));
+
+        return regexes;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,110 @@
+package norswap.skelex.bench;
+
+import norswap.skelex.Match;
+import norswap.skelex.Regex;
+import norswap.skelex.Runner;
+import norswap.skelex.Skelex;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+public class WorkloadsTest
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private static final String[] AMBIGUITIES = { Workloads.UNAMBIGUOUS, Workloads.AMBIGUOUS };
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void test_input()
+    {
+        List<Object> input = Workloads.input(16, 1000);
+        Assert.assertEquals(input.size(), 1000);
+        Assert.assertEquals(Workloads.input(16, 1000), input);
+        Assert.assertTrue(Arrays.asList(Workloads.alphabet(16)).containsAll(input));
+        Assert.assertEquals(new HashSet<>(input).size(), 16);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void test_repetition()
+    {
+        for (String ambiguity: AMBIGUITIES) {
+            List<Object> input = Workloads.input(4, 200);
+            Match match = Skelex.match_exactly(Workloads.repetition(4, ambiguity), input).longest();
+            Assert.assertNotNull(match);
+            Assert.assertEquals(match.end, 200);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void test_bounded()
+    {
+        for (String ambiguity: AMBIGUITIES)
+        {
+            List<Object> input = Workloads.input(4, 200);
+            Regex regex = Workloads.bounded(4, ambiguity);
+
+            for (Match match: Skelex.matches_anywhere(regex, input).get()) {
+                Assert.assertEquals(input.get(match.start), "s0");
+                Assert.assertTrue(match.end - match.start >= 2);
+                Assert.assertTrue(match.end - match.start <= 4);
+            }
+
+            Assert.assertTrue(Skelex.matches_anywhere(regex, input).matching());
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void test_regexes()
+    {
+        for (String ambiguity: AMBIGUITIES)
+        {
+            List<Regex> regexes = Workloads.regexes(16, 4, ambiguity);
+            String[] symbols = Workloads.alphabet(4);
+
+            // each regex is the only one to match its two first items
+            for (int i = 0; i < regexes.size(); ++i)
+            {
+                Runner runner = new Runner();
+                regexes.forEach(runner::add);
+                runner.advance(symbols[i % 4], symbols[i / 4 % 4]);
+                Assert.assertEquals(runner.matches().regexes(),
+                    Collections.singleton(regexes.get(i)));
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void test_nested()
+    {
+        // zeromore(choice(seq(s0, any), s1))
+        Regex regex = Workloads.nested(3, 4);
+        List<Object> input = Arrays.asList("s1", "s0", "s3", "s1");
+        Assert.assertEquals(Skelex.match_exactly(regex, input).longest().end, 4);
+
+        List<Regex> shared = Workloads.shared(8, 6, 4);
+        Assert.assertEquals(shared.size(), 8);
+        Runner runner = new Runner();
+        shared.forEach(runner::add);
+        runner.advance(Workloads.input(4, 100));
+        Assert.assertEquals(runner.pos(), 100);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void test_unknown_ambiguity()
+    {
+        Workloads.repetition(4, "unknown");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
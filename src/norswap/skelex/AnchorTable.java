@@ -0,0 +1,334 @@
+package norswap.skelex;
+
+import norswap.skelex.dsl.IntItemPredicate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.function.Predicate;
+
+/**
+ * A compact, immutable representation of the precomputed transition chains between the anchor
+ * states of an {@link Automaton}, which is what the {@link Runner} iterates when advancing
+ * checkpoints.
+ * <p>
+ * Anchor states are identified by their {@link State#id}. The steps of all anchor states (cf.
+ * {@link State#steps}) are numbered consecutively, so that the steps of anchor state {@code i}
+ * are those in {@code [step_offsets[i], step_offsets[i+1])}. Likewise, the input-consuming chains
+ * of all steps are numbered consecutively, so that the chains of step {@code s} are those in
+ * {@code [chain_offsets[s], chain_offsets[s+1])}. The closure of each anchor state (cf. {@link
+ * State#closure}) is laid out the same way.
+ * <p>
+ * In automata with counted repetitions, the chains also carry a {@link Counter}, which the runner
+ * applies to the count of the checkpoints it takes them from.
+ * <p>
+ * The {@link Chain} objects are only retained in order to record the traces of the checkpoints,
+ * which are needed to build match trees.
+ */
+final class AnchorTable
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether each anchor state is accepting (it has no outgoing transitions, cf. {@link
+     * Automaton}).
+     */
+    final boolean[] accepting;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * For the automaton of a {@link norswap.skelex.regex.RegexSet}, the regex of the set matched by
+     * each accepting anchor state (cf. {@link State#regex}). Null for other automata.
+     */
+    final Regex[] regexes;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether a match can end after consuming input from each anchor state (cf. {@link
+     * State#productive}), checkpointed with each count: the entry for state {@code i} and count
+     * {@code c} is at {@code i * counts + c} (cf. {@link #productive(int, int)}).
+     */
+    private final boolean[] productive;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The step index of each anchor state (cf. {@link StepIndex}), or null.
+     */
+    final StepIndex[] indexes;
+
+    // ---------------------------------------------------------------------------------------------
+
+    final int[] step_offsets;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The predicate of the NORMAL transition of each step.
+     */
+    final Predicate<Object>[] predicates;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * For each step, a predicate equivalent to its entry in {@link #predicates}, but which assumes
+     * that the item satisfies the type constraint of the NORMAL transition, if any (cf. {@link
+     * Transition#refinement}).
+     */
+    final Predicate<Object>[] refinements;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * For each step, the predicate of its NORMAL transition if it is an {@link IntItemPredicate},
+     * which can be tested on primitive input items (cf. {@link IntRunner}), or null.
+     */
+    final IntItemPredicate[] int_predicates;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * For each step, an earlier step of the same anchor state whose NORMAL transition accepts the
+     * same items (cf. {@link PredicateKey}), or -1. The runner reuses the result of the earlier
+     * step instead of testing the predicate again. Null if no step has such an earlier step.
+     */
+    final int[] repeats;
+
+    // ---------------------------------------------------------------------------------------------
+
+    final int[] chain_offsets;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The id of the anchor state reached by each input-consuming chain.
+     */
+    final int[] chain_targets;
+
+    // ---------------------------------------------------------------------------------------------
+
+    final Chain[] chains;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The counter of each input-consuming chain (cf. {@link Chain#counter}), or null if the
+     * automaton has no counted repetitions.
+     */
+    final Counter[] chain_counters;
+
+    // ---------------------------------------------------------------------------------------------
+
+    final int[] closure_offsets;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The id of the anchor state reached by each closure chain.
+     */
+    final int[] closure_targets;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * For each closure chain, the index (relative to the start of its closure) of the chain whose
+     * target is the source of the chain, or -1 if the source is the state owning the closure.
+     */
+    final int[] closure_parents;
+
+    // ---------------------------------------------------------------------------------------------
+
+    final Chain[] closure_chains;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The counter of each closure chain (cf. {@link Chain#counter}), or null if the automaton has
+     * no counted repetitions.
+     */
+    final Counter[] closure_counters;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The number of counts that the checkpoints of the automaton can have: the counts are in
+     * {@code [0, counts)}. This is 1 if the automaton has no counted repetitions.
+     */
+    final int counts;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Builds the table for the given anchor states, which must be ordered by id, and whose steps
+     * and closures must have been computed.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    AnchorTable (ArrayList<State> anchors)
+    {
+        int n = anchors.size();
+        int step_count = 0, chain_count = 0, closure_count = 0, bound = 0;
+        boolean tagged = false, counted = false;
+
+        for (State state: anchors)
+        {
+            tagged |= state.regex != null;
+            step_count += state.steps.length;
+            closure_count += state.closure.length;
+
+            for (Step step: state.steps) {
+                chain_count += step.chains.length;
+                for (Chain chain: step.chains)
+                    if (chain.counter != null) {
+                        counted = true;
+                        bound = Math.max(bound, chain.counter.bound());
+                    }
+            }
+
+            for (Chain chain: state.closure)
+                if (chain.counter != null) {
+                    counted = true;
+                    bound = Math.max(bound, chain.counter.bound());
+                }
+        }
+
+        accepting       = new boolean          [n];
+        productive      = new boolean          [n * (bound + 1)];
+        indexes         = new StepIndex        [n];
+        step_offsets    = new int              [n + 1];
+        predicates      = new Predicate        [step_count];
+        refinements     = new Predicate        [step_count];
+        int_predicates  = new IntItemPredicate [step_count];
+        int[] repeats   = new int              [step_count];
+        chain_offsets   = new int              [step_count + 1];
+        chain_targets   = new int              [chain_count];
+        chains          = new Chain            [chain_count];
+        closure_offsets = new int              [n + 1];
+        closure_targets = new int              [closure_count];
+        closure_parents = new int              [closure_count];
+        closure_chains  = new Chain            [closure_count];
+        regexes         = tagged ? new Regex[n] : null;
+
+        chain_counters   = counted ? new Counter[chain_count]   : null;
+        closure_counters = counted ? new Counter[closure_count] : null;
+        counts = bound + 1;
+
+        int s = 0, c = 0, k = 0;
+        boolean repeated = false;
+
+        for (int i = 0; i < n; ++i)
+        {
+            State state = anchors.get(i);
+            accepting[i] = state.transitions.isEmpty();
+            if (!counted) productive[i] = state.productive;
+            if (regexes != null) regexes[i] = state.regex;
+            indexes[i] = StepIndex.build(state.steps, s);
+            step_offsets[i] = s;
+            closure_offsets[i] = k;
+            HashMap<PredicateKey, Integer> first = new HashMap<>();
+
+            for (Step step: state.steps)
+            {
+                Transition normal = step.normal;
+                Integer repeat = first.putIfAbsent(new PredicateKey(normal), s);
+                repeats[s] = repeat != null ? repeat : -1;
+                repeated |= repeat != null;
+                predicates[s] = normal.predicate;
+                refinements[s] = normal.klass != null ? normal.refinement : normal.predicate;
+                if (normal.predicate instanceof IntItemPredicate)
+                    int_predicates[s] = (IntItemPredicate) normal.predicate;
+                chain_offsets[s++] = c;
+
+                for (Chain chain: step.chains) {
+                    if (counted) chain_counters[c] = chain.counter;
+                    chain_targets[c] = chain.target.id;
+                    chains[c++] = chain;
+                }
+            }
+
+            for (Chain chain: state.closure) {
+                if (counted) closure_counters[k] = chain.counter;
+                closure_targets[k] = chain.target.id;
+                closure_parents[k] = chain.parent;
+                closure_chains[k++] = chain;
+            }
+        }
+
+        step_offsets[n] = s;
+        chain_offsets[s] = c;
+        closure_offsets[n] = k;
+        this.repeats = repeated ? repeats : null;
+        if (counted) productive(anchors);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether a match can end after consuming input from anchor state {@code state}, checkpointed
+     * with count {@code count}.
+     */
+    boolean productive (int state, int count) {
+        return productive[state * counts + count];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Computes {@link #productive} for an automaton with counted repetitions, as a fixpoint over
+     * the pairs of anchor state and count, like {@link State#productive} over the anchor states
+     * (cf. {@link AutomatonBuilder}). The count matters, as the chains that lead to a match may
+     * not be takeable from every count (e.g. when the maximum of a repetition is reached).
+     */
+    private void productive (ArrayList<State> anchors)
+    {
+        boolean changed = true;
+
+        while (changed)
+        {
+            changed = false;
+
+            for (int i = 0; i < anchors.size(); ++i)
+            {
+                // a state that isn't productive for any count isn't for a given count either
+                if (!anchors.get(i).productive) continue;
+
+                for (int count = 0; count < counts; ++count)
+                {
+                    if (productive[i * counts + count]) continue;
+
+                    search: for (int s = step_offsets[i]; s < step_offsets[i + 1]; ++s)
+                        for (int c = chain_offsets[s]; c < chain_offsets[s + 1]; ++c) {
+                            int next = Counter.apply(chain_counters[c], count);
+                            if (next >= 0 && leads_to_match(chain_targets[c], next)) {
+                                productive[i * counts + count] = true;
+                                changed = true;
+                                break search;
+                            }
+                        }
+                }
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether a match can end at or after the position where {@code state} is checkpointed with
+     * count {@code count}, based on the current (under-)approximation of {@link #productive}.
+     */
+    private boolean leads_to_match (int state, int count)
+    {
+        if (accepting[state] || productive(state, count))
+            return true;
+
+        for (int k = closure_offsets[state]; k < closure_offsets[state + 1]; ++k) {
+            int next = Counter.apply(closure_counters[k], count);
+            int target = closure_targets[k];
+            if (next >= 0 && (accepting[target] || productive(target, next)))
+                return true;
+        }
+
+        return false;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -5,6 +5,9 @@ package norswap.skelex;
  * <p>
  * An automaton has a start state and an end state.
  * The end state may not have any outgoing transition.
+ * <p>
+ * The automaton of a {@link norswap.skelex.regex.RegexSet} is the exception: it has one accepting
+ * state per regex of the set (cf. {@link State#regex}), and no end state.
  */
 final class Automaton
 {
@@ -16,10 +19,59 @@ final class Automaton
      */
     final Regex regex;
 
+    /**
+     * The table used by the runner to advance through the anchor states of the automaton, set by
+     * {@link AutomatonBuilder#compile}.
+     */
+    AnchorTable table;
+
+    /**
+     * Lazily built DFA, used by match-only runners.
+     */
+    private volatile DFA dfa;
+
+    /**
+     * If this automaton is a view created by {@link #Automaton(Regex, Automaton)}, the automaton
+     * whose states, table and DFA it shares, otherwise null.
+     */
+    private final Automaton shared;
+
     Automaton (Regex regex, State start, State end)
     {
         this.start  = start;
         this.end    = end;
         this.regex  = regex;
+        this.shared = null;
+    }
+
+    /**
+     * Creates a view of {@code automaton} for {@code regex}, which must be structurally equal to
+     * the regex it was compiled from (cf. {@link CompiledRegexCache}). The view shares the states,
+     * table and DFA of {@code automaton}, but matches are reported for {@code regex}.
+     */
+    Automaton (Regex regex, Automaton automaton)
+    {
+        this.start  = automaton.start;
+        this.end    = automaton.end;
+        this.regex  = regex;
+        this.table  = automaton.table;
+        this.shared = automaton.shared != null ? automaton.shared : automaton;
+    }
+
+    /**
+     * Returns the DFA corresponding to this automaton, creating it if necessary. This is safe to
+     * call from multiple threads.
+     */
+    DFA dfa()
+    {
+        if (shared != null) return shared.dfa();
+        DFA dfa = this.dfa;
+        if (dfa != null) return dfa;
+
+        synchronized (this) {
+            if (this.dfa == null)
+                this.dfa = new DFA(this);
+            return this.dfa;
+        }
     }
-}
\ No newline at end of file
+}
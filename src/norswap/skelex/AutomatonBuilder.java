@@ -1,16 +1,27 @@
 package norswap.skelex;
 
 import norswap.skelex.regex.*;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
 import java.util.function.BiConsumer;
 import java.util.function.Predicate;
 
+import static norswap.skelex.Transition.*;
 import static norswap.utils.Predicates.TRUE;
 
 /**
  * This internal class contains the logic that compiles a {@link Regex} into an {@link Automaton}.
  * <p>
- * The (private) entry point for this functionality is {@link Regex#automaton())}.
+ * The (private) entry point for this functionality is {@link Regex#automaton())}, which calls
+ * {@link #compile}.
  * <p>
  * The builder methods are annotated with diagrams representing the automaton being built.
  * These diagrams are also available in {@code doc/diagrams.md}. This document also explains
@@ -20,24 +31,154 @@ final class AutomatonBuilder
 {
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Builds the automaton for {@code regex}, then precomputes the transition chains between its
+     * anchor states (cf. {@link State#steps} and {@link State#closure}), simplifies them (cf.
+     * {@link #link}), and computes which anchor states can still lead to a match (cf. {@link
+     * State#productive}).
+     */
+    static Automaton compile (Regex regex) {
+        return compile(regex, null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #compile(Regex)}, but the automata of the sub-regexes are shared with the
+     * other regexes compiled through {@code cache} (cf. {@link #build_automaton(Regex)}), if it is
+     * not null.
+     */
+    static Automaton compile (Regex regex, CompiledRegexCache cache) {
+        return compile(regex, cache, true);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #compile(Regex, CompiledRegexCache)}, but the anchor states and their chains
+     * are only simplified if {@code simplify} is true (cf. {@link #link}). The automata compiled
+     * without simplification match identically, and are only used for testing.
+     */
+    static Automaton compile (Regex regex, CompiledRegexCache cache, boolean simplify)
+    {
+        AutomatonBuilder builder = new AutomatonBuilder(cache);
+        Automaton automaton = regex instanceof RegexSet
+            ? builder.build_automaton((RegexSet) regex)
+            : builder.build_automaton(regex);
+        link(automaton, simplify);
+        return automaton;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The cache holding the (unlinked) automata of the sub-regexes, or null.
+     */
+    private final CompiledRegexCache cache;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the automaton being built is nested in the item of a counted repetition (cf. {@link
+     * #counts}).
+     */
+    private boolean counting = false;
+
+    // ---------------------------------------------------------------------------------------------
+
+    AutomatonBuilder (CompiledRegexCache cache) {
+        this.cache = cache;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Builds the automaton for {@code regex}, without linking it.
+     * <p>
+     * If there is a {@link #cache}, the automaton is a copy of the one built for a structurally
+     * equal regex, if the cache holds one. Otherwise, the automaton is built, and a copy of it is
+     * added to the cache if a structurally equal regex was built before (cf. {@link
+     * CompiledRegexCache#seen}). Copies are required, as the builder methods modify the automata
+     * of their sub-regexes. The automata of {@link Pred} and {@link Typed} regexes are not worth
+     * caching. Neither are those nested in a counted repetition, which don't count their own
+     * repetitions (cf. {@link #counts}): they are not interchangeable with the others.
+     */
+    Automaton build_automaton (Regex regex)
+    {
+        if (cache == null || counting || regex instanceof Pred || regex instanceof Typed)
+            return dispatch(regex);
+
+        CompiledRegexCache.Key key = new CompiledRegexCache.Key(regex);
+        Automaton fragment = cache.fragment(key);
+        if (fragment != null) return copy(fragment, regex);
+
+        boolean seen = cache.seen(key);
+        Automaton automaton = dispatch(regex);
+        if (seen) cache.add_fragment(key, copy(automaton, regex));
+        return automaton;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * Dispatches the regex to the appropriate compile method.
      */
-    static Automaton build_automaton (Regex regex)
+    private Automaton dispatch (Regex regex)
     {
         /**/ if (regex instanceof Seq)      return build_automaton((Seq) regex);
         else if (regex instanceof Choice)   return build_automaton((Choice) regex);
         else if (regex instanceof Maybe)    return build_automaton((Maybe) regex);
         else if (regex instanceof ZeroMore) return build_automaton((ZeroMore) regex);
         else if (regex instanceof OneMore)  return build_automaton((OneMore) regex);
+        else if (regex instanceof Repeat)   return build_automaton((Repeat) regex);
+        else if (regex instanceof Separated) return build_automaton((Separated) regex);
         else if (regex instanceof Pred)     return build_automaton((Pred) regex);
         else if (regex instanceof Typed)    return build_automaton((Typed) regex);
+        else if (regex instanceof RegexSet)
+            throw new IllegalArgumentException("A regex set can't be nested within another regex.");
 
         throw new IllegalArgumentException();
     }
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Returns a copy of the states and transitions of {@code automaton}, which must not have been
+     * linked yet, attributed to {@code regex}. The copied transitions share their predicates and
+     * actions with the original ones.
+     */
+    private static Automaton copy (Automaton automaton, Regex regex)
+    {
+        IdentityHashMap<State, State> copies = new IdentityHashMap<>();
+        ArrayDeque<State> queue = new ArrayDeque<>();
+        copies.put(automaton.start, new State());
+        queue.add(automaton.start);
+
+        while (!queue.isEmpty())
+        {
+            State state = queue.pop();
+            State copy = copies.get(state);
+
+            for (Transition t: state.transitions)
+            {
+                State target = copies.get(t.target);
+
+                if (target == null) {
+                    copies.put(t.target, target = new State());
+                    queue.add(t.target);
+                }
+
+                copy.transitions.add(new Transition(
+                    target, t.predicate, t.action, t.type, t.klass, t.refinement, t.counter));
+            }
+        }
+
+        State end = copies.computeIfAbsent(automaton.end, k -> new State());
+        return new Automaton(regex, copies.get(automaton.start), end);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private static Automaton concat (Automaton a1, Automaton a2)
     {
         a1.end.transitions.addAll(a2.start.transitions);
@@ -54,9 +195,58 @@ final class AutomatonBuilder
 
     // ---------------------------------------------------------------------------------------------
 
+    private static final BiConsumer<MatchTree, Object> DROP = (m, o) -> m.drop();
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final BiConsumer<MatchTree, Object> MARK = (m, o) -> m.mark();
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final BiConsumer<MatchTree, Object> COLLECT = (m, o) -> m.collect();
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final BiConsumer<MatchTree, Object> PUSH_NULL = (m, o) -> m.push_null();
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final BiConsumer<MatchTree, Object> PUSH_LIST = (m, o) -> m.push_list();
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final ArrayList<BiConsumer<MatchTree, Object>> PUSH_BRANCH = new ArrayList<>();
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the action that pushes a branch with the given index. The same instance is returned
+     * for the same index, so that the chains of the branches of different choices can be compared
+     * (cf. {@link #merge}).
+     */
+    private static synchronized BiConsumer<MatchTree, Object> push_branch (int index)
+    {
+        while (PUSH_BRANCH.size() <= index) {
+            int i = PUSH_BRANCH.size();
+            PUSH_BRANCH.add((m, o) -> m.push_branch(i));
+        }
+        return PUSH_BRANCH.get(index);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private static void normal_transition (State src, State dst, Predicate<Object> pred)
     {
-        src.transitions.add(new Transition(dst, pred, MatchTree::push, Transition.NORMAL));
+        src.transitions.add(new Transition(dst, pred, MatchTree::push_item, Transition.NORMAL));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void typed_transition
+            (State src, State dst, Class<?> klass, Predicate<Object> pred)
+    {
+        src.transitions.add(new Transition(dst, it -> klass.isInstance(it) && pred.test(it),
+            MatchTree::push_item, Transition.NORMAL, klass, pred));
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -64,7 +254,16 @@ final class AutomatonBuilder
     private static void pre_transition
             (State src, State dst, BiConsumer<MatchTree, Object> action)
     {
-        src.transitions.add(new Transition(dst, TRUE, action, Transition.PRE));
+        pre_transition(src, dst, action, null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void pre_transition
+            (State src, State dst, BiConsumer<MatchTree, Object> action, Counter counter)
+    {
+        src.transitions.add(
+            new Transition(dst, TRUE, action, Transition.PRE, null, null, counter));
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -72,7 +271,16 @@ final class AutomatonBuilder
     private static void post_transition
             (State src, State dst, BiConsumer<MatchTree, Object> action)
     {
-        src.transitions.add(new Transition(dst, TRUE, action, Transition.POST));
+        post_transition(src, dst, action, null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void post_transition
+            (State src, State dst, BiConsumer<MatchTree, Object> action, Counter counter)
+    {
+        src.transitions.add(
+            new Transition(dst, TRUE, action, Transition.POST, null, null, counter));
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -87,7 +295,7 @@ final class AutomatonBuilder
      * 2: POST - collect
      * </pre>
      */
-    private static Automaton build_automaton (Seq regex)
+    private Automaton build_automaton (Seq regex)
     {
         Regex[] items = regex.items;
         assert items.length > 0;
@@ -99,8 +307,8 @@ final class AutomatonBuilder
         State start = new State();
         State end   = new State();
 
-        pre_transition  (start,   sub.start,  (m, o) -> m.mark());
-        post_transition (sub.end, end,        (m, o) -> m.collect());
+        pre_transition  (start,   sub.start,  MARK);
+        post_transition (sub.end, end,        COLLECT);
 
         return new Automaton(regex, start, end);
     }
@@ -121,7 +329,7 @@ final class AutomatonBuilder
      *  3, 4: POST - push_branch(0/1)
      * </pre>
      */
-    private static Automaton build_automaton (Choice regex)
+    private Automaton build_automaton (Choice regex)
     {
         Regex[] items = regex.items;
         assert items.length > 0;
@@ -132,9 +340,8 @@ final class AutomatonBuilder
         for (int i = 0; i < items.length; ++i)
         {
             Automaton sub = build_automaton(items[i]);
-            int index = i;
             pre_transition  (start,   sub.start, NOOP);
-            post_transition (sub.end, end,       (m, o) -> m.push_branch(index));
+            post_transition (sub.end, end,       push_branch(i));
         }
 
         return new Automaton(regex, start, end);
@@ -157,17 +364,18 @@ final class AutomatonBuilder
      * 3: PRE  - noop
      * 4: POST - noop
      * </pre>
+     * If the regex is lazy, transition 3 is {@link #defer deferred}.
      */
-    private static Automaton build_automaton (Maybe regex)
+    private Automaton build_automaton (Maybe regex)
     {
         State     start = new State();
         State     mid   = new State();
         State     end   = new State();
         Automaton sub   = build_automaton(regex.item);
 
-        pre_transition  (start,   mid,       (m, o) -> m.push(null));
+        pre_transition  (start,   mid,       PUSH_NULL);
         post_transition (mid,     end,       NOOP);
-        pre_transition  (start,   sub.start, NOOP);
+        pre_transition  (regex.lazy ? defer(start) : start, sub.start, NOOP);
         post_transition (sub.end, end,       NOOP);
 
         return new Automaton(regex, start, end);
@@ -193,8 +401,10 @@ final class AutomatonBuilder
      * 4: PRE  - noop
      * 5: POST - accrete
      * </pre>
+     * If the regex is lazy, transition 2 is added before transition 4, which is {@link #defer
+     * deferred}.
      */
-    private static Automaton build_automaton (ZeroMore regex)
+    private Automaton build_automaton (ZeroMore regex)
     {
         State     start = new State();
         State     mid   = new State();
@@ -202,10 +412,18 @@ final class AutomatonBuilder
         State     end2   = new State();
         Automaton sub   = build_automaton(regex.item);
 
-        pre_transition  (start,   mid,       (m, o) -> m.push(new ArrayList<>()));
-        pre_transition  (mid,     sub.start, NOOP);
+        pre_transition  (start,   mid,       PUSH_LIST);
+
+        if (regex.lazy) {
+            pre_transition  (mid,        end1,      NOOP);
+            pre_transition  (defer(mid), sub.start, NOOP);
+        }
+        else {
+            pre_transition  (mid,        sub.start, NOOP);
+            pre_transition  (mid,        end1,      NOOP);
+        }
+
         post_transition (sub.end, mid,       ACCRETE);
-        pre_transition  (mid,     end1,      NOOP);
         post_transition (end1,    end2,      NOOP);
 
         return new Automaton(regex, start, end2);
@@ -225,23 +443,297 @@ final class AutomatonBuilder
      * 2: POST - accrete
      * 3: POST - accrete
      * </pre>
+     * If the regex is lazy, transition 2 is added before transition 3.
      */
-    private static Automaton build_automaton (OneMore regex)
+    private Automaton build_automaton (OneMore regex)
     {
         State     start = new State();
         State     end   = new State();
         Automaton sub   = build_automaton(regex.item);
 
-        pre_transition  (start,   sub.start, (m, o) -> m.push(new ArrayList<>()));
-        post_transition (sub.end, sub.start, ACCRETE);
-        post_transition (sub.end, end,       ACCRETE);
+        pre_transition  (start,   sub.start, PUSH_LIST);
+
+        if (regex.lazy) {
+            post_transition (sub.end, end,       ACCRETE);
+            post_transition (sub.end, sub.start, ACCRETE);
+        }
+        else {
+            post_transition (sub.end, sub.start, ACCRETE);
+            post_transition (sub.end, end,       ACCRETE);
+        }
 
         return new Automaton(regex, start, end);
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private static Automaton build_automaton (Pred regex)
+    /**
+     * <pre>
+     * +---+  1  +----+  2  +-+--+     +----+  3  +----+           +----+
+     * | s |-->--| m0 |-->--| As |==>==| Ae |-->--| m1 |-->-- ... --| mN |
+     * +---+     +----+     +-+--+     +----+     +----+           +----+
+     *
+     * +----+  4  +----+  5  +---+
+     * | mI |-->--| xI |-->--| e |    for each min <= I <= N
+     * +----+     +----+     +---+
+     *
+     * 1: PRE  - push list
+     * 2: PRE  - noop
+     * 3: POST - accrete
+     * 4: PRE  - noop
+     * 5: POST - noop
+     * </pre>
+     * There is a copy of the item automaton between each {@code mI} and {@code mI+1}, and {@code N}
+     * is the maximum number of repetitions. If there is no maximum, {@code N} is the minimum, and
+     * {@code mN} loops on a last copy (like in {@link ZeroMore}).
+     * <p>
+     * If {@code N > 1} and {@code min > 0}, the repetition is counted instead, unless this is not
+     * possible (cf. {@link #counts}): there is a single state {@code m}, which loops on a single
+     * copy of the item automaton, and the checkpoints record the number of items matched so far
+     * (their count, cf. {@link Counter}):
+     * <pre>
+     * +---+  1  +---+  2  +-+--+     +----+
+     * | s |-->--| m |-->--| As |==>==| Ae |
+     * +---+     +-+-+     +-+--+     +--+-+
+     *             | |         3         |
+     *             | +---------<---------+
+     *             |
+     *             |  4  +---+  5  +---+
+     *             +-->--| x |-->--| e |
+     *                   +---+     +---+
+     *
+     * 1: PRE  - push list
+     * 2: PRE  - noop     (if count < max)
+     * 3: POST - accrete  (count + 1)
+     * 4: PRE  - noop     (if count >= min, then count = 0)
+     * 5: POST - noop
+     * </pre>
+     * Transition 4 is added before transition 2, as for the unrolled repetition. If there is no
+     * maximum, transition 2 is not guarded, and transition 3 doesn't increment the count past the
+     * minimum.
+     * <p>
+     * Without a minimum, {@code m} would exit with a count of 0, so that an enclosing loop could
+     * reach it again with the same count within a single closure, through transitions that reset
+     * the count. The unrolled repetition reaches {@code m0} only once, which gives precedence to
+     * other match trees for the empty input.
+     */
+    private Automaton build_automaton (Repeat regex)
+    {
+        State start = new State();
+        State end   = new State();
+        State mid   = new State();
+        boolean unbounded = regex.max == Repeat.UNBOUNDED;
+        int copies = unbounded ? regex.min : regex.max;
+
+        pre_transition(start, mid, PUSH_LIST);
+
+        if (regex.min > 0 && counts(regex.item, copies)) {
+            counting = true;
+            exit(mid, end, Counter.guard(regex.min, Integer.MAX_VALUE, 0));
+            repetition(mid, mid, regex.item, null,
+                unbounded ? null : Counter.guard(0, regex.max - 1, -1),
+                Counter.increment(copies));
+            counting = false;
+            return new Automaton(regex, start, end);
+        }
+
+        for (int i = 0; i <= copies; ++i)
+        {
+            if (i >= regex.min)
+                exit(mid, end, null);
+
+            if (i == copies) {
+                if (unbounded)
+                    repetition(mid, mid, regex.item, null, null, null);
+                break;
+            }
+
+            State next = new State();
+            repetition(mid, next, regex.item, null, null, null);
+            mid = next;
+        }
+
+        return new Automaton(regex, start, end);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * <pre>
+     * +---+  1  +----+  2  +-+--+     +----+  3  +----+  4  +----+     +----+  5  +---+  6  +----+
+     * | s |-->--| m0 |-->--| As |==>==| Ae |-->--| m1 |-->--| Ss |==>==| Se |-->--| n |-->--| As |
+     * +---+     +----+     +-+--+     +----+     +----+     +-+--+     +----+     +---+     +----+
+     *
+     * 1: PRE  - push list
+     * 2: PRE  - noop
+     * 3: POST - accrete
+     * 4: PRE  - noop
+     * 5: POST - drop
+     * 6: PRE  - noop
+     * </pre>
+     * The separator-item pair repeats until {@code min} items have been matched, then a last copy
+     * of the pair loops back on the state reached after the last item. As in {@link Repeat},
+     * each state reached after {@code min} or more items (or {@code m0} if {@code min == 0}) exits
+     * to the end state through a PRE noop and a POST noop transition.
+     * <p>
+     * If {@code min > 1}, the repetition is counted instead, unless this is not possible (cf.
+     * {@link #counts}): there is a single copy of the separator-item pair, which loops on {@code
+     * m1}. Both POST accrete transitions increment the count of the checkpoints (up to {@code
+     * min}), and {@code m1} only exits if the count is {@code min} (cf. {@link
+     * #build_automaton(Repeat)}).
+     */
+    private Automaton build_automaton (Separated regex)
+    {
+        State start = new State();
+        State end   = new State();
+        State mid   = new State();
+        int copies  = Math.max(regex.min, 1);
+
+        pre_transition(start, mid, PUSH_LIST);
+
+        if (counts(regex.item, copies)) {
+            counting = true;
+            Counter increment = Counter.increment(regex.min);
+            State next = new State();
+            repetition(mid, next, regex.item, null, null, increment);
+            exit(next, end, Counter.guard(regex.min, Integer.MAX_VALUE, 0));
+            repetition(next, next, regex.item, regex.sep, null, increment);
+            counting = false;
+            return new Automaton(regex, start, end);
+        }
+
+        if (regex.min == 0)
+            exit(mid, end, null);
+
+        State next = new State();
+        repetition(mid, next, regex.item, null, null, null);
+        mid = next;
+
+        for (int i = 1; i < copies; ++i) {
+            next = new State();
+            repetition(mid, next, regex.item, regex.sep, null, null);
+            mid = next;
+        }
+
+        exit(mid, end, null);
+        repetition(mid, mid, regex.item, regex.sep, null, null);
+        return new Automaton(regex, start, end);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether a repetition of {@code item} that would need {@code copies} copies of its automaton
+     * (besides the looping copy of unbounded repetitions) must be counted instead (cf. {@link
+     * Counter}).
+     * <p>
+     * A counted repetition can't be nested in the item of another, as checkpoints only hold a
+     * single count: the nested repetitions are unrolled. Neither can it have an item that matches
+     * the empty input, as the count would then have to be incremented without consuming input,
+     * possibly many times over in the closure of a single anchor state.
+     */
+    private boolean counts (Regex item, int copies) {
+        return copies > 1 && !counting && !nullable(item);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether {@code regex} can match the empty input.
+     */
+    private static boolean nullable (Regex regex)
+    {
+        /**/ if (regex instanceof Seq) {
+            for (Regex item: ((Seq) regex).items)
+                if (!nullable(item)) return false;
+            return true;
+        }
+        else if (regex instanceof Choice) {
+            for (Regex item: ((Choice) regex).items)
+                if (nullable(item)) return true;
+            return false;
+        }
+        else if (regex instanceof Maybe || regex instanceof ZeroMore)
+            return true;
+        else if (regex instanceof OneMore)
+            return nullable(((OneMore) regex).item);
+        else if (regex instanceof Repeat)
+            return ((Repeat) regex).min == 0 || nullable(((Repeat) regex).item);
+        else if (regex instanceof Separated) {
+            Separated separated = (Separated) regex;
+            return separated.min == 0 || nullable(separated.item)
+                && (separated.min == 1 || nullable(separated.sep));
+        }
+
+        return false;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Links {@code src} to {@code dst} through a copy of the automaton of {@code item}, whose
+     * match node is accreted to the list built by a {@link Repeat} or {@link Separated} regex. If
+     * {@code sep} is not null, the item is preceded by a copy of the automaton of {@code sep},
+     * whose match node is dropped.
+     * <p>
+     * For counted repetitions, {@code guard} and {@code increment} are the counters of the PRE
+     * transition leaving {@code src} and of the POST transition reaching {@code dst}.
+     */
+    private void repetition
+            (State src, State dst, Regex item, Regex sep, Counter guard, Counter increment)
+    {
+        if (sep != null) {
+            Automaton sub = build_automaton(sep);
+            State next = new State();
+            pre_transition  (src,     sub.start, NOOP, guard);
+            post_transition (sub.end, next,      DROP);
+            src = next;
+            guard = null;
+        }
+
+        Automaton sub = build_automaton(item);
+        pre_transition  (src,     sub.start, NOOP,    guard);
+        post_transition (sub.end, dst,       ACCRETE, increment);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Links {@code src} to {@code end} through a PRE then a POST noop transition, allowing to stop
+     * repeating at {@code src} (cf. {@link #build_automaton(ZeroMore)}). For counted repetitions,
+     * {@code counter} is the counter of the PRE transition.
+     */
+    private static void exit (State src, State end, Counter counter)
+    {
+        State exit = new State();
+        pre_transition  (src,  exit, NOOP, counter);
+        post_transition (exit, end,  NOOP);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a new state reached from {@code src} through a PRE then a POST noop transition.
+     * <p>
+     * The anchor states reached without consuming input are checkpointed after the anchor state
+     * they are reached from, in the order of the transitions that reach them (cf. {@link
+     * #closure}). Leaving {@code src} from the returned state therefore gives the paths that do so
+     * a lower priority than those that leave {@code src} directly (including those that consume
+     * input) or through the transitions added to {@code src} before this call. This is how lazy
+     * regexes prefer matching less input.
+     */
+    private static State defer (State src)
+    {
+        State mid      = new State();
+        State deferred = new State();
+        pre_transition  (src, mid,      NOOP);
+        post_transition (mid, deferred, NOOP);
+        return deferred;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Automaton build_automaton (Pred regex)
     {
         State start = new State();
         State end   = new State();
@@ -253,15 +745,805 @@ final class AutomatonBuilder
 
     // ---------------------------------------------------------------------------------------------
 
-    private static Automaton build_automaton (Typed regex)
+    private Automaton build_automaton (Typed regex)
     {
         State start = new State();
         State end   = new State();
 
-        normal_transition(start, end, it -> regex.type.isInstance(it) && regex.pred.test(it));
+        typed_transition(start, end, regex.type, regex.pred);
 
         return new Automaton(regex, start, end);
     }
 
     // ---------------------------------------------------------------------------------------------
+
+    /**
+     * <pre>
+     *                                   +----+  2  +----+
+     *                                +==| Be |-->--| eX |
+     * +---+  1  +---+     +----+     |  +----+     +----+
+     * | s |-->--| m |==>==| Ae |==>==+
+     * +---+     +---+     +----+     |  +----+  2  +----+
+     *   |                            +==| Ce |-->--| eY |
+     *   |                               +----+     +----+
+     *   |  3  +----+     +----+  4  +----+
+     *   +-->--| Zs |==>==| Ze |-->--| eZ |
+     *         +----+     +----+     +----+
+     *
+     * X = seq(A, B), Y = seq(A, C), Z (not a sequence)
+     *
+     * 1: PRE  - mark
+     * 2: POST - collect
+     * 3: PRE  - noop
+     * 4: POST - noop
+     * </pre>
+     *
+     * The sequences of the set are matched by a trie (cf. {@link #trie}): structurally equal
+     * leading items are only compiled once, and their automaton is shared by all the sequences
+     * that start with them. Each regex of the set gets its own accepting state, tagged with the
+     * regex (cf. {@link State#regex}). Structurally equal regexes that are not sequences share
+     * their automaton, but not their accepting state.
+     * <p>
+     * Along the path to the accepting state of a regex, the actions are those of the automaton of
+     * the regex: match trees are unchanged.
+     */
+    private Automaton build_automaton (RegexSet regex)
+    {
+        State start = new State();
+        ArrayList<Seq> seqs = new ArrayList<>();
+        LinkedHashMap<CompiledRegexCache.Key, ArrayList<Regex>> others = new LinkedHashMap<>();
+        Set<Regex> members = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        for (Regex member: regex.regexes)
+        {
+            if (!members.add(member)) continue;
+
+            if (member instanceof RegexSet)
+                throw new IllegalArgumentException(
+                    "A regex set can't be nested within another regex.");
+
+            if (member instanceof Seq)
+                seqs.add((Seq) member);
+            else
+                others.computeIfAbsent(new CompiledRegexCache.Key(member), k -> new ArrayList<>())
+                    .add(member);
+        }
+
+        if (!seqs.isEmpty()) {
+            State mark = new State();
+            pre_transition(start, mark, MARK);
+            trie(mark, seqs, 0);
+        }
+
+        for (ArrayList<Regex> group: others.values())
+        {
+            Automaton sub = build_automaton(group.get(0));
+            pre_transition(start, sub.start, NOOP);
+            for (Regex member: group)
+                post_transition(sub.end, accepting(member), NOOP);
+        }
+
+        return new Automaton(regex, start, null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Extends {@code state}, which is reached after matching the first {@code depth} items of all
+     * the sequences in {@code seqs}, so that it matches the remaining items of these sequences.
+     * The sequences are grouped by their next item: the item automaton is only built once per group
+     * of structurally equal items, concatenated to {@code state}, and extended with the group.
+     */
+    private void trie (State state, List<Seq> seqs, int depth)
+    {
+        State exit = new State();
+        LinkedHashMap<CompiledRegexCache.Key, ArrayList<Seq>> groups = new LinkedHashMap<>();
+
+        for (Seq seq: seqs)
+            if (seq.items.length == depth)
+                post_transition(exit, accepting(seq), COLLECT);
+            else
+                groups.computeIfAbsent(new CompiledRegexCache.Key(seq.items[depth]),
+                    k -> new ArrayList<>()).add(seq);
+
+        // POST transitions are always taken once reached (cf. post_chains): if some sequences go
+        // on, those that end here exit through a PRE transition, like in exit()
+        if (groups.isEmpty())
+            state.transitions.addAll(exit.transitions);
+        else if (!exit.transitions.isEmpty())
+            pre_transition(state, exit, NOOP);
+
+        for (ArrayList<Seq> group: groups.values()) {
+            Automaton item = build_automaton(group.get(0).items[depth]);
+            state.transitions.addAll(item.start.transitions);
+            trie(item.end, group, depth + 1);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a new accepting state for {@code regex}, a regex of a {@link RegexSet}.
+     */
+    private static State accepting (Regex regex)
+    {
+        State state = new State();
+        state.regex = regex;
+        return state;
+    }
+
+    // =============================================================================================
+    // LINKING
+
+    /**
+     * Computes the {@link State#steps} and {@link State#closure} of every anchor state reachable
+     * from the start state of the automaton, and numbers these states ({@link State#id}). Then, if
+     * {@code simplify} is true, fuses the transitions of the chains (cf. {@link
+     * #fuse(ArrayList)}), removes the anchor states that are only reached through closures (cf.
+     * {@link #hoist}) and merges the equivalent anchor states (cf. {@link #merge}). Finally, lowers
+     * the remaining anchor states into the automaton's {@link AnchorTable}.
+     */
+    private static void link (Automaton automaton, boolean simplify)
+    {
+        ArrayDeque<State> queue = new ArrayDeque<>();
+        ArrayList<State> anchors = new ArrayList<>();
+        queue.add(automaton.start);
+        int count = 0;
+
+        while (!queue.isEmpty())
+        {
+            State state = queue.pop();
+            if (state.steps != null) continue;
+
+            state.id = count++;
+            anchors.add(state);
+            ArrayList<Step> steps = new ArrayList<>();
+            pre_chains(state, new ArrayList<>(), steps);
+            state.steps = steps.toArray(new Step[0]);
+            state.closure = closure(state);
+
+            for (Step step: state.steps)
+                for (Chain chain: step.chains)
+                    queue.add(chain.target);
+
+            for (Chain chain: state.closure)
+                queue.add(chain.target);
+        }
+
+        if (simplify) {
+            fuse(anchors);
+            anchors = hoist(anchors);
+            anchors = merge(anchors);
+        }
+
+        productive(anchors);
+        automaton.table = new AnchorTable(anchors);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Computes {@link State#productive} for all the anchor states of an automaton, as a fixpoint:
+     * a state is productive if one of its steps reaches a state that either is productive or
+     * accepting, or has a productive or accepting state in its closure.
+     */
+    private static void productive (ArrayList<State> anchors)
+    {
+        boolean changed = true;
+
+        while (changed)
+        {
+            changed = false;
+
+            for (State state: anchors)
+            {
+                if (state.productive) continue;
+
+                search: for (Step step: state.steps)
+                    for (Chain chain: step.chains)
+                        if (leads_to_match(chain.target)) {
+                            state.productive = true;
+                            changed = true;
+                            break search;
+                        }
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether a match can end at or after the position where {@code anchor} is checkpointed, based
+     * on the current (under-)approximation of {@link State#productive}.
+     */
+    private static boolean leads_to_match (State anchor)
+    {
+        if (anchor.productive || anchor.transitions.isEmpty())
+            return true;
+
+        for (Chain chain: anchor.closure)
+            if (chain.target.productive || chain.target.transitions.isEmpty())
+                return true;
+
+        return false;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Collects the input-consuming chains (PRE* NORMAL POST*) starting from {@code state} into
+     * {@code out}, grouped by NORMAL transition. {@code trace} holds the PRE transitions taken so
+     * far.
+     */
+    private static void pre_chains (State state, ArrayList<Transition> trace, ArrayList<Step> out)
+    {
+        for (Transition t: state.transitions)
+        {
+            trace.add(t);
+
+            if (t.type == PRE)
+                pre_chains(t.target, trace, out);
+            else if (t.type == NORMAL) {
+                ArrayList<Chain> chains = new ArrayList<>();
+                post_chains(t.target, trace, chains);
+                if (!chains.isEmpty())
+                    out.add(new Step(out.size(), t, chains.toArray(new Chain[0])));
+            }
+            // POST transitions can't directly follow PRE transitions when consuming input
+
+            trace.remove(trace.size() - 1);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Collects the chains obtained by greedily extending {@code trace} (which must end with a
+     * NORMAL or POST transition leading to {@code state}) with POST transitions into {@code out}.
+     * The chains that can't be taken whatever the count of their source (cf. {@link Counter}) are
+     * omitted.
+     */
+    private static void post_chains (State state, ArrayList<Transition> trace, ArrayList<Chain> out)
+    {
+        boolean continued = false;
+
+        for (Transition t: state.transitions)
+        {
+            if (t.type != POST) continue;
+            trace.add(t);
+            post_chains(t.target, trace, out);
+            trace.remove(trace.size() - 1);
+            continued = true;
+        }
+
+        if (continued) return;
+        Counter counter = null;
+
+        for (Transition t: trace)
+            counter = Counter.then(counter, t.counter);
+
+        if (counter == null || counter.possible())
+            out.add(new Chain(trace.toArray(new Transition[0]), state, -1, counter));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Replaces the chains of the steps and closures of {@code anchors} by chains whose transitions
+     * are fused (cf. {@link #fuse(List)}).
+     */
+    private static void fuse (ArrayList<State> anchors)
+    {
+        for (State state: anchors)
+        {
+            for (Step step: state.steps)
+                for (int i = 0; i < step.chains.length; ++i)
+                    step.chains[i] = fused(step.chains[i]);
+
+            for (int i = 0; i < state.closure.length; ++i)
+                state.closure[i] = fused(state.closure[i]);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a copy of {@code chain} whose transitions are fused (cf. {@link #fuse(List)}).
+     */
+    private static Chain fused (Chain chain)
+    {
+        Transition[] trace = fuse(Arrays.asList(chain.trace));
+        return new Chain(trace, chain.target, chain.parent, chain.counter);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the transitions of a chain with the given trace, as they must be replayed to build
+     * match trees: transitions with a noop action are dropped, and runs of consecutive PRE or POST
+     * transitions are fused into a single transition (cf. {@link Fused}).
+     */
+    private static Transition[] fuse (List<Transition> trace)
+    {
+        ArrayList<Transition> out = new ArrayList<>();
+        ArrayList<Transition> run = new ArrayList<>();
+
+        for (Transition t: trace)
+        {
+            if (t.type != NORMAL && t.action == NOOP) continue;
+
+            if (!run.isEmpty() && t.type != run.get(0).type) {
+                out.add(fused(run));
+                run.clear();
+            }
+
+            if (t.type == NORMAL)
+                out.add(t);
+            else
+                run.add(t);
+        }
+
+        if (!run.isEmpty())
+            out.add(fused(run));
+
+        return out.toArray(new Transition[0]);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a transition equivalent to the given run of PRE or POST transitions.
+     */
+    private static Transition fused (ArrayList<Transition> run)
+    {
+        if (run.size() == 1) return run.get(0);
+        ArrayList<BiConsumer<MatchTree, Object>> actions = new ArrayList<>();
+
+        for (Transition t: run)
+            if (t.action instanceof Fused)
+                actions.addAll(((Fused) t.action).actions);
+            else
+                actions.add(t.action);
+
+        Transition last = run.get(run.size() - 1);
+        return new Transition(last.target, TRUE, new Fused(actions), last.type);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * An action that performs the actions of a run of transitions in order (cf. {@link
+     * #fuse(List)}). Fused actions are equal if they perform the same actions. The hash is
+     * precomputed, as {@link #merge} hashes the same fused actions many times.
+     */
+    private static final class Fused implements BiConsumer<MatchTree, Object>
+    {
+        final List<BiConsumer<MatchTree, Object>> actions;
+        final int hash;
+
+        Fused (List<BiConsumer<MatchTree, Object>> actions) {
+            this.actions = actions;
+            this.hash = actions.hashCode();
+        }
+
+        @Override public void accept (MatchTree match, Object item) {
+            for (BiConsumer<MatchTree, Object> action: actions)
+                action.accept(match, item);
+        }
+
+        @Override public int hashCode() {
+            return hash;
+        }
+
+        @Override public boolean equals (Object other) {
+            return other instanceof Fused
+                && hash == ((Fused) other).hash
+                && actions.equals(((Fused) other).actions);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Collects the non-consuming chains (PRE* POST+) starting from {@code state} into {@code out}.
+     * {@code trace} holds the PRE transitions taken so far.
+     */
+    private static void epsilon_chains
+            (State state, ArrayList<Transition> trace, ArrayList<Chain> out)
+    {
+        for (Transition t: state.transitions)
+        {
+            trace.add(t);
+
+            if (t.type == PRE)
+                epsilon_chains(t.target, trace, out);
+            else if (t.type == POST)
+                post_chains(t.target, trace, out);
+            // NORMAL transitions consume input
+
+            trace.remove(trace.size() - 1);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns all anchor states reachable from {@code anchor} through a succession of non-consuming
+     * chains, in depth-first order (which is the order in which they must be checkpointed for
+     * match trees to respect the preference rules).
+     * <p>
+     * Each anchor state appears only once, which also ensures termination when a repetition can
+     * match the empty string (e.g. {@code zeromore(maybe(x))}). In automata with counted
+     * repetitions, an anchor state appears once per counter (cf. {@link Counter}) of the paths
+     * that reach it from {@code anchor}, as these may reach it with different counts. Since these
+     * paths never increment the count (cf. {@link #counts}), there are few such counters.
+     */
+    private static Chain[] closure (State anchor)
+    {
+        ArrayList<Chain> out = new ArrayList<>();
+        HashSet<List<Object>> seen = new HashSet<>();
+        seen.add(Arrays.asList(anchor, null));
+        closure(anchor, -1, null, seen, out);
+        return out.toArray(new Chain[0]);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds the anchor states reachable from {@code anchor} to the closure {@code out} (cf. {@link
+     * #closure(State)}). {@code anchor} is reached through the chain at index {@code parent}
+     * (or is the owner of the closure if -1), and {@code counter} is the counter of the path that
+     * reaches it.
+     */
+    private static void closure (State anchor, int parent, Counter counter,
+                                 HashSet<List<Object>> seen, ArrayList<Chain> out)
+    {
+        ArrayList<Chain> chains = new ArrayList<>();
+        epsilon_chains(anchor, new ArrayList<>(), chains);
+
+        for (Chain chain: chains)
+        {
+            Counter path = Counter.then(counter, chain.counter);
+            if (path != null && !path.possible()) continue;
+            if (!seen.add(Arrays.asList(chain.target, path))) continue;
+            int index = out.size();
+            out.add(new Chain(chain.trace, chain.target, parent, chain.counter));
+            closure(chain.target, index, path, seen, out);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Hoists the steps of the non-accepting anchor states in the closure of each anchor state into
+     * the steps of that anchor state, then returns the anchor states that are still reachable,
+     * renumbered in the same order.
+     * <p>
+     * The runner takes the steps of a checkpoint, then those of the checkpoints in its closure, in
+     * closure order. The hoisted steps are appended in that same order, and their chains are
+     * prefixed with the trace of the closure chains leading to their original source: the
+     * checkpoints reached through them, and their first link, are unchanged. Closures only retain
+     * their accepting anchor states (still needed to report matches), so that the anchor states
+     * that were only reached through closures don't need a checkpoint anymore.
+     * <p>
+     * Once this is done, some anchor states are left without steps and only lead to the accepting
+     * states in their closure (e.g. the state after the last copy of a bounded {@link Repeat}).
+     * The chains that reach them are redirected to these accepting states, so that they don't
+     * need a checkpoint either.
+     * <p>
+     * If a checkpoint for an anchor state whose steps were hoisted is created by consuming input,
+     * or was already created through another closure, its steps are taken twice. This does not
+     * create any checkpoint: the second time only adds lower priority links.
+     */
+    private static ArrayList<State> hoist (ArrayList<State> anchors)
+    {
+        int n = anchors.size();
+        Step[][] steps = new Step[n][];
+        Chain[][] closures = new Chain[n][];
+        Transition[][][] prefixes = new Transition[n][][];
+        Counter[][] counters = new Counter[n][];
+        boolean[] relays = new boolean[n];
+
+        for (State state: anchors)
+        {
+            ArrayList<Chain> closure = new ArrayList<>();
+            Transition[][] prefix = new Transition[state.closure.length][];
+            Counter[] counter = new Counter[state.closure.length];
+            boolean relay = state.steps.length == 0 && !state.transitions.isEmpty();
+
+            for (int i = 0; i < prefix.length; ++i)
+            {
+                Chain chain = state.closure[i];
+
+                if (chain.parent < 0) {
+                    prefix[i] = chain.trace;
+                    counter[i] = chain.counter;
+                }
+                else {
+                    prefix[i] = concat(prefix[chain.parent], chain.trace);
+                    counter[i] = Counter.then(counter[chain.parent], chain.counter);
+                }
+
+                if (chain.target.transitions.isEmpty())
+                    closure.add(new Chain(prefix[i], chain.target, -1, counter[i]));
+                else
+                    relay &= chain.target.steps.length == 0;
+            }
+
+            closures[state.id] = closure.toArray(new Chain[0]);
+            prefixes[state.id] = prefix;
+            counters[state.id] = counter;
+            relays[state.id] = relay;
+        }
+
+        for (State state: anchors)
+        {
+            ArrayList<Step> hoisted = new ArrayList<>();
+            hoist(hoisted, state.steps, new Transition[0], null, closures, relays);
+
+            for (int i = 0; i < state.closure.length; ++i) {
+                State target = state.closure[i].target;
+                if (!target.transitions.isEmpty())
+                    hoist(hoisted, target.steps, prefixes[state.id][i], counters[state.id][i],
+                        closures, relays);
+            }
+
+            steps[state.id] = hoisted.toArray(new Step[0]);
+        }
+
+        boolean[] reached = new boolean[n];
+        reached[0] = true;
+
+        for (State state: anchors) {
+            for (Step step: steps[state.id])
+                for (Chain chain: step.chains)
+                    reached[chain.target.id] = true;
+            for (Chain chain: closures[state.id])
+                reached[chain.target.id] = true;
+        }
+
+        ArrayList<State> out = new ArrayList<>();
+
+        for (State state: anchors)
+            if (reached[state.id]) {
+                state.steps = steps[state.id];
+                state.closure = closures[state.id];
+                out.add(state);
+            }
+            else {
+                state.steps = null;
+                state.closure = null;
+            }
+
+        for (State state: anchors)
+            state.id = -1;
+
+        for (int i = 0; i < out.size(); ++i)
+            out.get(i).id = i;
+
+        return out;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Appends copies of {@code steps} to {@code out}, whose chains are prefixed with {@code
+     * prefix} (whose counter is {@code counter}), and whose chains reaching a relay (an anchor
+     * state without steps after hoisting) are replaced by chains to the (accepting) states in the
+     * hoisted closure of the relay. The chains that can't be taken anymore once prefixed (cf.
+     * {@link Counter}) are dropped, as are the steps left without chains.
+     */
+    private static void hoist (ArrayList<Step> out, Step[] steps, Transition[] prefix,
+                               Counter counter, Chain[][] closures, boolean[] relays)
+    {
+        for (Step step: steps)
+        {
+            ArrayList<Chain> chains = new ArrayList<>();
+            HashSet<List<Object>> targets = new HashSet<>();
+
+            for (Chain chain: step.chains)
+            {
+                Transition[] trace = concat(prefix, chain.trace);
+                Counter path = Counter.then(counter, chain.counter);
+                if (path != null && !path.possible()) continue;
+
+                if (!relays[chain.target.id]) {
+                    if (targets.add(Arrays.asList(chain.target, path)))
+                        chains.add(new Chain(trace, chain.target, -1, path));
+                    continue;
+                }
+
+                for (Chain next: closures[chain.target.id])
+                {
+                    Counter last = Counter.then(path, next.counter);
+                    if (last != null && !last.possible()) continue;
+                    if (targets.add(Arrays.asList(next.target, last)))
+                        chains.add(new Chain(concat(trace, next.trace), next.target, -1, last));
+                }
+            }
+
+            if (!chains.isEmpty())
+                out.add(new Step(out.size(), step.normal, chains.toArray(new Chain[0])));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Concatenates two chain traces, fusing the PRE or POST transitions around the junction.
+     */
+    private static Transition[] concat (Transition[] a, Transition[] b)
+    {
+        if (a.length == 0) return b;
+        ArrayList<Transition> trace = new ArrayList<>(a.length + b.length);
+        Collections.addAll(trace, a);
+        Collections.addAll(trace, b);
+        return fuse(trace);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Merges the equivalent states amongst {@code anchors} (which must be ordered by id), and
+     * returns the remaining anchor states, renumbered in the same order.
+     * <p>
+     * Two anchor states are equivalent if they are both accepting (for the same regex, in the
+     * automaton of a {@link RegexSet}) or both not, and if their steps and closures match up: same
+     * predicates (compared like {@link CompiledRegexCache} does), and chains performing the same
+     * actions (cf. {@link #fuse(List)}) to reach equivalent anchor states. The equivalence classes
+     * are computed by partition refinement.
+     * <p>
+     * Equivalent checkpoints lead to the same matches, built by the same actions. Each class is
+     * represented by its first anchor state, so that the checkpoint of the class gets its first
+     * link from the first (highest priority) path to one of these checkpoints, just like the
+     * accepting checkpoints it leads to would have: match trees are unchanged.
+     * <p>
+     * A step only retains the first of its chains that reach each class (with the same counter,
+     * cf. {@link Counter}), as the others would only add lower priority links between the same two
+     * checkpoints. Similarly, a closure only retains the first chain reaching each class.
+     */
+    private static ArrayList<State> merge (ArrayList<State> anchors)
+    {
+        int n = anchors.size();
+        int[] classes = new int[n];
+        int count = -1;
+
+        // accepting states are only equivalent if they end matches of the same regex
+        HashMap<Regex, Integer> tags = new HashMap<>();
+
+        for (State state: anchors)
+            classes[state.id] = !state.transitions.isEmpty()
+                ? 0
+                : tags.computeIfAbsent(state.regex, k -> tags.size() + 1);
+
+        while (true)
+        {
+            HashMap<List<Object>, Integer> map = new HashMap<>();
+            int[] refined = new int[n];
+
+            for (State state: anchors) {
+                Integer index = map.putIfAbsent(signature(state, classes), map.size());
+                refined[state.id] = index != null ? index : map.size() - 1;
+            }
+
+            // Each round refines the previous partition, so the class count only grows.
+            boolean stable = map.size() == count;
+            classes = refined;
+            count = map.size();
+            if (stable) break;
+        }
+
+        if (count == n) return anchors;
+
+        State[] reps = new State[count];
+        ArrayList<State> merged = new ArrayList<>();
+
+        for (State state: anchors)
+            if (reps[classes[state.id]] == null) {
+                reps[classes[state.id]] = state;
+                merged.add(state);
+            }
+
+        for (State state: merged)
+        {
+            for (int i = 0; i < state.steps.length; ++i)
+            {
+                Step step = state.steps[i];
+                ArrayList<Chain> chains = new ArrayList<>();
+                HashSet<List<Object>> targets = new HashSet<>();
+
+                for (Chain chain: step.chains) {
+                    State target = reps[classes[chain.target.id]];
+                    if (targets.add(Arrays.asList(target, chain.counter)))
+                        chains.add(new Chain(chain.trace, target, -1, chain.counter));
+                }
+
+                state.steps[i] = new Step(step.index, step.normal, chains.toArray(new Chain[0]));
+            }
+
+            ArrayList<Chain> closure = new ArrayList<>();
+            HashMap<List<Object>, Integer> indexes = new HashMap<>();
+            int[] remap = new int[state.closure.length];
+            indexes.put(Arrays.asList(state, null), -1);
+
+            for (int i = 0; i < state.closure.length; ++i)
+            {
+                Chain chain = state.closure[i];
+                State target = reps[classes[chain.target.id]];
+                List<Object> key = Arrays.asList(target, chain.counter);
+                Integer index = indexes.get(key);
+
+                if (index != null) {
+                    remap[i] = index;
+                    continue;
+                }
+
+                int parent = chain.parent < 0 ? -1 : remap[chain.parent];
+                remap[i] = closure.size();
+                indexes.put(key, closure.size());
+                closure.add(new Chain(chain.trace, target, parent, chain.counter));
+            }
+
+            state.closure = closure.toArray(new Chain[0]);
+        }
+
+        for (State state: anchors)
+            if (reps[classes[state.id]] != state) {
+                state.id = -1;
+                state.steps = null;
+                state.closure = null;
+            }
+
+        for (int i = 0; i < merged.size(); ++i)
+            merged.get(i).id = i;
+
+        return merged;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the signature of an anchor state for {@link #merge}: two anchor states in the same
+     * class of {@code classes} are in the same class of the refined partition iff their signatures
+     * are equal.
+     */
+    private static List<Object> signature (State state, int[] classes)
+    {
+        ArrayList<Object> sig = new ArrayList<>();
+        sig.add(classes[state.id]);
+        sig.add(state.steps.length);
+
+        for (Step step: state.steps) {
+            sig.add(new PredicateKey(step.normal));
+            sig.add(step.chains.length);
+            for (Chain chain: step.chains)
+                signature(sig, chain, classes);
+        }
+
+        sig.add(state.closure.length);
+
+        for (Chain chain: state.closure) {
+            sig.add(chain.parent);
+            signature(sig, chain, classes);
+        }
+
+        return sig;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void signature (ArrayList<Object> sig, Chain chain, int[] classes)
+    {
+        sig.add(chain.trace.length);
+
+        for (Transition t: chain.trace) {
+            sig.add(t.type);
+            sig.add(t.action);
+        }
+
+        sig.add(chain.counter);
+        sig.add(classes[chain.target.id]);
+    }
+
+    // ---------------------------------------------------------------------------------------------
 }
@@ -0,0 +1,60 @@
+package norswap.skelex;
+
+/**
+ * A chain of transitions between two anchor states, precomputed by {@link AutomatonBuilder} so
+ * that the {@link Runner} does not need to walk the PRE and POST transitions on each input item.
+ * <p>
+ * The chain is either input-consuming (PRE* NORMAL POST*) or non-consuming (PRE* POST+). Refer to
+ * {@code doc/implementation.md} for more information on anchor states and transition chains.
+ */
+final class Chain
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The transitions making up the chain, in the order they are taken.
+     */
+    final Transition[] trace;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The anchor state reached at the end of the chain.
+     */
+    final State target;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * For chains in a {@link State#closure}, the index of the chain whose target is the source of
+     * this chain, or -1 if the source is the state owning the closure. Unused (-1) otherwise.
+     */
+    final int parent;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The effect of the chain on the repetition count of the checkpoints (cf. {@link Counter}), or
+     * null if it has none. The counters of the transitions of the chain are not retained in {@link
+     * #trace}, whose transitions may be fused.
+     */
+    final Counter counter;
+
+    // ---------------------------------------------------------------------------------------------
+
+    Chain (Transition[] trace, State target, int parent) {
+        this(trace, target, parent, null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    Chain (Transition[] trace, State target, int parent, Counter counter)
+    {
+        this.trace   = trace;
+        this.target  = target;
+        this.parent  = parent;
+        this.counter = counter;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,35 @@
+package norswap.skelex;
+
+/**
+ * A persistent list of the {@link Chain}s taken to reach a checkpoint, most recent first. Used by
+ * runners created with {@link Runner#pike()} instead of the links between checkpoints.
+ * <p>
+ * Logs are immutable: a checkpoint's log is obtained by prepending the chain it was reached through
+ * to the log of its source checkpoint. This means that the logs of all checkpoints reached from a
+ * common ancestor share their tail, and that the part of a log that isn't referenced by any
+ * retained checkpoint anymore can be garbage collected.
+ */
+final class ChainLog
+{
+    // ---------------------------------------------------------------------------------------------
+
+    final Chain chain;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The log of the source checkpoint, or null if the source is the start checkpoint of its
+     * registration.
+     */
+    final ChainLog prev;
+
+    // ---------------------------------------------------------------------------------------------
+
+    ChainLog (Chain chain, ChainLog prev)
+    {
+        this.chain = chain;
+        this.prev  = prev;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,102 @@
+package norswap.skelex;
+
+import java.util.function.IntPredicate;
+
+/**
+ * Feeds {@code char} input items to a {@link Runner}, without boxing them.
+ * <p>
+ * The predicates of the regexes built with {@link DSL#char_pred(IntPredicate)} are tested on the
+ * items directly. Other predicates are tested on boxed items ({@link Character}), which for
+ * equality predicates on ASCII characters (e.g. {@code DSL.equal('a')}) doesn't allocate, thanks to
+ * the box cache of the JDK. Boxed items are also used to build match trees.
+ * <p>
+ * Everything but feeding input is done through the underlying {@link #runner}: adding regexes,
+ * requesting matches, etc.
+ */
+public final class CharRunner
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The runner this char runner feeds input to. Input items can't be fed to it directly.
+     */
+    public final Runner runner;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a new char runner driving a new {@link Runner}.
+     */
+    public CharRunner() {
+        this(new Runner());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a new char runner driving {@code runner}, which must not have been fed any input
+     * yet. Use this to drive match-only, Pike VM or streaming runners.
+     */
+    public CharRunner (Runner runner)
+    {
+        runner.use_primitive_input(true);
+        this.runner = runner;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private CharRunner (CharRunner other) {
+        this.runner = other.runner.fork();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a char runner driving a fork of {@link #runner} (cf. {@link Runner#fork()}).
+     */
+    public CharRunner fork() {
+        return new CharRunner(this);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Feeds an item of input to the runner (cf. {@link Runner#advance(Object)}).
+     */
+    public void advance (char item) {
+        runner.advance_int(item);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Feeds the items of {@code items} in {@code [from, to)} to the runner, in order.
+     */
+    public void advance (char[] items, int from, int to)
+    {
+        for (int i = from; i < to; ++i)
+            runner.advance_int(items[i]);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Feeds the characters of {@code chars} in {@code [from, to)} to the runner, in order.
+     */
+    public void advance (CharSequence chars, int from, int to)
+    {
+        for (int i = from; i < to; ++i)
+            runner.advance_int(chars.charAt(i));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Feeds the characters of {@code chars} to the runner, in order.
+     */
+    public void advance (CharSequence chars) {
+        advance(chars, 0, chars.length());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -1,38 +1,82 @@
 package norswap.skelex;
 
 import norswap.utils.Arrays;
+import java.util.stream.Stream;
 
 /**
- * Checkpoints are used by the {@link Runner} to record reached states ({@link State}), as well as
- * the path used to reach them (as reverse linked lists of checkpoints).
+ * Checkpoints are used by the {@link Runner} to record reached anchor states ({@link State}), as
+ * well as the path used to reach them (as reverse linked lists of checkpoints, linked by the
+ * {@link Chain}s of transitions between the anchor states).
+ * <p>
+ * Runners created with {@link Runner#pike()} do not link checkpoints, and instead record the path
+ * in a {@link ChainLog}.
+ * <p>
+ * Checkpoints that can't be referenced anymore are recycled by the {@link CheckpointMap} (cf.
+ * {@link #init}), which is why their fields are not final.
  */
 final class Checkpoint
 {
     // ---------------------------------------------------------------------------------------------
 
-    final State state;
+    /**
+     * The table of the automaton being matched.
+     */
+    AnchorTable table;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The id of the anchor state reached by the checkpoint (cf. {@link State#id}).
+     */
+    int state;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The number of items matched so far by the counted repetition that the state belongs to (cf.
+     * {@link Counter}), or 0 if it doesn't belong to a counted repetition. Checkpoints for the
+     * same state but different counts are distinct.
+     */
+    int count;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The regex being matched: the regex of the registration, which can be a {@link
+     * norswap.skelex.regex.RegexSet} (cf. {@link #matched}).
+     */
+    Regex regex;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Value of {@link #start} for checkpoints of registrations made with {@link
+     * Runner#add_anywhere}, which are shared by all the start positions that reach them.
+     */
+    static final int ANYWHERE = -1;
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * The regex being matched.
+     * Input position at which the match was started, or {@link #ANYWHERE}.
      */
-    final Regex regex;
+    int start;
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Input position at which the match was started.
+     * Identifies the registration (the regex and start position) this checkpoint belongs to, within
+     * its runner. Checkpoints that are only created to represent a match (for match-only runners or
+     * for registrations made with {@link Runner#add_anywhere}) have no registration id (-1).
      */
-    final int start;
+    int registration;
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Position at which the checkpoint is stored if it holds an anchor state;
-     * or position of the next checkpoint with an anchor state that (transitively) links to this.
+     * Position at which the checkpoint is stored.
      */
-    final int pos;
+    int pos;
 
     // ---------------------------------------------------------------------------------------------
 
@@ -44,38 +88,106 @@ final class Checkpoint
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Number of incoming transitions.
+     * For checkpoints with start {@link #ANYWHERE}, whether a match starts at this checkpoint's
+     * position (in which case its state is the start state of the automaton).
+     */
+    boolean origin = false;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * For checkpoints with start {@link #ANYWHERE}, the start positions of the matches represented
+     * by this checkpoint (cf. {@link StartSet}), or null. Maintained by the runner as the input is
+     * fed.
+     */
+    int[] starts;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * For runners created with {@link Runner#pike()}, the chains taken along the preferred path to
+     * this checkpoint, which replace the incoming transition chains. Null for other runners, and
+     * for the start checkpoint of a registration.
+     */
+    ChainLog log;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Number of incoming transition chains.
      */
     private int transition_count = 0;
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Container for {@link #transition_count} incoming transitions.
+     * The first incoming transition chain, which is the only one for most checkpoints.
+     */
+    private Chain first_transition;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The source checkpoint of {@link #first_transition}.
+     */
+    private Checkpoint first_source;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Container for the incoming transition chains after the first one, or null if there was
+     * never more than one.
      */
-    private Transition[] transitions = new Transition[1];
+    private Chain[] transitions;
 
     // ---------------------------------------------------------------------------------------------
 
     /**
      * Holds the source checkpoints for the correspond transitions in {@link #transitions}.
      */
-    private Checkpoint[] transources = new Checkpoint[1];
+    private Checkpoint[] transources;
+
+    // ---------------------------------------------------------------------------------------------
+
+    Checkpoint (AnchorTable table, int state, int start, int pos, Regex regex, int registration) {
+        init(table, state, start, pos, regex, registration);
+    }
 
     // ---------------------------------------------------------------------------------------------
 
-    Checkpoint (State state, int start, int pos, Regex regex)
+    /**
+     * (Re-)initializes the checkpoint as if it had just been constructed with the given
+     * parameters, with a count of 0. The arrays holding the incoming transition chains are
+     * retained, so that a recycled checkpoint doesn't need to allocate them again.
+     */
+    void init (AnchorTable table, int state, int start, int pos, Regex regex, int registration)
     {
+        this.table = table;
         this.state = state;
+        this.count = 0;
         this.start = start;
         this.pos = pos;
         this.regex = regex;
+        this.registration = registration;
+        this.live = true;
+        this.origin = false;
+        this.starts = null;
+        this.log = null;
+
+        for (int i = 0; i < transition_count - 1; ++i) {
+            transitions[i] = null;
+            transources[i] = null;
+        }
+
+        first_transition = null;
+        first_source = null;
+        transition_count = 0;
     }
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Returns the number of incoming transitions.
+     * Returns the number of incoming transition chains.
      */
     int transition_count() {
         return transition_count;
@@ -83,76 +195,108 @@ final class Checkpoint
 
     // ---------------------------------------------------------------------------------------------
 
-    Transition transition (int index) {
-        return transitions[index];
+    Chain transition (int index) {
+        return index == 0 ? first_transition : transitions[index - 1];
     }
 
     // ---------------------------------------------------------------------------------------------
 
     Checkpoint transition_source (int index) {
-        return transources[index];
+        return index == 0 ? first_source : transources[index - 1];
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    void add_transition (Checkpoint source, Transition transition)
+    void add_transition (Checkpoint source, Chain transition)
     {
-        if (transition_count == transitions.length) {
-            transitions = Arrays.resize_binary_power(transitions, transition_count + 1);
-            transources = Arrays.resize_binary_power(transources, transition_count + 1);
+        if (transition_count == 0) {
+            first_transition = transition;
+            first_source = source;
+            ++ transition_count;
+            return;
         }
 
-        transitions[transition_count] = transition;
-        transources[transition_count] = source;
+        if (transitions == null) {
+            transitions = new Chain[1];
+            transources = new Checkpoint[1];
+        }
+        else if (transition_count > transitions.length) {
+            transitions = Arrays.resize_binary_power(transitions, transition_count);
+            transources = Arrays.resize_binary_power(transources, transition_count);
+        }
+
+        transitions[transition_count - 1] = transition;
+        transources[transition_count - 1] = source;
         ++ transition_count;
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    void merge_transitions (Checkpoint other)
-    {
-        int new_count = transition_count + other.transition_count;
+    /**
+     * Returns the start position of this checkpoint, or its leftmost start position if its start
+     * is {@link #ANYWHERE}.
+     */
+    int first_start() {
+        return start != ANYWHERE ? start : StartSet.first(starts);
+    }
 
-        if (new_count > transitions.length) {
-            transitions = Arrays.resize_binary_power(transitions, new_count);
-            transources = Arrays.resize_binary_power(transources, new_count);
-        }
+    // ---------------------------------------------------------------------------------------------
 
-        System.arraycopy(
-            other.transitions, 0,
-            transitions, transition_count,
-            other.transition_count);
+    /**
+     * Returns an unlinked checkpoint for the same state, regex and position, but with the given
+     * start position and no registration id. Used to represent a match.
+     */
+    Checkpoint starting_at (int start)
+    {
+        Checkpoint checkpoint = new Checkpoint(table, state, start, pos, regex, -1);
+        checkpoint.count = count;
+        return checkpoint;
+    }
 
-        System.arraycopy(
-            other.transources, 0,
-            transources, transition_count,
-            other.transition_count);
+    // ---------------------------------------------------------------------------------------------
 
-        transition_count = new_count;
+    /**
+     * Returns a checkpoint for each start position of the matches represented by this checkpoint,
+     * whose start is {@link #ANYWHERE}, in increasing order of start position (cf. {@link
+     * #starting_at}).
+     */
+    Stream<Checkpoint> expand() {
+        return StartSet.stream(starts).mapToObj(this::starting_at);
     }
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * A state is accepting (it is the end state of its automaton) if has no outgoing transitions.
+     * Returns an unlinked copy of this checkpoint, whose start is {@link #ANYWHERE}, with no
+     * registration id. Unlike this checkpoint, the copy keeps representing the same matches as the
+     * runner is fed more input (which may add start positions to this checkpoint).
      */
-    boolean accepting() {
-        return state.transitions.isEmpty();
+    Checkpoint frozen()
+    {
+        Checkpoint checkpoint = starting_at(ANYWHERE);
+        checkpoint.starts = starts;
+        return checkpoint;
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    @Override public int hashCode() {
-        return 31 * 31 * state.hashCode() + 31 * regex.hashCode() + start;
+    /**
+     * A state is accepting (it is the end state of its automaton) if has no outgoing transitions.
+     */
+    boolean accepting() {
+        return table.accepting[state];
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    @Override public boolean equals (Object other)
+    /**
+     * Returns the regex matched by this checkpoint, which must be accepting: {@link #regex}, or if
+     * it is a {@link norswap.skelex.regex.RegexSet}, the regex of the set whose match ends here.
+     */
+    Regex matched()
     {
-        if (!(other instanceof Checkpoint)) return false;
-        Checkpoint o = (Checkpoint) other;
-        return state == o.state && regex == o.regex && start == o.start;
+        Regex member = table.regexes == null ? null : table.regexes[state];
+        return member != null ? member : regex;
     }
 
     // ---------------------------------------------------------------------------------------------
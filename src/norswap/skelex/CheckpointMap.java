@@ -1,20 +1,165 @@
 package norswap.skelex;
 
-import norswap.utils.Pair;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.LinkedHashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.function.Predicate;
 
 /**
  * Maps input positions to sets of checkpoints reachable at those positions based on the input
  * seen by a {@link Runner} so far. Each runner maintains a unique checkpoint map.
+ * <p>
+ * The checkpoints of each position are stored in a list, in insertion order. Checkpoints are
+ * identified by the id of their state ({@link State#id}), the id of their registration ({@link
+ * Checkpoint#registration}) and their count ({@link Checkpoint#count}). To deduplicate
+ * checkpoints, the map keeps a single open-addressing hash table from these triples to indices in
+ * the list. This table indexes a single position at a time, and is reused (without being cleared)
+ * when checkpoints are added to another position.
+ * <p>
+ * The map also recycles the checkpoints that it discards, when they can't be referenced anymore:
+ * new checkpoints should be obtained through {@link #checkpoint}.
+ * <p>
+ * A map can be forked ({@link #fork}): both maps then share the checkpoints of the positions before
+ * the fork position, which are not modified anymore once the input has moved past them. If a map
+ * moves back to one of these positions ({@link #clear_last}), it first copies its checkpoints.
  */
 final class CheckpointMap
 {
     // ---------------------------------------------------------------------------------------------
 
-    private final ArrayList<LinkedHashMap<Checkpoint, Checkpoint>> checkpoints = new ArrayList<>();
+    private static final int INITIAL_CAPACITY = 16;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The maximum number of checkpoints retained for recycling.
+     */
+    private static final int MAX_POOL_SIZE = 1 << 14;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final Window<ArrayList<Checkpoint>> checkpoints;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The checkpoints of the positions below this one may be shared with other maps (cf. {@link
+     * #fork}), and must not be modified nor recycled.
+     */
+    private int shared_below = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The position whose checkpoints are indexed by the hash table, or -1 if none.
+     */
+    private int indexed = -1;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The keys of the hash table: a registration id in the high half and an anchor state id in the
+     * low half. The counts are not part of the keys, but are hashed with them, and compared on the
+     * checkpoints the values refer to.
+     */
+    private long[] keys = new long[INITIAL_CAPACITY];
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The values of the hash table: indices in the list of checkpoints of {@link #indexed}.
+     */
+    private int[] values = new int[INITIAL_CAPACITY];
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * A slot of the hash table is occupied iff its stamp is equal to {@link #generation}. This lets
+     * us clear the table in constant time.
+     */
+    private int[] stamps = new int[INITIAL_CAPACITY];
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int generation = 1;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Discarded checkpoints available for recycling.
+     */
+    private final ArrayList<Checkpoint> pool = new ArrayList<>();
+
+    // ---------------------------------------------------------------------------------------------
+
+    CheckpointMap() {
+        checkpoints = new Window<>();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private CheckpointMap (CheckpointMap other) {
+        checkpoints = new Window<>(other.checkpoints);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a copy of this map, which shares the checkpoints of the positions below {@code from}
+     * with this map, and holds copies of the checkpoints of the other positions.
+     */
+    CheckpointMap fork (int from)
+    {
+        CheckpointMap fork = new CheckpointMap(this);
+        shared_below = fork.shared_below = Math.max(shared_below, from);
+
+        for (int i = from; i < checkpoints.end(); ++i)
+            fork.copy(i);
+
+        return fork;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Replaces the checkpoints at the {@code index} position by copies, linked to the same
+     * checkpoints at previous positions, and to each other in the same way as the originals.
+     */
+    private void copy (int index)
+    {
+        ArrayList<Checkpoint> list = checkpoints.get(index);
+        if (list == null) return;
+
+        ArrayList<Checkpoint> copy = new ArrayList<>(list.size());
+        IdentityHashMap<Checkpoint, Checkpoint> copies = new IdentityHashMap<>();
+
+        for (Checkpoint cp: list) {
+            Checkpoint c = new Checkpoint(cp.table, cp.state, cp.start, cp.pos, cp.regex,
+                cp.registration);
+            c.count = cp.count;
+            c.live = cp.live;
+            c.origin = cp.origin;
+            c.starts = cp.starts;
+            c.log = cp.log;
+            copy.add(c);
+            copies.put(cp, c);
+        }
+
+        for (Checkpoint cp: list) {
+            Checkpoint c = copies.get(cp);
+            for (int i = 0; i < cp.transition_count(); ++i) {
+                Checkpoint source = cp.transition_source(i);
+                c.add_transition(copies.getOrDefault(source, source), cp.transition(i));
+            }
+        }
+
+        checkpoints.set(index, copy);
+
+        if (indexed == index)
+            indexed = -1;
+    }
 
     // ---------------------------------------------------------------------------------------------
 
@@ -22,13 +167,10 @@ final class CheckpointMap
      * Returns all checkpoints at the {@code index} position, returning an empty list
      * if no checkpoints are recorded for the given position.
      */
-    Collection<Checkpoint> get (int index)
+    List<Checkpoint> get (int index)
     {
-        if (index >= checkpoints.size())
-            return Collections.emptySet();
-
-        LinkedHashMap<Checkpoint, Checkpoint> map = checkpoints.get(index);
-        return map != null ? map.values() : Collections.emptySet();
+        ArrayList<Checkpoint> list = checkpoints.get(index);
+        return list != null ? list : Collections.emptyList();
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -38,40 +180,93 @@ final class CheckpointMap
      */
     boolean is_empty (int index)
     {
-        if (index >= checkpoints.size())
-            return true;
+        ArrayList<Checkpoint> list = checkpoints.get(index);
+        return list == null || list.isEmpty();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the position following the last position at which checkpoints may be recorded.
+     */
+    int end() {
+        return checkpoints.end();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a checkpoint initialized with the given parameters (cf. {@link Checkpoint#init}),
+     * recycling a discarded checkpoint if possible.
+     */
+    Checkpoint checkpoint (
+            AnchorTable table, int state, int start, int pos, Regex regex, int registration)
+    {
+        if (pool.isEmpty())
+            return new Checkpoint(table, state, start, pos, regex, registration);
+
+        Checkpoint checkpoint = pool.remove(pool.size() - 1);
+        checkpoint.init(table, state, start, pos, regex, registration);
+        return checkpoint;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the checkpoint for the given registration, state and count at the {@code index}
+     * position, or null if there is none.
+     */
+    Checkpoint find (int index, int registration, int state, int count)
+    {
+        ArrayList<Checkpoint> list = checkpoints.get(index);
+        if (list == null) return null;
+
+        if (indexed != index)
+            reindex(index, list);
+
+        long key = key(registration, state);
+        int mask = keys.length - 1;
+
+        for (int slot = hash(key, count) & mask; stamps[slot] == generation;
+                slot = (slot + 1) & mask)
+            if (keys[slot] == key && list.get(values[slot]).count == count)
+                return list.get(values[slot]);
 
-        LinkedHashMap<Checkpoint, Checkpoint> map = checkpoints.get(index);
-        return map == null || map.isEmpty();
+        return null;
     }
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Merge a checkpoint at the {@code index} position, creating the underlying data structures
-     * as needed.
+     * Adds a checkpoint at the {@code index} position, creating the underlying data structures
+     * as needed. There must not already be a checkpoint for the same registration, state and count
+     * at that position (cf. {@link #find}).
      *
      * @param index a position {@code >=} the current position
      */
     void add (int index, Checkpoint checkpoint)
     {
-        while (index >= checkpoints.size())
-            checkpoints.add(null);
+        ArrayList<Checkpoint> list = checkpoints.get(index);
+        if (list == null)
+            checkpoints.set(index, list = new ArrayList<>());
 
-        if (checkpoints.get(index) == null)
-            checkpoints.set(index, new LinkedHashMap<>());
+        if (indexed != index)
+            reindex(index, list);
 
-        LinkedHashMap<Checkpoint, Checkpoint> map = checkpoints.get(index);
-        if (map == null)
-            checkpoints.set(index, map = new LinkedHashMap<>());
+        long key = key(checkpoint.registration, checkpoint.state);
+        int mask = keys.length - 1;
+        int slot = hash(key, checkpoint.count) & mask;
 
-        Checkpoint canonical = map.get(checkpoint);
+        while (stamps[slot] == generation) {
+            assert keys[slot] != key || list.get(values[slot]).count != checkpoint.count;
+            slot = (slot + 1) & mask;
+        }
 
-        if (canonical == null)
-            map.put(checkpoint, checkpoint);
-        else
-            // by construction: only a single transition, which will be different from the others
-            canonical.merge_transitions(checkpoint);
+        list.add(checkpoint);
+        put(slot, key, list.size() - 1);
+
+        if (list.size() * 2 > keys.length)
+            grow(list);
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -82,12 +277,230 @@ final class CheckpointMap
      */
     void clear_last (int pos, int amount)
     {
-        int size = checkpoints.size();
-        if (pos - amount >= size) return;
-        int end = Math.min(size, pos + 1);
+        int end = Math.min(checkpoints.end(), pos + 1);
 
         for (int i = pos + 1 - amount; i < end; ++i)
             checkpoints.set(i, null);
+
+        indexed = -1;
+
+        // checkpoints may be added to the new position
+        if (pos - amount < shared_below) {
+            copy(pos - amount);
+            shared_below = pos - amount;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Removes the checkpoints at the {@code index} position after the {@code size} first ones,
+     * except those whose start is {@link Checkpoint#ANYWHERE} and whose registration id is below
+     * {@code registration}.
+     */
+    void truncate (int index, int size, int registration)
+    {
+        ArrayList<Checkpoint> list = checkpoints.get(index);
+        if (list == null) return;
+        int retained = size;
+
+        for (int i = size; i < list.size(); ++i) {
+            Checkpoint cp = list.get(i);
+            if (cp.start == Checkpoint.ANYWHERE && cp.registration < registration)
+                list.set(retained++, cp);
+        }
+
+        list.subList(retained, list.size()).clear();
+
+        if (indexed == index)
+            indexed = -1;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Discards the checkpoints at the {@code index} position that are not accepting, and recycles
+     * them. This assumes that nothing refers to these checkpoints anymore. Checkpoints can't be
+     * added to the position afterwards.
+     */
+    void retain_accepting (int index)
+    {
+        ArrayList<Checkpoint> list = checkpoints.get(index);
+        if (list == null) return;
+
+        int size = 0;
+
+        for (int i = 0; i < list.size(); ++i) {
+            Checkpoint cp = list.get(i);
+            if (cp.accepting())
+                list.set(size++, cp);
+            else
+                recycle(cp);
+        }
+
+        list.subList(size, list.size()).clear();
+        list.trimToSize();
+
+        if (indexed == index)
+            indexed = -1;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Removes the checkpoints at the {@code index} position that satisfy {@code pred}, except the
+     * accepting ones, which are only marked as not live so that they still represent their match.
+     * <p>
+     * The removed checkpoints may still be referenced by the links of the retained checkpoints of
+     * the same position, so they are not recycled. A checkpoint for the same registration, state
+     * and count must not be added to the position afterwards.
+     */
+    void prune (int index, Predicate<Checkpoint> pred)
+    {
+        ArrayList<Checkpoint> list = checkpoints.get(index);
+        if (list == null) return;
+
+        int size = 0;
+
+        for (int i = 0; i < list.size(); ++i) {
+            Checkpoint cp = list.get(i);
+            if (!pred.test(cp))
+                list.set(size++, cp);
+            else if (cp.accepting()) {
+                cp.live = false;
+                list.set(size++, cp);
+            }
+        }
+
+        if (size == list.size()) return;
+        list.subList(size, list.size()).clear();
+
+        if (indexed == index)
+            indexed = -1;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Discards the checkpoints recorded at positions below {@code below}.
+     * <p>
+     * Checkpoints can only be referenced by the checkpoints of the same registration, so the
+     * discarded checkpoints whose start position is below {@code recycle_below} are recycled, as
+     * long as no retained checkpoint starts below that position. Checkpoints whose start is {@link
+     * Checkpoint#ANYWHERE} are shared between start positions, and are never recycled. Neither are
+     * checkpoints shared with other maps, nor those at or below {@code pinned}, which match streams
+     * may still read (cf. {@link Runner#matches(int)}).
+     */
+    void evict (int below, int recycle_below, int pinned)
+    {
+        int start = Math.max(Math.max(checkpoints.start(), shared_below), pinned + 1);
+
+        for (int i = start; i < below && i < checkpoints.end(); ++i)
+        {
+            ArrayList<Checkpoint> list = checkpoints.get(i);
+            if (list == null) continue;
+
+            for (Checkpoint cp: list)
+                if (cp.start != Checkpoint.ANYWHERE && cp.start < recycle_below)
+                    recycle(cp);
+        }
+
+        checkpoints.evict(below);
+
+        if (indexed < below)
+            indexed = -1;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Makes {@code checkpoint} available to {@link #checkpoint}, unless enough checkpoints are
+     * already available.
+     */
+    private void recycle (Checkpoint checkpoint)
+    {
+        if (pool.size() < MAX_POOL_SIZE)
+            pool.add(checkpoint);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static long key (int registration, int state) {
+        return (long) registration << 32 | state;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static int hash (long key, int count)
+    {
+        long h = (key + count * 0xC2B2AE3D27D4EB4FL) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ h >>> 32);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void put (int slot, long key, int value)
+    {
+        keys[slot] = key;
+        values[slot] = value;
+        stamps[slot] = generation;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Makes the hash table index the checkpoints in {@code list}, at position {@code index}.
+     */
+    private void reindex (int index, ArrayList<Checkpoint> list)
+    {
+        indexed = index;
+
+        if (++ generation == 0) {
+            Arrays.fill(stamps, 0);
+            generation = 1;
+        }
+
+        if (list.size() * 2 > keys.length)
+            grow(list);
+        else
+            insert_all(list);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Doubles the capacity of the hash table until it fits twice the number of items in {@code
+     * list}, then fills it with these items.
+     */
+    private void grow (ArrayList<Checkpoint> list)
+    {
+        int capacity = keys.length;
+        while (list.size() * 2 > capacity) capacity *= 2;
+
+        keys   = new long [capacity];
+        values = new int  [capacity];
+        stamps = new int  [capacity];
+        generation = 1;
+        insert_all(list);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void insert_all (ArrayList<Checkpoint> list)
+    {
+        int mask = keys.length - 1;
+
+        for (int i = 0; i < list.size(); ++i)
+        {
+            Checkpoint checkpoint = list.get(i);
+            long key = key(checkpoint.registration, checkpoint.state);
+            int slot = hash(key, checkpoint.count) & mask;
+
+            while (stamps[slot] == generation)
+                slot = (slot + 1) & mask;
+
+            put(slot, key, i);
+        }
     }
 
     // ---------------------------------------------------------------------------------------------
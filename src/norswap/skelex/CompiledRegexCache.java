@@ -0,0 +1,299 @@
+package norswap.skelex;
+
+import norswap.skelex.dsl.EqualsPredicate;
+import norswap.skelex.regex.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Predicate;
+
+/**
+ * A cache that lets structurally equal regexes share a single compiled automaton, for applications
+ * that generate many regexes at runtime.
+ * <p>
+ * Two regexes are structurally equal if they are of the same class and have equal sub-regexes,
+ * types and predicates. Predicates are equal if they are the same object, or if they are {@link
+ * EqualsPredicate}s of the same class with equal values (e.g. the predicates created by the
+ * {@link DSL} for strings).
+ * <p>
+ * Calling {@link #compile} on a regex compiles it, unless the cache holds the automaton of a
+ * structurally equal regex, in which case the regex reuses it. Either way, matches are reported
+ * for the regex that was registered with the runner. The cache holds at most a fixed number of
+ * automata, and evicts the least recently used one when it is full. {@link RegexSet}s are always
+ * compiled, and not held by the cache.
+ * <p>
+ * The cache also holds the automata of the sub-regexes that recur in the regexes it compiles,
+ * which are copied into the automaton of each regex that contains them, instead of being built
+ * again. Only the states and transitions of these automata are shared: the chains between the
+ * anchor states of each regex are still computed when it is compiled, as they span across its
+ * sub-regexes, and account for most of the compilation time.
+ * <p>
+ * This class is thread-safe. A regex is compiled at most once, even when requested concurrently.
+ */
+public final class CompiledRegexCache
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final LinkedHashMap<Key, Automaton> automata;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The unlinked automata of sub-regexes (cf. {@link #fragment}).
+     */
+    private final LinkedHashMap<Key, Automaton> fragments;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The sub-regexes whose automaton was built once (cf. {@link #seen}).
+     */
+    private final LinkedHashMap<Key, Boolean> seen;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a cache that holds at most {@code capacity} automata, as well as at most {@code
+     * capacity} automata of sub-regexes.
+     */
+    public CompiledRegexCache (int capacity)
+    {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("The capacity must be positive.");
+
+        automata  = lru(capacity);
+        fragments = lru(capacity);
+        seen      = lru(capacity);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static <V> LinkedHashMap<Key, V> lru (int capacity)
+    {
+        return new LinkedHashMap<Key, V>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry (Map.Entry<Key, V> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles {@code regex}, or makes it reuse the automaton of a structurally equal regex held
+     * in the cache. Does nothing if the regex was already compiled. Returns {@code regex}.
+     */
+    public <R extends Regex> R compile (R regex)
+    {
+        regex.automaton(this::lookup);
+        return regex;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of automata held by the cache.
+     */
+    public synchronized int size() {
+        return automata.size();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the unlinked automaton built for a sub-regex structurally equal to the regex of
+     * {@code key}, or null if the cache doesn't hold one. The returned automaton must not be
+     * modified: {@link AutomatonBuilder} splices a copy of it in the automaton being built.
+     */
+    synchronized Automaton fragment (Key key) {
+        return fragments.get(key);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Records that the automaton of the regex of {@code key} is about to be built, because the
+     * cache doesn't hold it (cf. {@link #fragment}). Returns true if this was already recorded for
+     * a structurally equal regex, in which case the automaton should be added to the cache with
+     * {@link #add_fragment}. Caching the automaton of every sub-regex would mostly copy automata
+     * that are never reused (e.g. those of the top-level regexes).
+     */
+    synchronized boolean seen (Key key) {
+        return seen.put(key, true) != null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds the unlinked automaton built for the regex of {@code key} to the cache, unless it
+     * already holds one (cf. {@link #fragment}).
+     */
+    synchronized void add_fragment (Key key, Automaton automaton) {
+        fragments.putIfAbsent(key, automaton);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Automaton lookup (Regex regex)
+    {
+        // a view would report the matches of the set's regexes for those of another set
+        if (regex instanceof RegexSet)
+            return AutomatonBuilder.compile(regex, this);
+
+        Key key = new Key(regex);
+        Automaton automaton;
+
+        synchronized (this) {
+            automaton = automata.get(key);
+        }
+
+        if (automaton != null)
+            return new Automaton(regex, automaton);
+
+        // compile without holding the lock, then keep the first automaton compiled for the key
+        Automaton compiled = AutomatonBuilder.compile(regex, this);
+
+        synchronized (this) {
+            automaton = automata.putIfAbsent(key, compiled);
+        }
+
+        return automaton == null
+            ? compiled
+            : new Automaton(regex, automaton);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Wraps a regex to compare it structurally.
+     */
+    static final class Key
+    {
+        final Regex regex;
+        final int hash;
+
+        Key (Regex regex) {
+            this.regex = regex;
+            this.hash = hash(regex);
+        }
+
+        @Override public int hashCode() {
+            return hash;
+        }
+
+        @Override public boolean equals (Object other) {
+            return other instanceof Key && equal(regex, ((Key) other).regex);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static int hash (Regex regex)
+    {
+        /**/ if (regex instanceof Seq)      return hash(((Seq) regex).items, 1);
+        else if (regex instanceof Choice)   return hash(((Choice) regex).items, 2);
+        else if (regex instanceof Maybe) {
+            Maybe maybe = (Maybe) regex;
+            return 31 * hash(maybe.item) + (maybe.lazy ? 10 : 3);
+        }
+        else if (regex instanceof ZeroMore) {
+            ZeroMore zeromore = (ZeroMore) regex;
+            return 31 * hash(zeromore.item) + (zeromore.lazy ? 11 : 4);
+        }
+        else if (regex instanceof OneMore) {
+            OneMore onemore = (OneMore) regex;
+            return 31 * hash(onemore.item) + (onemore.lazy ? 12 : 5);
+        }
+        else if (regex instanceof Pred)     return 31 * hash(((Pred) regex).pred) + 6;
+        else if (regex instanceof Repeat) {
+            Repeat repeat = (Repeat) regex;
+            return 31 * (31 * (31 * hash(repeat.item) + repeat.min) + repeat.max) + 8;
+        }
+        else if (regex instanceof Separated) {
+            Separated separated = (Separated) regex;
+            return 31 * (31 * (31 * hash(separated.item) + hash(separated.sep))
+                + separated.min) + 9;
+        }
+        else if (regex instanceof Typed) {
+            Typed typed = (Typed) regex;
+            return 31 * (31 * typed.type.hashCode() + hash(typed.pred)) + 7;
+        }
+
+        throw new IllegalArgumentException();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static int hash (Regex[] items, int seed)
+    {
+        int hash = seed;
+        for (Regex item: items)
+            hash = 31 * hash + hash(item);
+        return hash;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static int hash (Predicate<Object> pred)
+    {
+        return pred instanceof EqualsPredicate
+            ? Objects.hashCode(((EqualsPredicate) pred).value)
+            : System.identityHashCode(pred);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static boolean equal (Regex a, Regex b)
+    {
+        if (a == b) return true;
+        if (a.getClass() != b.getClass()) return false;
+
+        /**/ if (a instanceof Seq)      return equal(((Seq) a).items, ((Seq) b).items);
+        else if (a instanceof Choice)   return equal(((Choice) a).items, ((Choice) b).items);
+        else if (a instanceof Maybe)
+            return ((Maybe) a).lazy == ((Maybe) b).lazy
+                && equal(((Maybe) a).item, ((Maybe) b).item);
+        else if (a instanceof ZeroMore)
+            return ((ZeroMore) a).lazy == ((ZeroMore) b).lazy
+                && equal(((ZeroMore) a).item, ((ZeroMore) b).item);
+        else if (a instanceof OneMore)
+            return ((OneMore) a).lazy == ((OneMore) b).lazy
+                && equal(((OneMore) a).item, ((OneMore) b).item);
+        else if (a instanceof Pred)     return equal(((Pred) a).pred, ((Pred) b).pred);
+        else if (a instanceof Typed)
+            return ((Typed) a).type == ((Typed) b).type
+                && equal(((Typed) a).pred, ((Typed) b).pred);
+        else if (a instanceof Repeat)
+            return ((Repeat) a).min == ((Repeat) b).min
+                && ((Repeat) a).max == ((Repeat) b).max
+                && equal(((Repeat) a).item, ((Repeat) b).item);
+        else if (a instanceof Separated)
+            return ((Separated) a).min == ((Separated) b).min
+                && equal(((Separated) a).item, ((Separated) b).item)
+                && equal(((Separated) a).sep, ((Separated) b).sep);
+
+        throw new IllegalArgumentException();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static boolean equal (Regex[] a, Regex[] b)
+    {
+        if (a.length != b.length) return false;
+        for (int i = 0; i < a.length; ++i)
+            if (!equal(a[i], b[i])) return false;
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static boolean equal (Predicate<Object> a, Predicate<Object> b)
+    {
+        return a == b
+            || a instanceof EqualsPredicate
+            && a.getClass() == b.getClass()
+            && Objects.equals(((EqualsPredicate) a).value, ((EqualsPredicate) b).value);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,200 @@
+package norswap.skelex;
+
+/**
+ * The effect of a transition, or of a chain of transitions, on the repetition count of the
+ * checkpoints it links, for automata with counted repetitions (cf. {@link
+ * AutomatonBuilder#build_automaton(norswap.skelex.regex.Repeat)}).
+ * <p>
+ * Instead of copying the automaton of the item once per repetition, a counted repetition loops on
+ * a single copy, and each checkpoint records the number of items matched so far by the repetition
+ * it is in ({@link Checkpoint#count}), which is 0 outside counted repetitions. Repetitions are
+ * only counted when they are not nested in another counted repetition, so a single count per
+ * checkpoint suffices.
+ * <p>
+ * A counter guards the chain, which can only be taken from checkpoints whose count is in {@code
+ * [low, high]}, then either resets the count to a fixed value, or increments it up to a cap. Since
+ * counters are closed under composition (cf. {@link #then}), the counter of a chain is computed
+ * once, from the counters of its transitions. Transitions and chains without effect on the count
+ * have no counter (null).
+ */
+final class Counter
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private static final int MAX = Integer.MAX_VALUE;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * A counter that can't be taken from any checkpoint.
+     */
+    static final Counter NEVER = new Counter(1, 0, -1, 0, MAX);
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The smallest count from which the chain can be taken.
+     */
+    final int low;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The greatest count from which the chain can be taken.
+     */
+    final int high;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The count after the chain, or -1 if it is obtained by incrementing the count of the source.
+     */
+    final int reset;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The amount added to the count of the source, if {@link #reset} is -1.
+     */
+    final int increment;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The greatest count after the chain, if {@link #reset} is -1.
+     */
+    final int cap;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Counter (int low, int high, int reset, int increment, int cap)
+    {
+        this.low = low;
+        this.high = high;
+        this.reset = reset;
+        this.increment = increment;
+        this.cap = cap;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a counter that can only be taken from counts in {@code [low, high]}, and that resets
+     * the count to {@code reset}, or leaves it unchanged if {@code reset} is -1.
+     */
+    static Counter guard (int low, int high, int reset) {
+        return new Counter(low, high, reset, 0, MAX);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a counter that resets the count to {@code value}.
+     */
+    static Counter reset (int value) {
+        return new Counter(0, MAX, value, 0, MAX);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a counter that increments the count, up to {@code cap}.
+     */
+    static Counter increment (int cap) {
+        return new Counter(0, MAX, -1, 1, cap);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the count after the chain, given the count of its source, or -1 if the chain can't
+     * be taken from that count.
+     */
+    int apply (int count)
+    {
+        if (count < low || count > high) return -1;
+        return reset >= 0 ? reset : Math.min(count + increment, cap);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Like {@link #apply(int)}, but {@code counter} may be null (no effect).
+     */
+    static int apply (Counter counter, int count) {
+        return counter == null ? count : counter.apply(count);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the chain can be taken from some count.
+     */
+    boolean possible() {
+        return low <= high;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the greatest count after the chain, or -1 if it is bounded by the count of the
+     * source.
+     */
+    int bound() {
+        return reset >= 0 ? reset : increment > 0 ? cap : -1;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the counter of a chain made of the chain of {@code first}, followed by the chain of
+     * {@code next}. Either counter may be null (no effect), in which case the other is returned.
+     */
+    static Counter then (Counter first, Counter next)
+    {
+        if (first == null) return next;
+        if (next == null || !first.possible()) return first;
+
+        if (first.reset >= 0) {
+            int count = next.apply(first.reset);
+            return count < 0 ? NEVER : guard(first.low, first.high, count);
+        }
+
+        // the count after the first chain, min(count + increment, cap), is non-decreasing
+        if (next.low > first.cap) return NEVER;
+        int low  = Math.max(first.low, next.low - first.increment);
+        int high = next.high < first.cap
+            ? Math.min(first.high, next.high - first.increment)
+            : first.high;
+        if (low > high) return NEVER;
+
+        if (next.reset >= 0)
+            return guard(low, high, next.reset);
+
+        int increment = first.increment + next.increment;
+        int cap = Math.min(first.cap == MAX ? MAX : first.cap + next.increment, next.cap);
+        return new Counter(low, high, -1, increment, cap);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public int hashCode()
+    {
+        int hash = 31 * low + high;
+        hash = 31 * hash + reset;
+        hash = 31 * hash + increment;
+        return 31 * hash + cap;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public boolean equals (Object other)
+    {
+        if (!(other instanceof Counter)) return false;
+        Counter o = (Counter) other;
+        return low == o.low && high == o.high && reset == o.reset
+            && increment == o.increment && cap == o.cap;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
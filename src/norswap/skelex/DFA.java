@@ -0,0 +1,131 @@
+package norswap.skelex;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * A deterministic automaton built lazily from an {@link Automaton}, used by match-only runners
+ * (cf. {@link Runner#match_only()}).
+ * <p>
+ * Each state of the DFA ({@link DFAState}) corresponds to a set of anchor states of the automaton.
+ * These states are only created when they are first reached, and are interned so that each set of
+ * anchor states maps to a single DFA state, whose transitions are cached. In automata with counted
+ * repetitions, the sets hold pairs of an anchor state and a count (cf. {@link Counter}) instead.
+ * <p>
+ * To bound memory usage, the table of interned states is flushed whenever it grows over {@link
+ * #MAX_STATES} entries. Previously created states remain valid, but may get duplicated.
+ * <p>
+ * A DFA is shared by all the runners that match its automaton, possibly on different threads.
+ * Interning is synchronized, while the caches of {@link DFAState} are concurrent maps, so that
+ * the common case (following a cached transition) doesn't take a lock.
+ */
+final class DFA
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Maximum number of interned states.
+     */
+    static final int MAX_STATES = 10_000;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Maps sets of anchor states (represented as sets of indices, cf. {@link #index}) to DFA
+     * states.
+     */
+    private final HashMap<BitSet, DFAState> states = new HashMap<>();
+
+    // ---------------------------------------------------------------------------------------------
+
+    final AnchorTable table;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The number of counts of the automaton's checkpoints (cf. {@link AnchorTable#counts}).
+     */
+    private final int counts;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The DFA state corresponding to the start state of the automaton and its closure.
+     */
+    final DFAState start;
+
+    // ---------------------------------------------------------------------------------------------
+
+    DFA (Automaton automaton)
+    {
+        table = automaton.table;
+        counts = table.counts;
+        BitSet ids = new BitSet();
+        ArrayList<State> members = new ArrayList<>();
+        ArrayList<Integer> member_counts = new ArrayList<>();
+        reach(automaton.start, 0, ids, members, member_counts);
+        start = intern(ids, members, member_counts);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the index of the pair formed by an anchor state and a count in the sets of anchor
+     * states of DFA states.
+     */
+    private int index (State state, int count) {
+        return state.id * counts + count;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds the anchor state {@code state} with the given count, as well as its closure, to the set
+     * of anchor states represented by {@code ids}, {@code members} and {@code member_counts}.
+     */
+    void reach (State state, int count, BitSet ids, ArrayList<State> members,
+                ArrayList<Integer> member_counts)
+    {
+        // if the state is present, so is its closure
+        if (ids.get(index(state, count))) return;
+        ids.set(index(state, count));
+        members.add(state);
+        member_counts.add(count);
+
+        for (Chain chain: state.closure)
+        {
+            int next = Counter.apply(chain.counter, count);
+            if (next < 0 || ids.get(index(chain.target, next))) continue;
+            ids.set(index(chain.target, next));
+            members.add(chain.target);
+            member_counts.add(next);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the DFA state corresponding to the given set of anchor states (represented as {@code
+     * ids}, {@code members} and {@code member_counts}), creating it if necessary.
+     */
+    synchronized DFAState intern (BitSet ids, ArrayList<State> members,
+                                  ArrayList<Integer> member_counts)
+    {
+        DFAState state = states.get(ids);
+
+        if (state == null)
+        {
+            if (states.size() >= MAX_STATES)
+                states.clear();
+
+            int[] counts = member_counts.stream().mapToInt(it -> it).toArray();
+            state = new DFAState(this, ids, members.toArray(new State[0]), counts);
+            states.put(ids, state);
+        }
+
+        return state;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,372 @@
+package norswap.skelex;
+
+import norswap.skelex.dsl.EqualsPredicate;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static norswap.utils.Predicates.TRUE;
+
+/**
+ * A state of a {@link DFA}, corresponding to a set of anchor states of an {@link Automaton} (with
+ * their count, cf. {@link Counter}).
+ * <p>
+ * The successor of a DFA state for a given input item only depends on which predicates of the
+ * NORMAL transitions of its anchor states' steps are satisfied by the item. We call this
+ * information the <b>signature</b> of the item, and cache successors per signature.
+ * <p>
+ * Predicates are opaque in general, so the signature is computed by testing the item against each
+ * distinct predicate (cf. {@link PredicateKey}): the number of tests does not grow with the number
+ * of regexes of a {@link norswap.skelex.regex.RegexSet} sharing a predicate. There are two
+ * exceptions:
+ * <ul>
+ *     <li>{@link EqualsPredicate}s (which include string predicates) are resolved together with a
+ *     single hash lookup on the item.</li>
+ *     <li>The type constraints of transitions built from {@link norswap.skelex.regex.Typed}
+ *     regexes are resolved together, based on the item's class, and cached. If such a transition
+ *     has no additional predicate, it does not need to be tested at all.</li>
+ * </ul>
+ * <p>
+ * Signatures are represented as {@link Long} bitmasks if there are at most 64 distinct predicates,
+ * and as {@link BitSet}s otherwise.
+ */
+final class DFAState
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final DFA dfa;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The set of anchor states represented by this DFA state, as interned by the {@link DFA}.
+     */
+    final BitSet ids;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The anchor states represented by this DFA state. An anchor state may appear multiple times,
+     * with different counts.
+     */
+    final State[] states;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The count of each of {@link #states}.
+     */
+    final int[] counts;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether one of {@link #states} is accepting.
+     */
+    final boolean accepting;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether one of {@link #states} is productive with its count (cf. {@link
+     * AnchorTable#productive(int, int)}), i.e. whether a registration in this state can still
+     * match after consuming more input.
+     */
+    final boolean productive;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * For each distinct predicate of the NORMAL transitions of the steps of {@link #states}, a
+     * NORMAL transition that has this predicate.
+     */
+    private final Transition[] tests;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * For each step of {@link #states} (in iteration order), the index of its NORMAL transition's
+     * predicate within {@link #tests}.
+     */
+    private final int[] step_tests;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether signatures are {@link Long} (true) or {@link BitSet} (false).
+     */
+    private final boolean small;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Maps the values of the {@link EqualsPredicate} {@link #tests} to the (partial) signature of
+     * items equal to them. Null if there are no such tests.
+     */
+    private final HashMap<Object, Object> literals;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Indices of the {@link #tests} whose transition has a type constraint.
+     */
+    private final int[] typed;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Indices of the {@link #tests} that are neither equality predicates nor type constraints.
+     */
+    private final int[] opaque;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Maps item classes to the partial signature obtained from the {@link #typed} tests.
+     */
+    private final ConcurrentHashMap<Class<?>, ClassSignature> classes = new ConcurrentHashMap<>();
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Maps signatures to the successor of this state for the items that have them.
+     */
+    private final ConcurrentHashMap<Object, DFAState> successors = new ConcurrentHashMap<>();
+
+    // ---------------------------------------------------------------------------------------------
+
+    DFAState (DFA dfa, BitSet ids, State[] states, int[] counts)
+    {
+        this.dfa = dfa;
+        this.ids = ids;
+        this.states = states;
+        this.counts = counts;
+
+        boolean accepting = false;
+        boolean productive = false;
+        HashMap<PredicateKey, Integer> indices = new HashMap<>();
+        ArrayList<Transition> tests = new ArrayList<>();
+        ArrayList<Integer> step_tests = new ArrayList<>();
+
+        for (int i = 0; i < states.length; ++i)
+        {
+            State state = states[i];
+            accepting |= state.transitions.isEmpty();
+            productive |= dfa.table.productive(state.id, counts[i]);
+
+            for (Step step: state.steps)
+            {
+                PredicateKey key = new PredicateKey(step.normal);
+                Integer index = indices.get(key);
+                if (index == null) {
+                    index = tests.size();
+                    indices.put(key, index);
+                    tests.add(step.normal);
+                }
+                step_tests.add(index);
+            }
+        }
+
+        this.accepting  = accepting;
+        this.productive = productive;
+        this.tests      = tests.toArray(new Transition[0]);
+        this.step_tests = step_tests.stream().mapToInt(it -> it).toArray();
+        this.small      = this.tests.length <= 64;
+
+        ArrayList<Integer> typed = new ArrayList<>();
+        ArrayList<Integer> opaque = new ArrayList<>();
+        HashMap<Object, BitSet> literals = new HashMap<>();
+
+        for (int i = 0; i < this.tests.length; ++i)
+        {
+            Transition test = this.tests[i];
+
+            if (test.klass != null)
+                typed.add(i);
+            else if (test.predicate instanceof EqualsPredicate)
+                literals.computeIfAbsent(((EqualsPredicate) test.predicate).value,
+                    k -> new BitSet()).set(i);
+            else
+                opaque.add(i);
+        }
+
+        this.typed  = typed .stream().mapToInt(it -> it).toArray();
+        this.opaque = opaque.stream().mapToInt(it -> it).toArray();
+
+        if (literals.isEmpty())
+            this.literals = null;
+        else {
+            this.literals = new HashMap<>();
+            literals.forEach((k, v) -> this.literals.put(k, small ? to_long(v) : v));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static long to_long (BitSet set)
+    {
+        long[] words = set.toLongArray();
+        return words.length == 0 ? 0L : words[0];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Partial signature of the items of a given class, with regard to the {@link #typed} tests.
+     */
+    private static final class ClassSignature
+    {
+        /**
+         * The tests whose type constraint is satisfied and that have no further predicate.
+         */
+        final BitSet satisfied = new BitSet();
+
+        /**
+         * {@link #satisfied}, as a {@code long}, if signatures are small.
+         */
+        long satisfied_long;
+
+        /**
+         * Indices of the tests whose type constraint is satisfied, but whose {@link
+         * Transition#refinement} must still be tested.
+         */
+        int[] refined;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ClassSignature class_signature (Class<?> klass)
+    {
+        ClassSignature sig = classes.get(klass);
+        if (sig != null) return sig;
+
+        sig = new ClassSignature();
+        ArrayList<Integer> refined = new ArrayList<>();
+
+        for (int i: typed)
+        {
+            Transition test = tests[i];
+            if (!test.klass.isAssignableFrom(klass)) continue;
+            if (test.refinement == TRUE)
+                sig.satisfied.set(i);
+            else
+                refined.add(i);
+        }
+
+        sig.satisfied_long = small ? to_long(sig.satisfied) : 0;
+        sig.refined = refined.stream().mapToInt(it -> it).toArray();
+        ClassSignature prev = classes.putIfAbsent(klass, sig);
+        return prev != null ? prev : sig;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the signature of the item: which of the {@link #tests} it satisfies.
+     */
+    private Object signature (Object item)
+    {
+        if (item == null) {
+            // no hash or class lookups possible
+            BitSet mask = new BitSet(tests.length);
+            for (int i = 0; i < tests.length; ++i)
+                if (tests[i].predicate.test(null))
+                    mask.set(i);
+            return small ? (Object) to_long(mask) : mask;
+        }
+
+        ClassSignature sig = typed.length > 0 ? class_signature(item.getClass()) : null;
+
+        if (small)
+        {
+            long mask = literals == null ? 0 : (Long) literals.getOrDefault(item, 0L);
+
+            if (sig != null) {
+                mask |= sig.satisfied_long;
+                for (int i: sig.refined)
+                    if (tests[i].refinement.test(item))
+                        mask |= 1L << i;
+            }
+
+            for (int i: opaque)
+                if (tests[i].predicate.test(item))
+                    mask |= 1L << i;
+
+            return mask;
+        }
+
+        BitSet mask = new BitSet(tests.length);
+
+        if (literals != null) {
+            Object lit = literals.get(item);
+            if (lit != null) mask.or((BitSet) lit);
+        }
+
+        if (sig != null) {
+            mask.or(sig.satisfied);
+            for (int i: sig.refined)
+                if (tests[i].refinement.test(item))
+                    mask.set(i);
+        }
+
+        for (int i: opaque)
+            if (tests[i].predicate.test(item))
+                mask.set(i);
+
+        return mask;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the DFA state reached by consuming {@code item} from this state. The returned state
+     * has no anchor states if no match can proceed.
+     */
+    DFAState next (Object item)
+    {
+        Object signature = signature(item);
+        DFAState next = successors.get(signature);
+
+        if (next == null) {
+            // another thread may compute the same successor concurrently: keep the first one
+            next = successor(signature);
+            DFAState prev = successors.putIfAbsent(signature, next);
+            if (prev != null) next = prev;
+        }
+
+        return next;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private boolean satisfied (Object signature, int test)
+    {
+        return small
+            ? ((Long) signature & (1L << test)) != 0
+            : ((BitSet) signature).get(test);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private DFAState successor (Object signature)
+    {
+        BitSet ids = new BitSet();
+        ArrayList<State> members = new ArrayList<>();
+        ArrayList<Integer> member_counts = new ArrayList<>();
+        int i = 0;
+
+        for (int j = 0; j < states.length; ++j)
+            for (Step step: states[j].steps)
+                if (satisfied(signature, step_tests[i++]))
+                    for (Chain chain: step.chains) {
+                        int count = Counter.apply(chain.counter, counts[j]);
+                        if (count >= 0)
+                            dfa.reach(chain.target, count, ids, members, member_counts);
+                    }
+
+        return dfa.intern(ids, members, member_counts);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -2,6 +2,7 @@ package norswap.skelex;
 
 import norswap.skelex.regex.*;
 import norswap.skelex.dsl.*;
+import java.util.function.IntPredicate;
 import java.util.function.Predicate;
 
 import static norswap.skelex.dsl.Conversions.*;
@@ -53,6 +54,15 @@ public final class DSL
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Constructs a new {@link Pred} regex that matches if the input item equals {@code value}.
+     */
+    public static Pred equal (Object value) {
+        return new Pred(new EqualsPredicate(value));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * Constructs a {@link Pred} regex.
      */
@@ -62,6 +72,28 @@ public final class DSL
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Constructs a new {@link Pred} regex that matches {@link Integer} input items whose value
+     * satisfies {@code pred}. Such regexes can be matched by an {@link IntRunner} without boxing
+     * the input items.
+     */
+    public static Pred int_pred (IntPredicate pred) {
+        return new Pred(new IntItemPredicate(pred, false));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Constructs a new {@link Pred} regex that matches {@link Character} input items whose value
+     * satisfies {@code pred}. Such regexes can be matched by a {@link CharRunner} without boxing
+     * the input items.
+     */
+    public static Pred char_pred (IntPredicate pred) {
+        return new Pred(new IntItemPredicate(pred, true));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * Constructs a {@link Seq} regex, converting the passed objects into regexes
      * via {@link Conversions#regex}.
@@ -142,6 +174,108 @@ public final class DSL
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Constructs a lazy {@link Maybe} regex (cf. {@link Maybe#lazy}), converting the passed
+     * object into a regex via {@link Conversions#regex}.
+     */
+    public static Maybe maybe_lazy (Object obj) {
+        return new Maybe(regex(obj), true);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Constructs a lazy {@link Maybe} regex (cf. {@link Maybe#lazy}), wrapping a sequence of
+     * regexes obtained by converting the items in {@code objs} via {@link Conversions#regex}.
+     */
+    public static Maybe maybe_lazy (Object... objs) {
+        return new Maybe(seq(objs), true);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Constructs a lazy {@link ZeroMore} regex (cf. {@link ZeroMore#lazy}), converting the passed
+     * object into a regex via {@link Conversions#regex}.
+     */
+    public static ZeroMore zeromore_lazy (Object obj) {
+        return new ZeroMore(regex(obj), true);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Constructs a lazy {@link ZeroMore} regex (cf. {@link ZeroMore#lazy}), wrapping a sequence of
+     * regexes obtained by converting the items in {@code objs} via {@link Conversions#regex}.
+     */
+    public static ZeroMore zeromore_lazy (Object... objs) {
+        return new ZeroMore(seq(objs), true);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Constructs a lazy {@link OneMore} regex (cf. {@link OneMore#lazy}), converting the passed
+     * object into a regex via {@link Conversions#regex}.
+     */
+    public static OneMore onemore_lazy (Object obj) {
+        return new OneMore(regex(obj), true);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Constructs a lazy {@link OneMore} regex (cf. {@link OneMore#lazy}), wrapping a sequence of
+     * regexes obtained by converting the items in {@code objs} via {@link Conversions#regex}.
+     */
+    public static OneMore onemore_lazy (Object... objs) {
+        return new OneMore(seq(objs), true);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Constructs a {@link Repeat} regex matching between {@code min} and {@code max} repetitions
+     * (cf. {@link Repeat#UNBOUNDED}), converting the passed object into a regex via {@link
+     * Conversions#regex}.
+     */
+    public static Repeat repeat (Object obj, int min, int max) {
+        return new Repeat(regex(obj), min, max);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Constructs a {@link Repeat} regex matching {@code min} or more repetitions, converting the
+     * passed object into a regex via {@link Conversions#regex}.
+     */
+    public static Repeat repeat (Object obj, int min) {
+        return new Repeat(regex(obj), min, Repeat.UNBOUNDED);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Constructs a {@link Separated} regex matching {@code min} or more repetitions of {@code
+     * item} separated by {@code sep}, converting the passed objects into regexes via {@link
+     * Conversions#regex}.
+     */
+    public static Separated separated (Object item, Object sep, int min) {
+        return new Separated(regex(item), regex(sep), min);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Constructs a {@link RegexSet}, converting the passed objects into regexes via {@link
+     * Conversions#regex}.
+     */
+    public static RegexSet regex_set (Object... objs) {
+        return new RegexSet(regexes(objs));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * Creates an empty {@link ChoiceBuilder}.
      */
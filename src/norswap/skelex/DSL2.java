@@ -22,6 +22,9 @@ import static norswap.utils.Vanilla.concat;
  * <p>
  * To alleviate this issue, this class includes methods with the same name as the regexes whose role
  * is to extract better-looking trees from the tree or match nodes generated by the regex.
+ * <p>
+ * Alternatively, {@link DSL#repeat(Object, int, int)} and {@link DSL#separated(Object, Object,
+ * int)} are primitive regexes that produce flat match nodes directly.
  */
 public final class DSL2
 {
@@ -0,0 +1,293 @@
+package norswap.skelex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Matches a fixed set of regexes starting at every position of an input that can be edited
+ * (inserting, removing or replacing items at arbitrary positions), for instance to highlight
+ * structures in a document as it is typed.
+ * <p>
+ * Like a match-only {@link Runner}, this does not produce match trees, but only {@link Match}
+ * objects ({@link #matches}). This is equivalent to a match-only runner to which the regexes are
+ * added before feeding each item, as well as after the last item.
+ * <p>
+ * After an edit at position {@code k}, the matches ending at or before {@code k} are unchanged.
+ * The progression of the regexes is recomputed from there, until it reaches a position where it is
+ * the same as before the edit: the matches from there on are the same as before, shifted by the
+ * number of inserted or removed items. Each edit method returns that position (or {@code size() +
+ * 1} if there is none), so that the matches ending in {@code [k + 1, returned)} are the only ones
+ * that may have changed.
+ * <p>
+ * After an insertion or removal, the registrations made before the edit have consumed one item
+ * more or less than before, so the progression can only converge once none of them is still
+ * alive. The cost of an edit is thus proportional to the length of the matches (and failed match
+ * attempts) that overlap it, not to the size of the input. Positions are represented in a list
+ * however, so an insertion or removal also has to shift the positions that follow it, which is
+ * cheap in comparison.
+ */
+public final class IncrementalMatcher
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final Regex[] regexes;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The DFA state corresponding to the start of each regex.
+     */
+    private final DFAState[] starts;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final ArrayList<Object> input = new ArrayList<>();
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * For each input position (including the position after the last item), the registrations
+     * still able to match at this position.
+     */
+    private final ArrayList<Progress> progress = new ArrayList<>();
+
+    // ---------------------------------------------------------------------------------------------
+
+    public IncrementalMatcher (Regex... regexes)
+    {
+        this.regexes = regexes.clone();
+        this.starts = new DFAState[regexes.length];
+
+        for (int i = 0; i < regexes.length; ++i)
+            starts[i] = regexes[i].automaton().dfa().start;
+
+        progress.add(step(null, null));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The registrations that are still able to match at a given position, and the DFA state each
+     * has reached. Instead of its start position, each registration records its age: the number
+     * of items it has consumed. This makes the registrations of a position independent of the
+     * position itself, so that they can be compared across edits that shift positions.
+     * <p>
+     * Registrations are ordered by decreasing age, then by regex index, making that order
+     * canonical.
+     */
+    private static final class Progress
+    {
+        int size = 0;
+        int[] regexes;
+        int[] ages;
+        DFAState[] states;
+
+        Progress (int capacity)
+        {
+            regexes = new int[capacity];
+            ages    = new int[capacity];
+            states  = new DFAState[capacity];
+        }
+
+        void append (int regex, int age, DFAState state)
+        {
+            if (size == regexes.length) {
+                regexes = Arrays.copyOf(regexes, size * 2);
+                ages    = Arrays.copyOf(ages,    size * 2);
+                states  = Arrays.copyOf(states,  size * 2);
+            }
+
+            regexes [size] = regex;
+            ages    [size] = age;
+            states  [size] = state;
+            ++ size;
+        }
+
+        boolean same (Progress other)
+        {
+            if (size != other.size) return false;
+
+            for (int i = 0; i < size; ++i)
+                if (regexes[i] != other.regexes[i]
+                        || ages[i] != other.ages[i]
+                        || states[i] != other.states[i])
+                    return false;
+
+            return true;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the registrations reached by consuming {@code item} from {@code prev}, followed by
+     * a fresh registration of each regex. If {@code prev} is null, only returns the latter.
+     */
+    private Progress step (Progress prev, Object item)
+    {
+        Progress next = new Progress((prev == null ? 0 : prev.size) + regexes.length);
+
+        if (prev != null)
+            for (int i = 0; i < prev.size; ++i) {
+                DFAState state = prev.states[i].next(item);
+                if (state.states.length > 0)
+                    next.append(prev.regexes[i], prev.ages[i] + 1, state);
+            }
+
+        for (int i = 0; i < regexes.length; ++i)
+            next.append(i, 0, starts[i]);
+
+        return next;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of input items.
+     */
+    public int size() {
+        return input.size();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns an unmodifiable view of the input.
+     */
+    public List<Object> input() {
+        return Collections.unmodifiableList(input);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Appends an item to the input. Equivalent to {@code insert(size(), item)}.
+     */
+    public int advance (Object item) {
+        return insert(input.size(), item);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Inserts an item at position {@code index}, shifting the following items. Returns the end of
+     * the range of positions whose matches may have changed (cf. {@link IncrementalMatcher}).
+     */
+    public int insert (int index, Object item)
+    {
+        if (index < 0 || index > input.size())
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + input.size());
+
+        input.add(index, item);
+        // the progress at index doesn't change, and the old progress at p is now at p + 1
+        progress.add(index, progress.get(index));
+        return update(index);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Removes the item at position {@code index}, shifting the following items. Returns the end of
+     * the range of positions whose matches may have changed (cf. {@link IncrementalMatcher}).
+     */
+    public int remove (int index)
+    {
+        check_index(index);
+        input.remove(index);
+        // the old progress at p + 1 is now at p
+        progress.remove(index + 1);
+        return update(index);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Replaces the item at position {@code index}. Returns the end of the range of positions whose
+     * matches may have changed (cf. {@link IncrementalMatcher}).
+     */
+    public int replace (int index, Object item)
+    {
+        check_index(index);
+        input.set(index, item);
+        return update(index);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void check_index (int index)
+    {
+        if (index < 0 || index >= input.size())
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + input.size());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Recomputes the progress of the positions following {@code index}, where the input was edited,
+     * until it is the same as the progress of the position before the edit. Assumes that the list
+     * of progress has been shifted to match the new input.
+     */
+    private int update (int index)
+    {
+        int pos = index + 1;
+
+        for (; pos <= input.size(); ++pos)
+        {
+            Progress next = step(progress.get(pos - 1), input.get(pos - 1));
+
+            if (pos == progress.size())
+                progress.add(next);
+            else if (next.same(progress.get(pos)))
+                return pos;
+            else
+                progress.set(pos, next);
+        }
+
+        return pos;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the matches that end at position {@code end}.
+     */
+    public List<Match> matches (int end)
+    {
+        if (end < 0 || end > input.size())
+            throw new IndexOutOfBoundsException("end: " + end + ", size: " + input.size());
+
+        Progress regs = progress.get(end);
+        ArrayList<Match> matches = new ArrayList<>();
+
+        for (int i = 0; i < regs.size; ++i)
+        {
+            if (!regs.states[i].accepting) continue;
+            Regex regex = regexes[regs.regexes[i]];
+
+            // the automaton of a regex set has one accepting state per regex of the set
+            for (State state: regs.states[i].states)
+                if (state.transitions.isEmpty())
+                    matches.add(new Match(state.regex != null ? state.regex : regex,
+                        end - regs.ages[i], end));
+        }
+
+        return matches;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the longest match that ends at position {@code end}, or null if there is none. If
+     * multiple matches have the same extent, returns the match of the regex that comes first in
+     * the constructor's arguments.
+     */
+    public Match longest (int end)
+    {
+        List<Match> matches = matches(end);
+        return matches.isEmpty() ? null : matches.get(0);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,91 @@
+package norswap.skelex;
+
+import java.util.function.IntPredicate;
+
+/**
+ * Feeds {@code int} input items (e.g. token kinds) to a {@link Runner}, without boxing them.
+ * <p>
+ * The predicates of the regexes built with {@link DSL#int_pred(IntPredicate)} are tested on the
+ * items directly. Other predicates are tested on boxed items ({@link Integer}), which for equality
+ * predicates on small values (e.g. {@code DSL.equal(42)}) doesn't allocate, thanks to the box
+ * cache of the JDK. Boxed items are also used to build match trees.
+ * <p>
+ * Everything but feeding input is done through the underlying {@link #runner}: adding regexes,
+ * requesting matches, etc.
+ */
+public final class IntRunner
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The runner this int runner feeds input to. Input items can't be fed to it directly.
+     */
+    public final Runner runner;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a new int runner driving a new {@link Runner}.
+     */
+    public IntRunner() {
+        this(new Runner());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a new int runner driving {@code runner}, which must not have been fed any input
+     * yet. Use this to drive match-only, Pike VM or streaming runners.
+     */
+    public IntRunner (Runner runner)
+    {
+        runner.use_primitive_input(false);
+        this.runner = runner;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private IntRunner (IntRunner other) {
+        this.runner = other.runner.fork();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns an int runner driving a fork of {@link #runner} (cf. {@link Runner#fork()}).
+     */
+    public IntRunner fork() {
+        return new IntRunner(this);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Feeds an item of input to the runner (cf. {@link Runner#advance(Object)}).
+     */
+    public void advance (int item) {
+        runner.advance_int(item);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Feeds the items of {@code items} in {@code [from, to)} to the runner, in order.
+     */
+    public void advance (int[] items, int from, int to)
+    {
+        for (int i = from; i < to; ++i)
+            runner.advance_int(items[i]);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Feeds a set of input items to the runner, in order.
+     */
+    public void advance (int... items) {
+        advance(items, 0, items.length);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,129 @@
+package norswap.skelex;
+
+import java.util.Arrays;
+
+/**
+ * Like {@link Window}, but for {@code int} items: used to store the input of the runners driven by
+ * an {@link IntRunner} or a {@link CharRunner}, without boxing it.
+ * <p>
+ * Evicted items are simply forgotten, and the underlying storage is only compacted once the
+ * evicted prefix makes up at least half of it.
+ */
+final class IntWindow
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private static final int MIN_COMPACTION = 64;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int[] items = new int[16];
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int size = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The position of the first item in {@link #items}.
+     */
+    private int offset = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The position of the first item that wasn't evicted.
+     */
+    private int start = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    IntWindow() {}
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a copy of {@code other}, holding the same items.
+     */
+    IntWindow (IntWindow other)
+    {
+        items = other.items.clone();
+        size = other.size;
+        offset = other.offset;
+        start = other.start;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the position of the first item that wasn't evicted.
+     */
+    int start() {
+        return start;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the position following the last item.
+     */
+    int end() {
+        return offset + size;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the item at the given position, which must not have been evicted.
+     */
+    int get (int index)
+    {
+        assert start <= index && index < end();
+        return items[index - offset];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Appends an item at position {@link #end()}.
+     */
+    void add (int item)
+    {
+        if (size == items.length)
+            items = Arrays.copyOf(items, size * 2);
+
+        items[size++] = item;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Removes all items at or after position {@code end} (which must not have been evicted).
+     */
+    void truncate (int end)
+    {
+        assert end >= start;
+        size = Math.min(size, end - offset);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Evicts all items below position {@code below}.
+     */
+    void evict (int below)
+    {
+        if (below <= start) return;
+        start = below;
+        int dead = Math.min(start, end()) - offset;
+
+        if (dead >= MIN_COMPACTION && dead >= size / 2) {
+            System.arraycopy(items, dead, items, 0, size - dead);
+            size -= dead;
+            offset += dead;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
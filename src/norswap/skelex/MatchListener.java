@@ -0,0 +1,14 @@
+package norswap.skelex;
+
+/**
+ * A callback notified of the matches of a regex as soon as a {@link Runner} finds them (cf. {@link
+ * Runner#on_match}).
+ */
+@FunctionalInterface
+public interface MatchListener
+{
+    /**
+     * Called with a match, right after the runner was fed the input item that ends it.
+     */
+    void on_match (Match match);
+}
@@ -1,5 +1,6 @@
 package norswap.skelex;
 
+import norswap.skelex.regex.RegexSet;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
@@ -37,17 +38,25 @@ public final class MatchStream
             return new MatchStream(Stream.empty(), null);
 
         Runner runner = streams[0].runner;
+        int pins = 0;
+
+        for (MatchStream stream: streams) {
+            if (stream.runner != runner)
+                throw new IllegalArgumentException(
+                    "Passed match streams were generated by different runners.");
+            pins += stream.pins;
+        }
+
+        for (MatchStream stream: streams)
+            stream.pins = 0;
 
         Stream<Checkpoint> checkpoints = Stream.of(streams)
-            .map(it -> {
-                if (it.runner != runner)
-                    throw new IllegalArgumentException(
-                        "Passed match streams were generated by different runners.");
-                return it.stream;
-            })
+            .map(it -> it.stream)
             .flatMap(Function.identity());
 
-        return new MatchStream(checkpoints, runner);
+        MatchStream concat = new MatchStream(checkpoints, runner);
+        concat.pins = pins;
+        return concat;
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -63,6 +72,14 @@ public final class MatchStream
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * The number of streams returned by {@link Runner#matches(int)} that this stream represents,
+     * and for which the runner must retain memory until a terminal operation is called.
+     */
+    int pins = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
     MatchStream (Stream<Checkpoint> stream, Runner runner)
     {
         this.stream = stream;
@@ -71,25 +88,57 @@ public final class MatchStream
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Lets the runner recycle the memory this stream refers to, which must be called by terminal
+     * operations before consuming the stream (cf. {@link Runner#matches(int)}).
+     */
+    private void release()
+    {
+        if (pins > 0)
+            runner.release(pins);
+        pins = 0;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Replaces the checkpoints whose start is {@link Checkpoint#ANYWHERE} in the stream by a
+     * checkpoint for each of the start positions they represent (cf. {@link Runner#add_anywhere}).
+     * <p>
+     * This is only done when the operation requires to consider every match individually, as the
+     * number of such matches can be quadratic in the input size.
+     */
+    private Stream<Checkpoint> expanded()
+    {
+        return stream.flatMap(it -> it.start == Checkpoint.ANYWHERE
+            ? it.expand()
+            : Stream.of(it));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * Filters the matches to only preserve those for the given registration.<p>
      * This is an intermediate operation and returns this stream.
      */
     public MatchStream for_registration (Regex regex, int start)
     {
-        stream = stream.filter(it -> it.regex == regex && it.start == start);
+        stream = stream.filter(it -> it.regex == regex);
+        stream = expanded().filter(it -> it.start == start);
         return this;
     }
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Filters the matches to only preserve those for {@code regex}.<p>
+     * Filters the matches to only preserve those for {@code regex}, which can be one of the regexes
+     * of a registered {@link RegexSet}, or the set itself (preserving the matches of all its
+     * regexes).<p>
      * This is an intermediate operation and returns this stream.
      */
     public MatchStream for_regex (Regex regex)
     {
-        stream = stream.filter(it -> it.regex == regex);
+        stream = stream.filter(it -> it.regex == regex || it.matched() == regex);
         return this;
     }
 
@@ -101,7 +150,7 @@ public final class MatchStream
      */
     public MatchStream for_starting_pos (int start)
     {
-        stream = stream.filter(it -> it.start == start);
+        stream = expanded().filter(it -> it.start == start);
         return this;
     }
 
@@ -126,39 +175,54 @@ public final class MatchStream
      */
     public MatchStream for_range (int start, int end)
     {
-        stream = stream.filter(it -> it.start == start && it.pos == end);
+        stream = stream.filter(it -> it.pos == end);
+        stream = expanded().filter(it -> it.start == start);
         return this;
     }
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Filters the matches to only preserve those for {@code regex} starting at position {@code
-     * start} and ending at position {@code end}.<p>
+     * Filters the matches to only preserve those for {@code regex} (as defined by {@link
+     * #for_regex}) starting at position {@code start} and ending at position {@code end}.<p>
      * This is an intermediate operation and returns this stream.
      */
     public MatchStream for_range (int start, int end, Regex regex)
     {
-        stream = stream.filter(it -> it.regex == regex && it.start == start && it.pos == end);
+        stream = stream.filter(it -> (it.regex == regex || it.matched() == regex) && it.pos == end);
+        stream = expanded().filter(it -> it.start == start);
         return this;
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private Checkpoint longest_checkpoint() {
-        return stream.max(Comparator.comparingInt(it -> it.pos - it.start)).orElse(null);
+    private Checkpoint longest_checkpoint()
+    {
+        release();
+        return stream.max(Comparator.comparingInt(it -> it.pos - it.first_start())).orElse(null);
     }
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Checkpoints whose start is {@link Checkpoint#ANYWHERE} are converted to their longest match.
+     */
     private Match checkpoint_to_match (Checkpoint cp) {
-        return cp == null ? null : new Match(cp.regex, cp.start, cp.pos);
+        return cp == null ? null : new Match(cp.matched(), cp.first_start(), cp.pos);
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private MatchTree checkpoint_to_tree (Checkpoint cp) {
-        return cp == null ? null : runner.tree(cp, cp.pos);
+    /**
+     * Checkpoints whose start is {@link Checkpoint#ANYWHERE} are converted to their longest match.
+     */
+    private MatchTree checkpoint_to_tree (Checkpoint cp)
+    {
+        if (cp == null) return null;
+
+        return cp.start != Checkpoint.ANYWHERE
+            ? runner.tree(cp, cp.pos)
+            : runner.tree(cp.starting_at(cp.first_start()), cp.pos);
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -192,12 +256,28 @@ public final class MatchStream
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Same as {@link #longest_tree}, but returns a compact {@link SpanTree}, which only records the
+     * span of input matched by each node of the tree.
+     * <p>
+     * This is a final operation.
+     */
+    public SpanTree longest_span_tree()
+    {
+        MatchTree tree = longest_tree();
+        return tree == null ? null : tree.span_tree();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * Returns a map from regexes to the longest match for that regex.<p>
      * This is a final operation.
      */
     public Map<Regex, Match> longest_per_regex()
     {
+        release();
+
         // NOTE(norswap)
         // We're not using Stream#toMap because disambiguation forces creating two Match objects
         // instead of one.
@@ -205,8 +285,8 @@ public final class MatchStream
         HashMap<Regex, Match> map = new HashMap<>();
 
         stream.forEach(cp ->
-            map.compute(cp.regex,
-                (k, v) -> v == null || cp.pos - cp.start > v.end - v.start
+            map.compute(cp.matched(),
+                (k, v) -> v == null || cp.pos - cp.first_start() > v.end - v.start
                     ? checkpoint_to_match(cp)
                     : v));
 
@@ -227,6 +307,8 @@ public final class MatchStream
      */
     public Map<Regex, MatchTree> longest_tree_per_regex()
     {
+        release();
+
         // NOTE(norswap)
         // We're not using Stream#toMap because disambiguation forces creating two MatchTree objects
         // instead of one (expensive!).
@@ -234,8 +316,8 @@ public final class MatchStream
         HashMap<Regex, MatchTree> map = new HashMap<>();
 
         stream.forEach(cp ->
-            map.compute(cp.regex,
-                (k, v) -> v == null || cp.pos - cp.start > v.end - v.start
+            map.compute(cp.matched(),
+                (k, v) -> v == null || cp.pos - cp.first_start() > v.end - v.start
                     ? checkpoint_to_tree(cp)
                     : v));
 
@@ -251,7 +333,8 @@ public final class MatchStream
      */
     public Set<Match> get()
     {
-        return stream
+        release();
+        return expanded()
             .map(this::checkpoint_to_match)
             .collect(Collectors.toSet());
     }
@@ -271,21 +354,39 @@ public final class MatchStream
      */
     public Set<MatchTree> trees()
     {
-        return stream
+        release();
+        return expanded()
             .map(this::checkpoint_to_tree)
             .collect(Collectors.toSet());
     }
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Same as {@link #trees}, but returns compact {@link SpanTree}s, which only record the span of
+     * input matched by each node of the trees.
+     * <p>
+     * This is a final operation.
+     */
+    public Set<SpanTree> span_trees()
+    {
+        release();
+        return expanded()
+            .map(it -> checkpoint_to_tree(it).span_tree())
+            .collect(Collectors.toSet());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * Returns the set of regexes for which there is a match in the stream.<p>
      * This is a final operation.
      */
     public Set<Regex> regexes()
     {
+        release();
         return stream
-            .map(it -> it.regex)
+            .map(Checkpoint::matched)
             .collect(Collectors.toSet());
     }
 
@@ -295,7 +396,9 @@ public final class MatchStream
      * Indicates whether there is at least one match left in the stream.<p>
      * This is a final operation.
      */
-    public boolean matching() {
+    public boolean matching()
+    {
+        release();
         return stream.findFirst().isPresent();
     }
 
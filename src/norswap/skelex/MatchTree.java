@@ -1,10 +1,8 @@
 package norswap.skelex;
 
 import norswap.skelex.regex.*;
-import norswap.utils.ArrayStack;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 
@@ -17,12 +15,17 @@ import static norswap.utils.Util.cast;
  * This object encapsulates a composite tree structure made of <b>match nodes</b>:
  * <ul>
  *     <li>lists: matching the sub-matches in sequences and repetitions
- *         ({@link Seq}, {@link ZeroMore}, {@link OneMore})</li>
+ *         ({@link Seq}, {@link ZeroMore}, {@link OneMore}, {@link Repeat}, {@link Separated})</li>
  *     <li>{@link Branch} objects: matching a particular {@link Choice} alternative</li>
  *     <li>{@code null} values: matching an empty {@link Maybe} regex</li>
  *     <li>other objects, corresponding to the matched input items</li>
  * </ul><p>
  * Parts of this structure can be accessed through the various methods exposed by this class.
+ * <p>
+ * The structure is built lazily: a list is only built when it is accessed, and only the items
+ * that are accessed are built in turn. Reading a few nodes of a large match (e.g. {@code get(0,
+ * 2)}) thus doesn't build the rest of the tree. The lists are unmodifiable. As building a node
+ * mutates the tree, a match tree must not be read from multiple threads concurrently.
  */
 public final class MatchTree extends Match
 {
@@ -42,14 +45,22 @@ public final class MatchTree extends Match
 
     // =============================================================================================
     // Used by the implementation to build up match trees.
+    //
+    // The transition actions replayed by the runner (cf. Runner#tree) call these methods in
+    // postfix order of the tree. They only record the operations: the nodes of the tree are built
+    // from them when first accessed (cf. TreeTrace).
 
     // ---------------------------------------------------------------------------------------------
 
-    private static final Object MARKER = new Object();
+    final TreeTrace trace = new TreeTrace();
 
     // ---------------------------------------------------------------------------------------------
 
-    private ArrayStack<Object> stack = new ArrayStack<>();
+    private static final Object UNBUILT = new Object();
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object root = UNBUILT;
 
     // ---------------------------------------------------------------------------------------------
 
@@ -61,10 +72,28 @@ public final class MatchTree extends Match
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Pushes an item to the top of the stack.
+     * Pushes an input item to the top of the stack.
      */
-    void push (Object item) {
-        stack.push(item);
+    void push_item (Object item) {
+        trace.record(TreeTrace.ITEM, item);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Pushes null to the top of the stack.
+     */
+    void push_null() {
+        trace.record(TreeTrace.NULL, null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Pushes an empty list to the top of the stack, to be filled by {@link #accrete}.
+     */
+    void push_list() {
+        trace.record(TreeTrace.LIST, null);
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -73,25 +102,17 @@ public final class MatchTree extends Match
      * Pushes a marker on the top of the stack.
      */
     void mark() {
-        push(MARKER);
+        trace.record(TreeTrace.MARK, null);
     }
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Gathers all items on the stack until a marker is encountered, put them inside an array list,
-     * then push the list on the stack (the items and the marker having been removed).
+     * Gathers all items on the stack until a marker is encountered, put them inside a list, then
+     * push the list on the stack (the items and the marker having been removed).
      */
-    void collect()
-    {
-        ArrayList<Object> out = new ArrayList<>();
-        Object top = stack.pop();
-        while (top != MARKER) {
-            out.add(top);
-            top = stack.pop();
-        }
-        Collections.reverse(out);
-        stack.push(out);
+    void collect() {
+        trace.record(TreeTrace.COLLECT, null);
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -100,22 +121,27 @@ public final class MatchTree extends Match
      * Commit the outcome of the last choice by wrapping the item at the top of the stack with a
      * {@link Branch} that includes the given index.
      */
-    void push_branch (int index)
-    {
-        stack.push(new Branch(index, stack.pop()));
+    void push_branch (int index) {
+        trace.record(TreeTrace.BRANCH, index);
     }
 
     // ---------------------------------------------------------------------------------------------
 
     /**
      * Accrete a repetition choice: pops the top item of the stack, and adds it to the second item,
-     * which should be an array list.
+     * which should be a list.
      */
-    void accrete()
-    {
-        Object top = stack.pop();
-        ArrayList<Object> list = cast(stack.peek());
-        list.add(top);
+    void accrete() {
+        trace.record(TreeTrace.ACCRETE, null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Pops the top item of the stack, e.g. the match of a separator in a {@link Separated} regex.
+     */
+    void drop() {
+        trace.record(TreeTrace.DROP, null);
     }
 
     // =============================================================================================
@@ -124,8 +150,11 @@ public final class MatchTree extends Match
     /**
      * Returns the root of the matched tree.
      */
-    public Object $value() {
-        return stack.peek();
+    public Object $value()
+    {
+        if (root == UNBUILT)
+            root = trace.root();
+        return root;
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -134,7 +163,7 @@ public final class MatchTree extends Match
      * Returns the root of the matched tree, attempting to cast it to the expected type.
      */
     public <T> T value() {
-        return cast(stack.peek());
+        return cast($value());
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -143,7 +172,7 @@ public final class MatchTree extends Match
      * Returns the root of the matched tree, attempting to cast it to a list.
      */
     public List<?> list() {
-        return cast(stack.peek());
+        return cast($value());
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -152,7 +181,7 @@ public final class MatchTree extends Match
      * Returns the root of the matched tree, attempting to cast it to a {@link Branch}.
      */
     public Branch branch() {
-        return cast(stack.peek());
+        return cast($value());
     }
 
     // =============================================================================================
@@ -377,8 +406,18 @@ public final class MatchTree extends Match
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Returns a {@link SpanTree} with the same structure as this tree, but which only records the
+     * span of input matched by each node, in a compact form.
+     */
+    public SpanTree span_tree() {
+        return new SpanTree(regex, start, end, trace);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     @Override public String toString() {
-        return super.toString() + "<" + Objects.toString(stack.peek()) + ">";
+        return super.toString() + "<" + Objects.toString($value()) + ">";
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -0,0 +1,171 @@
+package norswap.skelex;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Function;
+
+/**
+ * Like {@link Skelex}, but matches a regex against many independent inputs in parallel, returning
+ * one {@link MatchStream} per input, in the same order as the inputs.
+ * <p>
+ * Each input is matched by its own {@link Runner}, as a task of a {@link ForkJoinPool} (the common
+ * pool, unless specified otherwise). The automaton compiled from the regex is shared read-only
+ * between all these runners.
+ * <p>
+ * All the matching work is done before the methods return: the returned match streams only have
+ * to extract the matches (and to build match trees, if requested), which can be done on any thread.
+ * <p>
+ * {@link #match_ends} instead matches a single long input, split in chunks matched in parallel.
+ */
+public final class ParallelSkelex
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a match stream for the matches of {@code regex} covering the whole of each input
+     * (cf. {@link Skelex#match_exactly}).
+     */
+    public static List<MatchStream> match_exactly (Regex regex, List<? extends List<?>> inputs) {
+        return match_exactly(ForkJoinPool.commonPool(), regex, inputs);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #match_exactly(Regex, List)}, but runs the tasks on the given pool.
+     */
+    public static List<MatchStream> match_exactly
+            (ForkJoinPool pool, Regex regex, List<? extends List<?>> inputs)
+    {
+        return map(pool, regex, inputs, input -> Skelex.match_exactly(regex, input));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a match stream for the matches of {@code regex} within each input
+     * (cf. {@link Skelex#matches_anywhere}).
+     */
+    public static List<MatchStream> matches_anywhere
+            (Regex regex, List<? extends List<?>> inputs)
+    {
+        return matches_anywhere(ForkJoinPool.commonPool(), regex, inputs);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #matches_anywhere(Regex, List)}, but runs the tasks on the given pool.
+     */
+    public static List<MatchStream> matches_anywhere
+            (ForkJoinPool pool, Regex regex, List<? extends List<?>> inputs)
+    {
+        return map(pool, regex, inputs, input -> Skelex.matches_anywhere(regex, input));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a match stream for the matches of {@code regex} starting at the beginning of each
+     * input (cf. {@link Skelex#matches_from_start}).
+     */
+    public static List<MatchStream> matches_from_start
+            (Regex regex, List<? extends List<?>> inputs)
+    {
+        return matches_from_start(ForkJoinPool.commonPool(), regex, inputs);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #matches_from_start(Regex, List)}, but runs the tasks on the given pool.
+     */
+    public static List<MatchStream> matches_from_start
+            (ForkJoinPool pool, Regex regex, List<? extends List<?>> inputs)
+    {
+        return map(pool, regex, inputs, input -> Skelex.matches_from_start(regex, input));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a match stream for the matches of {@code regex} ending at the end of each input
+     * (cf. {@link Skelex#matches_at_end}).
+     */
+    public static List<MatchStream> matches_at_end (Regex regex, List<? extends List<?>> inputs) {
+        return matches_at_end(ForkJoinPool.commonPool(), regex, inputs);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #matches_at_end(Regex, List)}, but runs the tasks on the given pool.
+     */
+    public static List<MatchStream> matches_at_end
+            (ForkJoinPool pool, Regex regex, List<? extends List<?>> inputs)
+    {
+        return map(pool, regex, inputs, input -> Skelex.matches_at_end(regex, input));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the set of positions of a single (long) input at which a match of {@code regex} ends,
+     * i.e. the positions {@code p} such that the input items in {@code [s, p)} match the regex for
+     * some {@code s <= p}.
+     * <p>
+     * The input is split in chunks of {@code chunk_size} items, which are matched in parallel,
+     * then stitched together. Much like a match-only runner, this doesn't produce match trees, nor
+     * even the start positions of the matches, but these can be obtained by matching the regex
+     * over a window that ends at the positions of interest.
+     * <p>
+     * Each chunk is matched speculatively, assuming that no match that spans its start began more
+     * than a thousand items before. This is then validated in chunk order, which requires matching
+     * the start of the chunks again, until they agree with the speculation. In the worst case
+     * (e.g. long matches that span most chunk boundaries), this is as slow as matching the input
+     * on a single thread.
+     */
+    public static BitSet match_ends (Regex regex, List<?> input, int chunk_size) {
+        return match_ends(ForkJoinPool.commonPool(), regex, input, chunk_size);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #match_ends(Regex, List, int)}, but runs the tasks on the given pool.
+     */
+    public static BitSet match_ends
+            (ForkJoinPool pool, Regex regex, List<?> input, int chunk_size)
+    {
+        return new SpeculativeMatcher(regex, input, chunk_size).run(pool);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Applies {@code function} to each input as a task of {@code pool}, and returns the results
+     * once all tasks have completed. The automaton of {@code regex} is compiled beforehand, so that
+     * the tasks don't contend for it.
+     */
+    private static List<MatchStream> map (ForkJoinPool pool, Regex regex,
+            List<? extends List<?>> inputs, Function<List<?>, MatchStream> function)
+    {
+        regex.automaton();
+        ArrayList<ForkJoinTask<MatchStream>> tasks = new ArrayList<>(inputs.size());
+
+        for (List<?> input: inputs)
+            tasks.add(pool.submit(() -> function.apply(input)));
+
+        ArrayList<MatchStream> results = new ArrayList<>(tasks.size());
+
+        for (ForkJoinTask<MatchStream> task: tasks)
+            results.add(task.join());
+
+        return results;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
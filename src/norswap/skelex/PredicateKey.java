@@ -0,0 +1,41 @@
+package norswap.skelex;
+
+import java.util.Objects;
+import java.util.function.Predicate;
+
+/**
+ * Wraps the predicate and type constraint of a NORMAL transition, in order to compare them: two
+ * keys are equal if they have the same type constraint, and if their predicates (excluding the
+ * type constraint, cf. {@link Transition#refinement}) are equal as defined by {@link
+ * CompiledRegexCache}. Transitions with equal keys accept the same input items.
+ */
+final class PredicateKey
+{
+    // ---------------------------------------------------------------------------------------------
+
+    final Class<?> klass;
+    final Predicate<Object> pred;
+
+    // ---------------------------------------------------------------------------------------------
+
+    PredicateKey (Transition normal) {
+        this.klass = normal.klass;
+        this.pred  = normal.klass != null ? normal.refinement : normal.predicate;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public int hashCode() {
+        return 31 * Objects.hashCode(klass) + CompiledRegexCache.hash(pred);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public boolean equals (Object other) {
+        if (!(other instanceof PredicateKey)) return false;
+        PredicateKey key = (PredicateKey) other;
+        return klass == key.klass && CompiledRegexCache.equal(pred, key.pred);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
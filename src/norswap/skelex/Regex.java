@@ -1,5 +1,7 @@
 package norswap.skelex;
 
+import java.util.function.Function;
+
 /**
  * A regular expression for use with the Skelex library.
  * <p>
@@ -12,19 +14,39 @@ public abstract class Regex
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Cached automaton.
+     * Cached automaton. Volatile so that the automaton is safely published to the other threads
+     * that match the regex.
      */
-    private Automaton automaton;
+    private volatile Automaton automaton;
 
     // ---------------------------------------------------------------------------------------------
 
     /**
      * Return the automaton corresponding to this regex, creating it if necessary.
+     * <p>
+     * This is safe to call from multiple threads: the automaton is only compiled once, and is never
+     * modified afterwards.
      */
     Automaton automaton() {
-        return automaton != null
-            ? automaton
-            : (automaton = AutomatonBuilder.build_automaton(this));
+        return automaton(AutomatonBuilder::compile);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Return the automaton corresponding to this regex, using {@code compiler} to create it if
+     * necessary (cf. {@link CompiledRegexCache}).
+     */
+    Automaton automaton (Function<Regex, Automaton> compiler)
+    {
+        Automaton automaton = this.automaton;
+        if (automaton != null) return automaton;
+
+        synchronized (this) {
+            if (this.automaton == null)
+                this.automaton = compiler.apply(this);
+            return this.automaton;
+        }
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -0,0 +1,164 @@
+package norswap.skelex;
+
+import java.util.Arrays;
+
+/**
+ * Maps input positions to the registrations that are still able to match at these positions,
+ * based on the input seen by a match-only {@link Runner} so far. This takes the place of the
+ * {@link CheckpointMap} for those runners.
+ * <p>
+ * Like a {@link CheckpointMap}, a map can be forked, in which case the registrations of the
+ * positions before the fork position are shared, and copied before being modified.
+ */
+final class RegistrationMap
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final Window<Registrations> registrations;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The registrations of the positions below this one may be shared with other maps (cf. {@link
+     * #fork}), and must not be modified.
+     */
+    private int shared_below = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    RegistrationMap() {
+        registrations = new Window<>();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private RegistrationMap (RegistrationMap other) {
+        registrations = new Window<>(other.registrations);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a copy of this map, which shares the registrations of the positions below {@code
+     * from} with this map, and holds copies of the registrations of the other positions.
+     */
+    RegistrationMap fork (int from)
+    {
+        RegistrationMap fork = new RegistrationMap(this);
+        shared_below = fork.shared_below = Math.max(shared_below, from);
+
+        for (int i = from; i < registrations.end(); ++i)
+            fork.copy(i);
+
+        return fork;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void copy (int index)
+    {
+        Registrations regs = registrations.get(index);
+        if (regs != null)
+            registrations.set(index, new Registrations(regs));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the registrations at the {@code index} position, or null if there are none.
+     */
+    Registrations get (int index) {
+        return registrations.get(index);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of registrations at the given index.
+     */
+    int size (int index)
+    {
+        Registrations regs = get(index);
+        return regs == null ? 0 : regs.size;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns true if there are no registrations at the given index.
+     */
+    boolean is_empty (int index)
+    {
+        Registrations regs = get(index);
+        return regs == null || regs.size == 0;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the position following the last position at which registrations may be recorded.
+     */
+    int end() {
+        return registrations.end();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the registrations at the {@code index} position, creating the underlying data
+     * structures as needed.
+     */
+    Registrations at (int index)
+    {
+        Registrations regs = registrations.get(index);
+        if (regs == null)
+            registrations.set(index, regs = new Registrations());
+
+        return regs;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Removes the registrations generated by the last {@code amount} items of input, given that
+     * we currently are at input position {@code pos}.
+     */
+    void clear_last (int pos, int amount)
+    {
+        int end = Math.min(registrations.end(), pos + 1);
+
+        for (int i = pos + 1 - amount; i < end; ++i)
+            registrations.set(i, null);
+
+        // registrations may be added to the new position
+        if (pos - amount < shared_below) {
+            copy(pos - amount);
+            shared_below = pos - amount;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Removes the registrations at the {@code index} position after the {@code size} first ones.
+     */
+    void truncate (int index, int size)
+    {
+        Registrations regs = registrations.get(index);
+        if (regs == null || regs.size <= size) return;
+        Arrays.fill(regs.regexes, size, regs.size, null);
+        Arrays.fill(regs.states, size, regs.size, null);
+        regs.size = size;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Discards the registrations recorded at positions below {@code below}.
+     */
+    void evict (int below) {
+        registrations.evict(below);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,92 @@
+package norswap.skelex;
+
+import java.util.Arrays;
+
+/**
+ * The registrations that are still able to match at a given input position, for a match-only
+ * {@link Runner}. Each registration is associated with the {@link DFAState} it has reached.
+ * <p>
+ * The registrations are stored in parallel arrays, in insertion order.
+ */
+final class Registrations
+{
+    // ---------------------------------------------------------------------------------------------
+
+    int size = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    Regex[] regexes = new Regex[4];
+
+    // ---------------------------------------------------------------------------------------------
+
+    int[] starts = new int[4];
+
+    // ---------------------------------------------------------------------------------------------
+
+    DFAState[] states = new DFAState[4];
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether each registration should be considered when feeding input to the runner.
+     */
+    boolean[] live = new boolean[4];
+
+    // ---------------------------------------------------------------------------------------------
+
+    Registrations() {}
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a copy of {@code other}.
+     */
+    Registrations (Registrations other)
+    {
+        size    = other.size;
+        regexes = other.regexes.clone();
+        starts  = other.starts.clone();
+        states  = other.states.clone();
+        live    = other.live.clone();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds a live registration, unless a registration with the same regex and start position
+     * exists. Returns the index of the registration.
+     */
+    int add (Regex regex, int start, DFAState state)
+    {
+        for (int i = 0; i < size; ++i)
+            if (regexes[i] == regex && starts[i] == start)
+                return i;
+
+        append(regex, start, state, true);
+        return size - 1;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds a registration, which must not already be present, with the given {@link #live} flag.
+     */
+    void append (Regex regex, int start, DFAState state, boolean is_live)
+    {
+        if (size == regexes.length) {
+            regexes = Arrays.copyOf(regexes, size * 2);
+            starts  = Arrays.copyOf(starts,  size * 2);
+            states  = Arrays.copyOf(states,  size * 2);
+            live    = Arrays.copyOf(live,    size * 2);
+        }
+
+        regexes [size] = regex;
+        starts  [size] = start;
+        states  [size] = state;
+        live    [size] = is_live;
+        ++ size;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,114 @@
+package norswap.skelex;
+
+import java.util.Arrays;
+
+/**
+ * Records the states to which a {@link Runner} was moved back (by {@link Runner#clear_last} or
+ * {@link Runner#restore}), in order to tell whether a {@link Runner.Snapshot} is still valid.
+ * <p>
+ * Snapshots and rollbacks are timestamped using a common clock. The states are ordered by position,
+ * then by the time at which they were reached: moving back to position {@code p} with {@link
+ * Runner#clear_last} retains everything that was registered at {@code p}, while restoring a
+ * snapshot taken at {@code p} discards the registrations made at {@code p} after the snapshot was
+ * taken. A snapshot is invalidated when the runner is moved back to a state that is lower than the
+ * state of the snapshot.
+ * <p>
+ * To check this, we only need the lowest state moved back to since a given time. The log thus only
+ * retains the rollbacks whose state is lower than the states of all subsequent rollbacks. Their
+ * states are increasing, which keeps the log short in practice.
+ */
+final class RollbackLog
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private int clock = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int size = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int[] times = new int[4];
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The state moved back to by each rollback, as computed by {@link #state}.
+     */
+    private long[] states = new long[4];
+
+    // ---------------------------------------------------------------------------------------------
+
+    RollbackLog() {}
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a copy of {@code other}.
+     */
+    RollbackLog (RollbackLog other)
+    {
+        clock  = other.clock;
+        size   = other.size;
+        times  = other.times.clone();
+        states = other.states.clone();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static long state (int pos, int time) {
+        return (long) pos << 32 | time;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the time for a new snapshot.
+     */
+    int tick() {
+        return ++ clock;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Records a rollback to position {@code pos}, restoring the state at which a snapshot was taken
+     * at time {@code time}, or retaining all registrations at {@code pos} if {@code time} is
+     * {@link Integer#MAX_VALUE}.
+     */
+    void record (int pos, int time)
+    {
+        long state = state(pos, time);
+
+        while (size > 0 && states[size - 1] >= state)
+            -- size;
+
+        if (size == times.length) {
+            times  = Arrays.copyOf(times,  size * 2);
+            states = Arrays.copyOf(states, size * 2);
+        }
+
+        times  [size] = tick();
+        states [size] = state;
+        ++ size;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the runner was moved back to a state lower than that of the snapshot taken at time
+     * {@code time} and position {@code pos} since that snapshot was taken.
+     */
+    boolean invalidates (int time, int pos)
+    {
+        // the rollback with the lowest state after the snapshot is the first one after it
+        for (int i = 0; i < size; ++i)
+            if (times[i] > time)
+                return states[i] < state(pos, time);
+
+        return false;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -1,286 +1,1611 @@
 package norswap.skelex;
 
+import norswap.skelex.dsl.IntItemPredicate;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.RandomAccess;
+import java.util.Spliterator;
 import java.util.function.BiPredicate;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
-import static norswap.skelex.Transition.*;
+/**
+ * Instances of this class are used to match regexes over an input.
+ * <p>
+ * Please refer to <a href="https://github.com/norswap/skelex/blob/master/doc/README.md">the user
+ * manual</a> for more details, or to <a
+ * href="https://github.com/norswap/skelex/blob/master/doc/implementation.md">the implementation
+ * guide</a> for implementation details.
+ */
+public final class Runner
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * A value used in place of an input item to signify the absence of input.
+     */
+    public static final Object NO_INPUT = new Object();
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final CheckpointMap checkpoints;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Used instead of {@link #checkpoints} if this is a match-only runner, null otherwise.
+     */
+    private final RegistrationMap registrations;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether this runner was created with {@link #pike()}.
+     */
+    private final boolean pike;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Maps each regex to the id and start position of its registration with the highest start
+     * position, or null if this is a match-only runner. Used to assign registration ids (cf.
+     * {@link Checkpoint#registration}).
+     */
+    private final HashMap<Regex, int[]> last_registrations;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The number of registration ids assigned so far.
+     */
+    private int registration_count = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Maps the automata of the regexes registered with {@link #add_anywhere} to their registration
+     * id and the position at which they were registered, in registration order.
+     */
+    private final LinkedHashMap<Automaton, int[]> anywhere;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final Window<Object> input;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Used instead of {@link #input} if this runner is driven by an {@link IntRunner} or a {@link
+     * CharRunner}, null otherwise.
+     */
+    private IntWindow ints;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the items in {@link #ints} are {@code char}s (cf. {@link CharRunner}).
+     */
+    private boolean chars;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Caches the steps of each anchor state that accept the current input item.
+     */
+    private final StepCache cache = new StepCache();
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Scratch space for {@link #close}: the checkpoints reached by each chain of a closure.
+     */
+    private Checkpoint[] reached = new Checkpoint[16];
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int pos = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The minimum number of input items to consume between two reclamations of a streaming runner.
+     */
+    private static final int MIN_RECLAIM_INTERVAL = 64;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether this is a streaming runner (cf. {@link #streaming()}).
+     */
+    private boolean streaming = false;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether this is a first match runner (cf. {@link #first_match()}).
+     */
+    private boolean first_match = false;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The maximum number of items a match can span (cf. {@link #max_span(int)}).
+     */
+    private int max_span = Integer.MAX_VALUE;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether {@link #prune} may have checkpoints to remove at the position following the current
+     * position: set when a checkpoint for a state that isn't {@link State#productive} is created.
+     */
+    private boolean prunable = false;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The first position for which matches can still be requested.
+     */
+    private int window_start = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The position at which memory was last reclaimed, in streaming mode.
+     */
+    private int last_reclaim = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The number of match streams returned by {@link #matches(int)} in streaming mode on which no
+     * terminal operation was called yet (cf. {@link MatchStream#release}).
+     */
+    private int open_streams = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The highest position for which one of the {@link #open_streams} was returned, or -1 if there
+     * are none. These streams lazily read the checkpoints at or below this position, which must
+     * therefore not be recycled.
+     */
+    private int pinned = -1;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The smallest start position of the matches of the {@link #open_streams}, below which the
+     * input items needed to build their trees may be evicted.
+     */
+    private int pinned_start = Integer.MAX_VALUE;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The positions this runner was moved back to, used to validate snapshots.
+     */
+    private final RollbackLog rollbacks;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The listeners to notify of the matches of each regex (cf. {@link #on_match}).
+     */
+    private final HashMap<Regex, ArrayList<MatchListener>> listeners = new HashMap<>();
+
+    // =============================================================================================
+
+    /**
+     * Creates a new runner, able to produce both {@link Match} and {@link MatchTree} objects.
+     */
+    public Runner() {
+        this(false, false);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Runner (boolean match_only, boolean pike)
+    {
+        checkpoints = new CheckpointMap();
+        registrations = match_only ? new RegistrationMap() : null;
+        last_registrations = match_only ? null : new HashMap<>();
+        anywhere = new LinkedHashMap<>();
+        input = new Window<>();
+        rollbacks = new RollbackLog();
+        this.pike = pike;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a fork of {@code other} (cf. {@link #fork()}).
+     */
+    private Runner (Runner other)
+    {
+        checkpoints = other.registrations == null
+            ? other.checkpoints.fork(other.pos)
+            : new CheckpointMap();
+        registrations = other.registrations != null ? other.registrations.fork(other.pos) : null;
+        pike = other.pike;
+        registration_count = other.registration_count;
+        anywhere = new LinkedHashMap<>(other.anywhere);
+        input = new Window<>(other.input);
+        ints = other.ints != null ? new IntWindow(other.ints) : null;
+        chars = other.chars;
+        pos = other.pos;
+        streaming = other.streaming;
+        first_match = other.first_match;
+        max_span = other.max_span;
+        window_start = other.window_start;
+        last_reclaim = other.last_reclaim;
+        rollbacks = new RollbackLog(other.rollbacks);
+
+        if (other.last_registrations == null)
+            last_registrations = null;
+        else {
+            last_registrations = new HashMap<>();
+            other.last_registrations.forEach((k, v) -> last_registrations.put(k, v.clone()));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a new match-only runner: the {@link MatchStream}s it returns can produce {@link
+     * Match} objects, but requesting a {@link MatchTree} from them throws an {@link
+     * IllegalStateException}.
+     * <p>
+     * In exchange, such a runner is much cheaper. Instead of recording how each anchor state was
+     * reached, it tracks a single state of a lazily built deterministic automaton per registration.
+     * These states are built from the sets of anchor states reachable by the registration, and are
+     * shared between all registrations of the same regex.
+     */
+    public static Runner match_only() {
+        return new Runner(true, false);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a new runner that uses a Pike VM to produce both {@link Match} and {@link MatchTree}
+     * objects.
+     * <p>
+     * A regular runner records every way in which each anchor state was reached, and retains these
+     * records for every input position. A Pike VM runner instead considers the (registration,
+     * anchor state) pairs reached at each position as threads, ordered by priority: the order in
+     * which they are discovered. Each thread only records a log of the chains of transitions
+     * along its highest priority path, which is shared with the threads it was reached from. Once
+     * the input moves past a position, only its accepting threads are retained.
+     * <p>
+     * The highest priority path is the one from which trees are built by regular runners, so both
+     * runners produce the same matches and trees. However, the memory used by a Pike VM runner is
+     * proportional to the number of threads at the current position (plus the matches it
+     * retained), rather than to the input size. Combined with {@link #streaming()}, this enables
+     * requesting match trees over unbounded inputs.
+     * <p>
+     * In exchange, {@link #clear_last} can't be used with such a runner, and {@link
+     * #add_anywhere} registrations are tracked separately for every start position.
+     */
+    public static Runner pike() {
+        return new Runner(false, true);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Turns this runner into a streaming runner, then returns it.
+     * <p>
+     * A streaming runner periodically discards the input items and the match progression it
+     * recorded for positions that precede the start position of every registration still able to
+     * match. This keeps the memory consumption bounded when feeding long inputs to the runner, as
+     * long as the registrations themselves are short-lived (see {@link #filter_registrations}).
+     * <p>
+     * Matches can't be requested for discarded positions (see {@link #window_start()}), and
+     * {@link #input()} only returns the retained input items.
+     */
+    public Runner streaming()
+    {
+        streaming = true;
+        return this;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Turns this runner into a first match runner, then returns it.
+     * <p>
+     * A first match runner stops furthering each registration as soon as it matches, so that each
+     * registration yields at most one match: its shortest. The other checkpoints of the
+     * registration at the position of the match are removed immediately. A registration of a regex
+     * that matches the empty input is stopped as if {@link #filter_registrations} had rejected it,
+     * before consuming any item.
+     * <p>
+     * This is the natural companion of lazy repetitions (e.g. {@link DSL#zeromore_lazy(Object)}),
+     * whose match trees also prefer matching less input. For instance, when extracting delimited
+     * records with {@code seq(open, zeromore_lazy(any), close)}, a regular runner keeps furthering
+     * every registration past its closing delimiter, while a first match runner drops it, keeping
+     * the work per item (and, for streaming runners, the retained window) bounded by the size of
+     * the open records.
+     * <p>
+     * As for {@link #filter_registrations}, registrations made with {@link #add_anywhere} are not
+     * affected.
+     */
+    public Runner first_match()
+    {
+        first_match = true;
+        return this;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Makes this runner stop furthering each registration once it has consumed {@code length}
+     * items, then returns it. Matches longer than {@code length} are therefore never reported, and
+     * the checkpoints of the registration are removed immediately once it reaches that length.
+     * <p>
+     * This bounds the work per item and (for streaming runners) the retained window, even when the
+     * registered regexes can match arbitrarily long inputs.
+     * <p>
+     * As for {@link #filter_registrations}, registrations made with {@link #add_anywhere} are not
+     * affected.
+     *
+     * @param length a length {@code >= 1}
+     */
+    public Runner max_span (int length)
+    {
+        if (length < 1)
+            throw new IllegalArgumentException("The maximum span must be at least 1: " + length);
+
+        max_span = length;
+        return this;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the first position for which matches can still be requested. This is always 0,
+     * unless this is a streaming runner (cf. {@link #streaming()}).
+     */
+    public int window_start() {
+        return window_start;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds a new regex to be matched starting at the {@code index} position.
+     *
+     * @param index a position {@code >=} the current position
+     */
+    public void add (int index, Regex regex)
+    {
+        if (index < pos)
+            throw new IllegalArgumentException("Can't add an automaton below the current position.");
+
+        add(index, regex.automaton());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds a new regex to be matched starting at the current position.
+     */
+    public void add (Regex regex)
+    {
+        add(pos, regex.automaton());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds a new regex to be matched starting at the current position, as well as at every
+     * subsequent position. Adding the same regex multiple times has no effect.
+     * <p>
+     * This is equivalent to calling {@link #add(Regex)} now, then again before feeding each input
+     * item to the runner, but much cheaper: instead of tracking each start position separately,
+     * the runner shares the checkpoints of the regex between all start positions that reach them.
+     * This makes the work done per input item independent of the number of start positions from
+     * which a match is still possible. The start positions of the matches ending at each position
+     * are maintained as the input is fed, as sets of intervals (cf. {@link StartSet}), while match
+     * trees are only recovered when requested.
+     * <p>
+     * These registrations are not affected by {@link #filter_registrations}.
+     * <p>
+     * Match-only and Pike VM runners (cf. {@link #pike()}) do not share checkpoints in this way,
+     * and simply add a regular registration before feeding each item.
+     */
+    public void add_anywhere (Regex regex)
+    {
+        Automaton automaton = regex.automaton();
+        if (anywhere.containsKey(automaton)) return;
+        int registration = registrations != null || pike ? -1 : registration_count++;
+        anywhere.put(automaton, new int[] { registration, pos });
+        add_origin(automaton, anywhere.get(automaton));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Feeds an item of input to the runner, incrementing the current position and potentially
+     * furthering the matches of registered regexes.
+     */
+    public void advance (Object item)
+    {
+        check_object_input();
+        feed(item);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Feeds the items of {@code items} in {@code [from, to)} to the runner, in order, increasing
+     * the current position and potentially furthering the matches of registered regexes.
+     */
+    public void advance (Object[] items, int from, int to)
+    {
+        check_object_input();
+        for (int i = from; i < to; ++i)
+            feed(items[i]);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Feeds the items of {@code items} in {@code [from, to)} to the runner, in order, increasing
+     * the current position and potentially furthering the matches of registered regexes.
+     */
+    public void advance (List<?> items, int from, int to)
+    {
+        check_object_input();
+
+        if (items instanceof RandomAccess)
+            for (int i = from; i < to; ++i)
+                feed(items.get(i));
+        else
+            for (Object item: items.subList(from, to))
+                feed(item);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Feeds a collection of items of input (in iteration order) to the runner, increasing the
+     * current position and potentially furthering the matches of registered regexes.
+     */
+    public void advance (Collection<?> items)
+    {
+        if (items instanceof List<?>) {
+            advance((List<?>) items, 0, items.size());
+            return;
+        }
+
+        check_object_input();
+        for (Object item: items)
+            feed(item);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Feeds the items returned by {@code items} to the runner, in order, increasing the current
+     * position and potentially furthering the matches of registered regexes.
+     * <p>
+     * Each item is only requested after the previous one was fed, so combined with {@link
+     * #on_match} and {@link #streaming}, this can process an unbounded source of items.
+     */
+    public void advance (Iterator<?> items)
+    {
+        check_object_input();
+        while (items.hasNext())
+            feed(items.next());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #advance(Iterator)}, for a {@link Spliterator} (e.g. obtained from a {@link
+     * Stream}).
+     */
+    public void advance (Spliterator<?> items)
+    {
+        check_object_input();
+        items.forEachRemaining(this::feed);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Feeds a set of input items to the runner, increasing the current position and potentially
+     * furthering the matches of registered regexes.
+     */
+    public void advance (Object... items) {
+        advance(items, 0, items.length);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Feeds an {@code int} input item to a runner driven by an {@link IntRunner} or a {@link
+     * CharRunner} (in which case the item is a {@code char}).
+     */
+    void advance_int (int item)
+    {
+        before_item();
+
+        if (registrations != null)
+            advance_registrations(box(item));
+        else {
+            List<Checkpoint> cps = checkpoints.get(pos);
+            for (int i = 0; i < cps.size(); ++i)
+                if (cps.get(i).live)
+                    advance_int(cps.get(i), item);
+        }
+
+        ints.add(item);
+        after_item();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Makes the runner store its input as {@code int} values, so that it can be driven by an
+     * {@link IntRunner} or (if {@code chars} is set) a {@link CharRunner}. The runner must not have
+     * been fed any input yet.
+     */
+    void use_primitive_input (boolean chars)
+    {
+        if (pos > 0 || ints != null)
+            throw new IllegalArgumentException(
+                "The runner was already fed input or is already driven by another runner.");
+
+        ints = new IntWindow();
+        this.chars = chars;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the current input position.
+     */
+    public int pos() {
+        return pos;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Return the input seen by the runner.
+     * <p>
+     * For streaming runners, only the retained input is returned: its first item is at position
+     * {@code pos() - input().size()}.
+     */
+    public List<?> input()
+    {
+        if (ints == null)
+            return input.view();
+
+        return new AbstractList<Object>() {
+            @Override public Object get (int index) {
+                return item(ints.start() + index);
+            }
+            @Override public int size() {
+                return ints.end() - ints.start();
+            }
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * A return value of true indicates that no previous registration are still able to match
+     * more input, in which case advancing in the input without adding new regexes is useless.
+     * <p>
+     * This is the case when no live checkpoint at the current position holds a state that can
+     * lead to a match after consuming more input, which is precomputed for each state (cf. {@link
+     * State#productive}). The matches ending at the current position are not affected.
+     * <p>
+     * Note that a return value of false does not guarantee that any matches can still occur!
+     */
+    public boolean dead()
+    {
+        if (!anywhere.isEmpty())
+            return false;
+
+        if (registrations != null) {
+            Registrations regs = registrations.get(pos);
+            if (regs != null)
+                for (int i = 0; i < regs.size; ++i)
+                    if (regs.live[i] && regs.states[i].productive)
+                        return false;
+            return true;
+        }
+
+        for (Checkpoint cp: checkpoints.get(pos))
+            if (cp.live && cp.table.productive(cp.state, cp.count))
+                return false;
+
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    Stream<Checkpoint> stream (int index)
+    {
+        if (registrations == null) {
+            if (index == pos && !anywhere.isEmpty())
+                settle(pos);
+            return checkpoints.get(index).stream().filter(Checkpoint::accepting);
+        }
+
+        Registrations regs = registrations.get(index);
+        if (regs == null) return Stream.empty();
+
+        // match-only: checkpoints without incoming transitions, only used to create Match objects
+        // (one per accepting state, as the automaton of a regex set has many)
+        return IntStream.range(0, regs.size)
+            .filter(i -> regs.states[i].accepting)
+            .boxed()
+            .flatMap(i -> Arrays.stream(regs.states[i].states)
+                .filter(state -> state.transitions.isEmpty())
+                .map(state -> new Checkpoint(regs.regexes[i].automaton().table, state.id,
+                    regs.starts[i], index, regs.regexes[i], -1)));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    Stream<Checkpoint> stream () {
+        return stream(pos);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a {@link MatchStream} representing the matches up to position {@code index}.
+     *
+     * <p>
+     * The stream remains valid if the streaming runner discards the position before a terminal
+     * operation is called on the stream. Until then, the runner does not recycle the memory that
+     * the stream refers to.
+     *
+     * @param index a position {@code >=} {@link #window_start()}
+     */
+    public MatchStream matches (int index)
+    {
+        if (index < window_start)
+            throw new IllegalArgumentException("Position " + index
+                + " was discarded by the streaming runner (window start: " + window_start + ")");
+
+        MatchStream matches = new MatchStream(stream(index), this);
+        if (!streaming || registrations != null) return matches;
+
+        for (Checkpoint cp: checkpoints.get(index))
+            if (cp.accepting())
+                pinned_start = Math.min(pinned_start, cp.first_start());
+
+        pinned = Math.max(pinned, index);
+        ++ open_streams;
+        matches.pins = 1;
+        return matches;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Called when a terminal operation is called on match streams returned by {@link
+     * #matches(int)}, which hold {@code pins} pins on the memory of this runner.
+     */
+    void release (int pins)
+    {
+        open_streams -= pins;
+
+        if (open_streams == 0) {
+            pinned = -1;
+            pinned_start = Integer.MAX_VALUE;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a {@link MatchStream} representing the matches up to the current position.
+     */
+    public MatchStream matches() {
+        return matches(pos);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Registers a listener to be notified of each match of {@code regex}, as soon as the runner is
+     * fed the item that ends the match. This lets you process matches as the input comes, instead
+     * of calling {@link #matches()} after each item.
+     * <p>
+     * The listener is notified of the same matches as {@link MatchStream#get} on the match stream
+     * for the new position, restricted to {@code regex}. As a consequence, empty matches are never
+     * notified. Matches are not retracted if the items that end them are deleted (with {@link
+     * #clear_last} or {@link #restore}), and are notified again if the items are fed again. A fork
+     * of this runner (cf. {@link #fork}) starts without listeners.
+     * <p>
+     * To get the match tree of a match, call {@code matches(match.end).for_range(match.start,
+     * match.end, match.regex).longest_tree()} from the listener.
+     */
+    public void on_match (Regex regex, MatchListener listener) {
+        listeners.computeIfAbsent(regex, k -> new ArrayList<>()).add(listener);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Notifies the listeners of the matches at the current position (cf. {@link #on_match}).
+     */
+    private void notify_listeners()
+    {
+        stream(pos)
+            .filter(it -> listeners.containsKey(it.matched()))
+            .flatMap(it -> it.start == Checkpoint.ANYWHERE ? it.expand() : Stream.of(it))
+            .map(it -> new Match(it.matched(), it.first_start(), it.pos))
+            .distinct()
+            .forEach(match -> {
+                for (MatchListener listener: listeners.get(match.regex))
+                    listener.on_match(match);
+            });
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Deletes the {@code amount} last items of input seen by the runner and undo the match
+     * progression they caused.
+     * <p>
+     * Throws an {@link IllegalStateException} if this runner was created with {@link #pike()}, as
+     * such runners do not retain the match progression of past positions.
+     */
+    public void clear_last (int amount)
+    {
+        if (pike && amount > 0)
+            throw new IllegalStateException(
+                "Pike VM runners can't clear input items.");
+
+        if (amount > pos)
+            throw new IllegalArgumentException("Trying to clear more input items ("
+                + amount + ") than were seen (" + pos + ")");
+
+        if (pos - amount < window_start)
+            throw new IllegalArgumentException("Trying to clear input items ("
+                + amount + ") below the window start (" + window_start + ")");
+
+        if (amount > 0) {
+            rewind(amount);
+            rollbacks.record(pos, Integer.MAX_VALUE);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Implements {@link #clear_last}, assuming its arguments were validated.
+     */
+    private void rewind (int amount)
+    {
+        if (ints != null)
+            ints.truncate(pos - amount);
+        else
+            input.truncate(pos - amount);
+        if (registrations != null)
+            registrations.clear_last(pos, amount);
+        else
+            checkpoints.clear_last(pos, amount);
+        pos -= amount;
+        last_reclaim = Math.min(last_reclaim, pos);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Filter the registrations that will be able to match after the current input position.
+     * <p>
+     * Feed all registration that are still able to generate new matches after the current input
+     * position to {@code pred}, if the result is {@code false}, the registration won't able to
+     * match after the current input position.
+     * <p>
+     * A negative decision can be reversed by another application of this method at the same input
+     * position, but NOT by applying this method at subsequent input positions.
+     */
+    public void filter_registrations (BiPredicate<Regex, Integer> pred)
+    {
+        if (registrations != null) {
+            Registrations regs = registrations.get(pos);
+            if (regs != null)
+                for (int i = 0; i < regs.size; ++i)
+                    regs.live[i] = added_anywhere(regs.regexes[i], regs.starts[i])
+                        || pred.test(regs.regexes[i], regs.starts[i]);
+            return;
+        }
+
+        for (Checkpoint cp: checkpoints.get(pos))
+            if (cp.start != Checkpoint.ANYWHERE)
+                cp.live = added_anywhere(cp.regex, cp.start) || pred.test(cp.regex, cp.start);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The state of a {@link Runner} at a given position, obtained with {@link #snapshot()}, which
+     * the runner can be restored to with {@link #restore}.
+     */
+    public static final class Snapshot
+    {
+        private final Runner runner;
+        private final int pos;
+        private final int time;
+        private final int size;
+        private final int registration_count;
+        private final int anywhere_count;
+
+        private Snapshot (Runner runner)
+        {
+            this.runner = runner;
+            this.pos = runner.pos;
+            this.time = runner.rollbacks.tick();
+            this.size = runner.registrations != null
+                ? runner.registrations.size(pos)
+                : runner.checkpoints.get(pos).size();
+            this.registration_count = runner.registration_count;
+            this.anywhere_count = runner.anywhere.size();
+        }
+
+        /**
+         * Returns the input position at which the snapshot was taken.
+         */
+        public int pos() {
+            return pos;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a snapshot of the current state of the runner, which the runner can be restored to
+     * with {@link #restore}, as long as it wasn't moved back to a position before the snapshot's
+     * position in the meantime, nor restored to an older snapshot taken at the same position.
+     * Taking a snapshot takes constant time.
+     * <p>
+     * Throws an {@link IllegalStateException} if this runner was created with {@link #pike()}, as
+     * such runners can't move back in the input (cf. {@link #clear_last}).
+     */
+    public Snapshot snapshot()
+    {
+        if (pike)
+            throw new IllegalStateException("Pike VM runners can't be restored to a snapshot.");
+
+        return new Snapshot(this);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Restores the runner to the state it was in when {@code snapshot} was taken: deletes the input
+     * items it was fed since, and undoes the match progression they caused, as well as the
+     * registrations made since (except those made at positions after the current position).
+     * <p>
+     * This takes time proportional to the number of input items that are deleted: the match
+     * progression of the positions before the snapshot's position is never modified, so the runner
+     * only has to discard what was recorded since.
+     * <p>
+     * Throws an {@link IllegalArgumentException} if the snapshot was taken by another runner, if
+     * the snapshot was invalidated (cf. {@link #snapshot}), or if this is a streaming runner that
+     * discarded the snapshot's position.
+     */
+    public void restore (Snapshot snapshot)
+    {
+        if (snapshot.runner != this)
+            throw new IllegalArgumentException("The snapshot was taken by another runner.");
+
+        if (snapshot.pos > pos || rollbacks.invalidates(snapshot.time, snapshot.pos))
+            throw new IllegalArgumentException(
+                "The runner was moved back before the snapshot since it was taken.");
+
+        if (snapshot.pos < window_start)
+            throw new IllegalArgumentException("The position of the snapshot (" + snapshot.pos
+                + ") was discarded by the streaming runner (window start: " + window_start + ")");
+
+        rewind(pos - snapshot.pos);
+
+        if (registrations != null)
+            registrations.truncate(pos, snapshot.size);
+        else
+            checkpoints.truncate(pos, snapshot.size, snapshot.registration_count);
+
+        if (anywhere.size() > snapshot.anywhere_count) {
+            Iterator<Automaton> it = anywhere.keySet().iterator();
+            for (int i = 0; i < snapshot.anywhere_count; ++i) it.next();
+            while (it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+
+        rollbacks.record(pos, snapshot.time);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a new runner in the same state as this one, which can then be fed input (and
+     * registrations) independently of this one, including on another thread.
+     * <p>
+     * Both runners share the match progression of the positions before the current position, which
+     * is not modified anymore (if either runner moves back before that position, it copies the
+     * progression of the position it moves back to). The progression of the current position is
+     * copied, as are the input items and the bookkeeping of the registrations, which takes time
+     * proportional to the number of items.
+     * <p>
+     * Throws an {@link IllegalStateException} if this runner was created with {@link #pike()}.
+     */
+    public Runner fork()
+    {
+        if (pike)
+            throw new IllegalStateException("Pike VM runners can't be forked.");
+
+        return new Runner(this);
+    }
+
+    // =============================================================================================
+
+    /**
+     * Feeds an item of input to the runner (cf. {@link #advance(Object)}).
+     */
+    private void feed (Object item)
+    {
+        before_item();
+
+        if (registrations != null)
+            advance_registrations(item);
+        else {
+            List<Checkpoint> cps = checkpoints.get(pos);
+            for (int i = 0; i < cps.size(); ++i)
+                if (cps.get(i).live)
+                    advance(cps.get(i), item);
+        }
+
+        input.add(item);
+        after_item();
+    }
 
-/**
- * Instances of this class are used to match regexes over an input.
- * <p>
- * Please refer to <a href="https://github.com/norswap/skelex/blob/master/doc/README.md">the user
- * manual</a> for more details, or to <a
- * href="https://github.com/norswap/skelex/blob/master/doc/implementation.md">the implementation
- * guide</a> for implementation details.
- */
-public final class Runner
-{
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * A value used in place of an input item to signify the absence of input.
+     * Performs the work required before feeding an input item to the runner, whatever its type.
      */
-    public static final Object NO_INPUT = new Object();
+    private void before_item()
+    {
+        if (!anywhere.isEmpty()) {
+            anywhere.forEach(this::add_origin);
+            settle(pos);
+        }
+
+        cache.clear();
+    }
 
     // ---------------------------------------------------------------------------------------------
 
-    private final CheckpointMap checkpoints = new CheckpointMap();
+    /**
+     * Performs the work required after feeding an input item to the runner (and storing it),
+     * whatever its type.
+     */
+    private void after_item()
+    {
+        if (pike)
+            checkpoints.retain_accepting(pos);
+
+        ++ pos;
+        assert (ints != null ? ints.end() : input.end()) == pos;
+
+        if (registrations == null && (prunable || max_span != Integer.MAX_VALUE))
+            prune();
+        prunable = false;
+
+        // the retained window size after the last reclamation bounds the cost of the next one
+        int interval = Math.max(MIN_RECLAIM_INTERVAL, last_reclaim - window_start);
+        if (streaming && pos - last_reclaim >= interval)
+            reclaim();
+
+        if (!listeners.isEmpty())
+            notify_listeners();
+    }
 
     // ---------------------------------------------------------------------------------------------
 
-    private ArrayList<Object> input = new ArrayList<>();
+    /**
+     * Removes the checkpoints at the current position that can't lead to new matches: those whose
+     * state isn't productive (cf. {@link State#productive}), and those of the registrations stopped
+     * by {@link #first_match()} or {@link #max_span(int)}. Accepting checkpoints are retained to
+     * represent their match (cf. {@link CheckpointMap#prune}).
+     * <p>
+     * Checkpoints whose start is {@link Checkpoint#ANYWHERE} are shared between start positions and
+     * are never removed. Neither are the checkpoints of the registrations that start at the current
+     * position, since these registrations can be added again (cf. {@link #add(int, Automaton)}).
+     */
+    private void prune()
+    {
+        List<Checkpoint> cps = checkpoints.get(pos);
+        HashSet<Integer> stopped = new HashSet<>();
+
+        if (first_match || max_span != Integer.MAX_VALUE)
+            for (Checkpoint cp: cps)
+                if (cp.start != Checkpoint.ANYWHERE && cp.start < pos
+                        && stops(cp.regex, cp.start, pos, cp.accepting()))
+                    stopped.add(cp.registration);
+
+        checkpoints.prune(pos, cp -> cp.start != Checkpoint.ANYWHERE && cp.start < pos
+            && (stopped.contains(cp.registration)
+                || !cp.accepting() && !cp.table.productive(cp.state, cp.count)));
+    }
 
     // ---------------------------------------------------------------------------------------------
 
-    private int pos = 0;
+    /**
+     * Whether the registration of {@code regex} at position {@code start} must be stopped at
+     * position {@code index} because of {@link #first_match()} (given whether it matches at that
+     * position) or {@link #max_span(int)}. Registrations implied by {@link #add_anywhere} are never
+     * stopped.
+     */
+    private boolean stops (Regex regex, int start, int index, boolean matches)
+    {
+        return (first_match && matches || index - start >= max_span)
+            && !added_anywhere(regex, start);
+    }
 
-    // =============================================================================================
+    // ---------------------------------------------------------------------------------------------
 
     /**
-     * Adds a new regex to be matched starting at the {@code index} position.
-     *
-     * @param index a position {@code >=} the current position
+     * Records that a checkpoint was created for {@code state} and {@code count}, so that {@link
+     * #prune} runs if the checkpoint may have to be removed (or may stop its registration, for
+     * first match runners).
      */
-    public void add (int index, Regex regex)
+    private void created (AnchorTable table, int state, int count)
     {
-        if (index < pos)
-            throw new IllegalArgumentException("Can't add an automaton below the current position.");
+        if (!table.productive(state, count) && (first_match || !table.accepting[state]))
+            prunable = true;
+    }
 
-        add(index, regex.automaton());
+    // ---------------------------------------------------------------------------------------------
+
+    private void check_object_input()
+    {
+        if (ints != null)
+            throw new IllegalStateException(
+                "This runner is driven by an IntRunner or a CharRunner.");
     }
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Adds a new regex to be matched starting at the current position.
+     * Returns the input item at the given position, which must have been retained. Primitive items
+     * (cf. {@link #use_primitive_input}) are boxed.
      */
-    public void add (Regex regex)
-    {
-        add(pos, regex.automaton());
+    private Object item (int index) {
+        return ints != null ? box(ints.get(index)) : input.get(index);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object box (int item) {
+        return chars ? (Object) Character.valueOf((char) item) : Integer.valueOf(item);
     }
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Feeds an item of input to the runner, incrementing the current position and potentially
-     * furthering the matches of registered regexes.
+     * Adds a new automaton to be matched starting at the {@code index} position.
+     *
+     * @param index a position {@code >=} the current position
      */
-    public void advance (Object item)
+    private void add (int index, Automaton automaton)
     {
-        for (Checkpoint cp: checkpoints.get(pos))
-            if (cp.live)
-                advance(cp, PRE, item);
-        input.add(item);
-        ++ pos;
-        assert input.size() == pos;
+        assert index >= pos;
+
+        boolean stop = first_match && !added_anywhere(automaton.regex, index);
+
+        if (registrations != null) {
+            DFAState start = automaton.dfa().start;
+            Registrations regs = registrations.at(index);
+            int i = regs.add(automaton.regex, index, start);
+            if (stop && start.accepting)
+                regs.live[i] = false;
+            return;
+        }
+
+        int registration = registration(index, automaton.regex);
+        if (checkpoints.find(index, registration, automaton.start.id, 0) != null) return;
+
+        Checkpoint cp = checkpoints.checkpoint(
+            automaton.table, automaton.start.id, index, index, automaton.regex, registration);
+        checkpoints.add(index, cp);
+        close(cp);
+
+        // a first match runner stops the registration if it matches the empty input
+        if (!stop) return;
+        boolean matched = false;
+
+        for (Checkpoint c: checkpoints.get(index))
+            matched |= c.registration == registration && c.accepting();
+
+        if (matched)
+            for (Checkpoint c: checkpoints.get(index))
+                if (c.registration == registration)
+                    c.live = false;
     }
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Feeds a collection of items of input (in iteration order) to the runner, increasing the
-     * current position and potentially furthering the matches of registered regexes.
+     * Adds a match of the automaton of a regex registered with {@link #add_anywhere}, starting at
+     * the current position.
+     * <p>
+     * Match-only and Pike VM runners simply add a regular registration. Other runners add a
+     * checkpoint for the start state with start {@link Checkpoint#ANYWHERE}, marked as an origin.
+     * If the checkpoint already exists at this position, it is simply marked: its closure was
+     * already checkpointed.
+     *
+     * @param registration the registration id and position of the regex (cf. {@link #anywhere})
      */
-    public void advance (Collection<?> items) {
-        items.forEach(this::advance);
+    private void add_origin (Automaton automaton, int[] registration)
+    {
+        if (registrations != null || pike) {
+            add(pos, automaton);
+            return;
+        }
+
+        Checkpoint cp = checkpoints.find(pos, registration[0], automaton.start.id, 0);
+
+        if (cp != null) {
+            cp.origin = true;
+            return;
+        }
+
+        cp = checkpoints.checkpoint(automaton.table, automaton.start.id,
+            Checkpoint.ANYWHERE, pos, automaton.regex, registration[0]);
+        cp.origin = true;
+        checkpoints.add(pos, cp);
+        close(cp);
     }
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Feeds a set of input items to the runner, increasing the current position and potentially
-     * furthering the matches of registered regexes.
+     * Whether the registration of {@code regex} at position {@code start} is implied by a
+     * registration made with {@link #add_anywhere}. This only matters for match-only and Pike VM
+     * runners, where these registrations are regular registrations, which must not be affected
+     * by {@link #filter_registrations}. In other runners, they are distinct from the registrations
+     * made with {@link #add(Regex)}, whose filtering doesn't change the set of matches.
      */
-    public void advance (Object... items) {
-        for (Object it: items) advance(it);
+    private boolean added_anywhere (Regex regex, int start)
+    {
+        if (anywhere.isEmpty()) return false;
+        int[] registration = anywhere.get(regex.automaton());
+        return registration != null && start >= registration[1];
     }
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Returns the current input position.
+     * Computes {@link Checkpoint#starts} for the checkpoints at position {@code index} whose start
+     * is {@link Checkpoint#ANYWHERE}, assuming it was computed for all previous positions: the
+     * union of the start positions of their sources, plus the position itself for origins.
+     * <p>
+     * This requires a fixpoint iteration, as the links between the checkpoints of a single
+     * position (through closures) may form cycles. In practice, it converges in a few rounds.
      */
-    public int pos() {
-        return pos;
+    private void settle (int index)
+    {
+        Collection<Checkpoint> cps = checkpoints.get(index);
+
+        for (Checkpoint cp: cps)
+        {
+            if (cp.start != Checkpoint.ANYWHERE) continue;
+            int[] starts = cp.origin ? StartSet.of(index) : null;
+
+            for (int i = 0; i < cp.transition_count(); ++i) {
+                Checkpoint source = cp.transition_source(i);
+                if (source.pos < index)
+                    starts = StartSet.union(starts, source.starts);
+            }
+
+            cp.starts = starts;
+        }
+
+        boolean changed = true;
+
+        while (changed)
+        {
+            changed = false;
+
+            for (Checkpoint cp: cps)
+            {
+                if (cp.start != Checkpoint.ANYWHERE) continue;
+
+                for (int i = 0; i < cp.transition_count(); ++i) {
+                    Checkpoint source = cp.transition_source(i);
+                    if (source.pos != index) continue;
+                    int[] starts = StartSet.union(cp.starts, source.starts);
+                    if (starts != cp.starts) {
+                        cp.starts = starts;
+                        changed = true;
+                    }
+                }
+            }
+        }
     }
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Return the input seen by the runner.
+     * Returns the id of the registration of {@code regex} at position {@code index}, assigning a
+     * new id if there is no such registration yet.
+     * <p>
+     * Registrations are usually added at increasing positions, which can be handled using {@link
+     * #last_registrations}. Otherwise, we look up the registration's checkpoints at its start
+     * position.
      */
-    public List<?> input() {
-        return Collections.unmodifiableList(input);
+    private int registration (int index, Regex regex)
+    {
+        int[] last = last_registrations.get(regex);
+
+        if (last == null)
+            last_registrations.put(regex, last = new int[] { -1, -1 });
+        else if (last[1] == index)
+            return last[0];
+        else if (last[1] > index) {
+            for (Checkpoint cp: checkpoints.get(index))
+                if (cp.regex == regex && cp.start == index)
+                    return cp.registration;
+            return registration_count++;
+        }
+
+        last[0] = registration_count++;
+        last[1] = index;
+        return last[0];
     }
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * A return value of true indicates that no previous registration are still able to match
-     * more input, in which case advancing in the input without adding new regexes is useless.
+     * Takes all input-consuming chains of transitions starting from the state within {@code
+     * source} whose NORMAL transition accepts {@code item}.
      * <p>
-     * Note that a return value of false does not guarantee that any matches can still occur!
+     * These chains, and the anchor states they reach, are precomputed by {@link AutomatonBuilder}
+     * and laid out in the automaton's {@link AnchorTable}. Each reached anchor state is
+     * checkpointed at input position {@code pos+1}, followed by the anchor states that can be
+     * reached from it without consuming any input.
+     * <p>
+     * The steps whose NORMAL transition accepts the item are only selected once per anchor state
+     * and input item (cf. {@link StepCache}), no matter how many checkpoints hold the state.
      */
-    public boolean dead() {
-        return checkpoints.is_empty(pos);
+    private void advance (Checkpoint source, Object item)
+    {
+        int state = source.state;
+        cache.use(source.table);
+
+        if (!cache.has(state)) {
+            cache.start(state);
+            select(source.table, state, item);
+            cache.finish(state);
+        }
+
+        for (int i = cache.from(state), end = cache.to(state); i < end; ++i)
+            take(source, cache.step(i));
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    Stream<Checkpoint> stream (int index) {
-        return checkpoints.get(index).stream().filter(Checkpoint::accepting);
+    /**
+     * Like {@link #advance(Checkpoint, Object)}, for primitive input items (cf. {@link
+     * #advance_int(int)}).
+     */
+    private void advance_int (Checkpoint source, int item)
+    {
+        int state = source.state;
+        cache.use(source.table);
+
+        if (!cache.has(state)) {
+            cache.start(state);
+            select_int(source.table, state, item);
+            cache.finish(state);
+        }
+
+        for (int i = cache.from(state), end = cache.to(state); i < end; ++i)
+            take(source, cache.step(i));
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    Stream<Checkpoint> stream () {
-        return stream(pos);
+    /**
+     * Adds the steps of {@code state} whose NORMAL transition accepts {@code item} to the cache,
+     * in order.
+     * <p>
+     * If the state has a {@link StepIndex}, only the steps it returns for the item are considered,
+     * and the predicates of the steps retrieved by hash lookup are not tested. The predicates of
+     * repeated steps (cf. {@link AnchorTable#repeats}) are not tested either: they are selected
+     * iff their earlier step was.
+     */
+    private void select (AnchorTable table, int state, Object item)
+    {
+        StepIndex index = table.indexes[state];
+        int[] repeats = table.repeats;
+
+        if (index == null || item == null) {
+            int end = table.step_offsets[state + 1];
+            for (int step = table.step_offsets[state]; step < end; ++step)
+                if (repeats != null && repeats[step] >= 0
+                        ? cache.added(repeats[step])
+                        : table.predicates[step].test(item))
+                    cache.add(step);
+            return;
+        }
+
+        int[] equal  = index.equal(item);
+        int[] others = index.others(item);
+        int i = 0, j = 0;
+
+        // merge both arrays in step order (the order matters for match trees)
+        while (i < equal.length || j < others.length)
+        {
+            if (j == others.length || i < equal.length && equal[i] < others[j])
+                cache.add(equal[i++]);
+            else {
+                int step = others[j++];
+                if (repeats != null && repeats[step] >= 0
+                        ? cache.added(repeats[step])
+                        : table.refinements[step].test(item))
+                    cache.add(step);
+            }
+        }
     }
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Returns a {@link MatchStream} representing the matches up to position {@code index}.
+     * Like {@link #select(AnchorTable, int, Object)}, for primitive input items.
+     * <p>
+     * The {@link IntItemPredicate}s are tested on the item directly. The item is only boxed to
+     * test other predicates, or if the state has a {@link StepIndex}.
      */
-    public MatchStream matches (int index) {
-        return new MatchStream(stream(index), this);
+    private void select_int (AnchorTable table, int state, int item)
+    {
+        if (table.indexes[state] != null) {
+            select(table, state, box(item));
+            return;
+        }
+
+        Object boxed = null;
+        int[] repeats = table.repeats;
+        int end = table.step_offsets[state + 1];
+
+        for (int step = table.step_offsets[state]; step < end; ++step)
+        {
+            if (repeats != null && repeats[step] >= 0) {
+                if (cache.added(repeats[step]))
+                    cache.add(step);
+                continue;
+            }
+
+            IntItemPredicate pred = table.int_predicates[step];
+
+            if (pred != null) {
+                if (pred.chars == chars && pred.pred.test(item))
+                    cache.add(step);
+                continue;
+            }
+
+            if (boxed == null)
+                boxed = box(item);
+
+            if (table.predicates[step].test(boxed))
+                cache.add(step);
+        }
     }
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Returns a {@link MatchStream} representing the matches up to the current position.
+     * Takes all the chains of the given step from the state within {@code source}. The NORMAL
+     * transition of the step must accept the current input item. In automata with counted
+     * repetitions, the chains whose counter doesn't accept the count of {@code source} are skipped
+     * (cf. {@link Counter}).
      */
-    public MatchStream matches() {
-        return matches(pos);
+    private void take (Checkpoint source, int step)
+    {
+        AnchorTable table = source.table;
+        Counter[] counters = table.chain_counters;
+        int end = table.chain_offsets[step + 1];
+
+        for (int chain = table.chain_offsets[step]; chain < end; ++chain)
+        {
+            int count = counters == null ? 0 : Counter.apply(counters[chain], source.count);
+            if (count < 0) continue;
+            int target = table.chain_targets[chain];
+            Checkpoint next = checkpoints.find(pos+1, source.registration, target, count);
+
+            if (next != null) {
+                link_existing(next, source, table.chains[chain]);
+                continue;
+            }
+
+            next = checkpoints.checkpoint(table, target,
+                source.start, pos+1, source.regex, source.registration);
+            next.count = count;
+            link(next, source, table.chains[chain]);
+            checkpoints.add(pos+1, next);
+            created(table, target, count);
+            close(next);
+        }
     }
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Deletes the {@code amount} last items of input seen by the runner and undo the match
-     * progression they caused.
+     * Records that the newly created checkpoint {@code next} was reached from {@code source}
+     * through {@code chain}: as an incoming link, or by extending the log of {@code source} for
+     * Pike VM runners.
      */
-    public void clear_last (int amount)
+    private void link (Checkpoint next, Checkpoint source, Chain chain)
     {
-        if (amount > pos)
-            throw new IllegalArgumentException("Trying to clear more input items ("
-                + amount + ") than were seen (" + pos + ")");
-
-        input.subList(pos - amount, pos).clear();
-        checkpoints.clear_last(pos, amount);
-        pos -= amount;
+        if (pike)
+            next.log = new ChainLog(chain, source.log);
+        else
+            next.add_transition(source, chain);
     }
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Filter the registrations that will be able to match after the current input position.
-     * <p>
-     * Feed all registration that are still able to generate new matches after the current input
-     * position to {@code pred}, if the result is {@code false}, the registration won't able to
-     * match after the current input position.
-     * <p>
-     * A negative decision can be reversed by another application of this method at the same input
-     * position, but NOT by applying this method at subsequent input positions.
+     * Records that the existing checkpoint {@code next} was reached from {@code source} through
+     * {@code chain}. Pike VM runners only record the highest priority path to each checkpoint,
+     * which was found first, so this path is dropped.
      */
-    public void filter_registrations (BiPredicate<Regex, Integer> pred)
+    private void link_existing (Checkpoint next, Checkpoint source, Chain chain)
     {
-        for (Checkpoint cp: checkpoints.get(pos))
-            cp.live = pred.test(cp.regex, cp.start);
+        if (!pike)
+            next.add_transition(source, chain);
     }
 
-    // =============================================================================================
+    // ---------------------------------------------------------------------------------------------
 
     /**
-     * Adds a new automaton to be matched starting at the {@code index} position.
-     *
-     * @param index a position {@code >=} the current position
+     * Advances all live registrations at the current position of a match-only runner by
+     * consuming {@code item}, dropping those that can't match anymore, or that are stopped by
+     * {@link #first_match()} or {@link #max_span(int)}. The registrations that match but can't
+     * match anymore afterwards are retained (to represent their match), but are not live.
      */
-    private void add (int index, Automaton automaton)
+    private void advance_registrations (Object item)
     {
-        assert index >= pos;
+        Registrations regs = registrations.get(pos);
+        if (regs == null || regs.size == 0) return;
+        Registrations next = registrations.at(pos + 1);
 
-        Checkpoint cp = new Checkpoint(automaton.start, index, index, automaton.regex);
-        checkpoints.add(index, cp);
+        for (int i = 0; i < regs.size; ++i)
+        {
+            if (!regs.live[i]) continue;
+            DFAState state = regs.states[i].next(item);
+            boolean live = state.productive
+                && !stops(regs.regexes[i], regs.starts[i], pos + 1, state.accepting);
 
-        // pos manipulation necessary because advance(...) adds checkpoints to the next position
-        -- pos;
-        advance(cp, PRE, NO_INPUT);
-        ++ pos;
+            if (live || state.accepting)
+                next.append(regs.regexes[i], regs.starts[i], state, live);
+        }
     }
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Attempt to take all valid chains of transitions starting from the state within {@code
-     * source}.
-     * <p>
-     * The next transition that can be taken is constrained by {@code stage}:
-     * <ul>
-     *   <li>PRE:  only PRE and NORMAL transitions (all if {@code item == NO_INPUT})</li>
-     *   <li>POST: only POST transitions</li>
-     * </ul>
-     * <p>
-     * Each time a transition is taken, a new {@link Checkpoint} is created and this function
-     * is called recursively (potentially with a new {@code stage}).
-     * <p>
-     * The intended result of a non-recursive call of this function is to follow all valid chains
-     * from the start state that do or do not consume an item of input (depending on whether
-     * {@code item == NO_INPUT}).
-     * <p>
-     * A valid chain is either: PRE* NORMAL POST* (input-consuming chain) or PRE* POST+
-     * (non-consuming chain).
-     * <p>
-     * Whenever such a chain reachs its end, the corresponding checkpoint is merged at input
-     * position {@code pos+1}. Then a recursive call checks whether another non-consuming chain
-     * can be formed after the previous chain (multiple such non-consuming chains can follow
-     * each other).
+     * Checkpoints all the anchor states that can be reached from the state within the newly added
+     * checkpoint {@code anchor} without consuming any input (cf. {@link State#closure}), skipping
+     * the closure chains whose counter doesn't accept the count of their source.
      */
-    private void advance (Checkpoint source, int stage, Object item)
+    private void close (Checkpoint anchor)
     {
-        State state = source.state;
-        boolean continued = false; // was any transition taken from this state?
+        AnchorTable table = anchor.table;
+        Counter[] counters = table.closure_counters;
+        int offset = table.closure_offsets[anchor.state];
+        int length = table.closure_offsets[anchor.state + 1] - offset;
+        if (length == 0) return;
 
-        for (Transition transition: state.transitions)
+        if (reached.length < length)
+            reached = new Checkpoint[Math.max(length, reached.length * 2)];
+
+        for (int i = 0; i < length; ++i)
         {
-            int stage1 = stage;
-
-            switch (transition.type) {
-                case PRE:
-                    if (stage == POST) continue;
-                    break;
-                case NORMAL:
-                    if (stage == POST || item == NO_INPUT || !transition.predicate.test(item))
-                        continue;
-                    stage1 = POST;
-                    break;
-                case POST:
-                    // NO_INPUT is allowed to go from PRE to POST without consuming an item
-                    if (stage == PRE && item != NO_INPUT) continue;
-                    stage1 = POST;
-                    break;
-                default:
-                    throw new Error();
+            int parent = table.closure_parents[offset + i];
+            int target = table.closure_targets[offset + i];
+            Chain chain = table.closure_chains[offset + i];
+            Checkpoint source = parent < 0 ? anchor : reached[parent];
+            int count = source == null ? -1
+                : counters == null ? 0
+                : Counter.apply(counters[offset + i], source.count);
+
+            if (count < 0) {
+                reached[i] = null;
+                continue;
+            }
+
+            Checkpoint next = checkpoints.find(anchor.pos, anchor.registration, target, count);
+
+            if (next != null)
+                link_existing(next, source, chain);
+            else {
+                next = checkpoints.checkpoint(table, target,
+                    anchor.start, anchor.pos, anchor.regex, anchor.registration);
+                next.count = count;
+                link(next, source, chain);
+                checkpoints.add(anchor.pos, next);
+                created(table, target, count);
             }
 
-            Checkpoint next = new Checkpoint(transition.target, source.start, pos+1, source.regex);
-            next.add_transition(source, transition);
-            advance(next, stage1, item);
-            continued = true;
+            reached[i] = next;
         }
 
-        if (!continued && stage == POST)
-        {
-            checkpoints.add(pos+1, source);
-            // What if the input ended here?
-            // Might create a new checkpoint at the same position (but in a different state).
-            advance(source, PRE, NO_INPUT);
+        Arrays.fill(reached, 0, length, null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Discards the match progression recorded below the smallest start position of the live
+     * registrations at the current position, as well as the input items that can't be needed to
+     * build the match trees of the retained positions anymore.
+     * <p>
+     * This is linear in the number of retained checkpoints, but is called at intervals that grow
+     * with the size of the retained window, making it amortized constant per input item.
+     */
+    private void reclaim()
+    {
+        int low = pos;
+
+        if (registrations != null) {
+            Registrations regs = registrations.get(pos);
+            if (regs != null)
+                for (int i = 0; i < regs.size; ++i)
+                    if (regs.live[i])
+                        low = Math.min(low, regs.starts[i]);
+        }
+        else {
+            if (!anywhere.isEmpty())
+                settle(pos);
+
+            for (Checkpoint cp: checkpoints.get(pos))
+                if (cp.live)
+                    low = Math.min(low, cp.first_start());
         }
+
+        low = Math.max(low, window_start);
+        int input_low = Math.min(low, pinned_start);
+
+        // retained checkpoints may yield trees for matches that started earlier
+        if (registrations == null)
+            for (int i = low; i <= pos; ++i)
+                for (Checkpoint cp: checkpoints.get(i))
+                    input_low = Math.min(input_low, cp.first_start());
+
+        if (registrations != null)
+            registrations.evict(low);
+        else
+            checkpoints.evict(low, input_low, pinned);
+
+        if (ints != null)
+            ints.evict(input_low);
+        else
+            input.evict(input_low);
+        window_start = low;
+        last_reclaim = pos;
     }
 
     // =============================================================================================
@@ -293,63 +1618,92 @@ public final class Runner
     {
         if (checkpoint == null) return null;
 
-        // 1. Extract the transition trace.
+        if (registrations != null)
+            throw new IllegalStateException(
+                "Match trees are not available from match-only runners.");
 
-        ArrayList<Transition> trace = new ArrayList<>();
+        if (checkpoint.start < (ints != null ? ints.start() : input.start()))
+            throw new IllegalStateException(
+                "The input of the match was discarded by the streaming runner.");
 
-        while (checkpoint.transition_count() > 0)
-        {
-            trace.add(checkpoint.transition(0));
-            checkpoint = checkpoint.transition_source(0);
-        }
+        if (checkpoint.registration < 0)
+            return replay(checkpoint.regex, checkpoint.matched(), checkpoint.start, end);
 
-        Collections.reverse(trace);
+        return tree(checkpoint, new MatchTree(checkpoint.matched(), checkpoint.start, end));
+    }
+
+    // ---------------------------------------------------------------------------------------------
 
-        // 2. Replay the transition trace.
+    /**
+     * Generates the {@link MatchTree} for a match of a regex registered with {@link #add_anywhere}
+     * between the given positions.
+     * <p>
+     * Since the checkpoints of such regexes are shared between start positions, the tree can't
+     * be read from them. Instead, the match is replayed in a fresh runner, yielding the same tree
+     * as if the regex had been registered at {@code start} with {@link #add(int, Regex)}. If the
+     * regex is a {@link norswap.skelex.regex.RegexSet}, {@code matched} designates the regex of
+     * the set whose match tree is generated (cf. {@link Checkpoint#matched}).
+     */
+    private MatchTree replay (Regex regex, Regex matched, int start, int end)
+    {
+        Runner replay = new Runner();
+        replay.add(regex);
 
-        MatchTree match = new MatchTree(checkpoint.regex, checkpoint.start, end);
+        for (int i = start; i < end; ++i)
+            replay.advance(item(i));
 
-        int trace_i = 0;
-        int input_i = checkpoint.start;
+        for (Checkpoint cp: replay.checkpoints.get(replay.pos))
+            if (cp.accepting() && cp.matched() == matched)
+                return replay.tree(cp, new MatchTree(matched, start, end));
 
-        while (trace_i < trace.size())
-        {
-            // The next input item or NO_INPUT if we're over the input size.
-            Object item = input_i < input.size() ? input.get(input_i) : NO_INPUT;
+        throw new IllegalStateException("The replayed match did not succeed.");
+    }
 
-            // play PRE actions
-            while (trace_i < trace.size())
-            {
-                Transition t = trace.get(trace_i);
-                if (t.type != Transition.PRE) break;
-                ++trace_i;
-                t.action.accept(match, item);
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Fills in {@code match} by replaying the transition trace leading to {@code checkpoint}, over
+     * the input starting at {@code checkpoint.start}.
+     */
+    private MatchTree tree (Checkpoint checkpoint, MatchTree match)
+    {
+        // 1. Extract the transition trace.
+
+        ArrayList<Chain> chains = new ArrayList<>();
+
+        if (pike) {
+            for (ChainLog log = checkpoint.log; log != null; log = log.prev)
+                chains.add(log.chain);
+        }
+        else {
+            while (checkpoint.transition_count() > 0) {
+                chains.add(checkpoint.transition(0));
+                checkpoint = checkpoint.transition_source(0);
             }
+        }
+
+        // 2. Replay the transition trace, chain by chain. Each input item is passed to the NORMAL
+        //    action that consumes it, and to the PRE and POST actions around it.
+
+        int input_i = checkpoint.start;
+        Object item = input_i < pos ? item(input_i) : NO_INPUT;
+        int last = Transition.PRE;
 
-            // play NORMAL action
-            if (trace_i < trace.size())
+        for (int i = chains.size() - 1; i >= 0; --i)
+            for (Transition t: chains.get(i).trace)
             {
-                Transition t = trace.get(trace_i);
+                if (t.type != Transition.POST && last != Transition.PRE)
+                    item = input_i < pos ? item(input_i) : NO_INPUT;
 
-                if (t.type == Transition.NORMAL)
-                {
+                if (t.type == Transition.NORMAL) {
                     if (item == NO_INPUT)
                         throw new IllegalStateException("The trace does not match with the input.");
                     ++input_i;
-                    ++trace_i;
-                    t.action.accept(match, item);
                 }
-            }
 
-            // play POST actions
-            while (trace_i < trace.size())
-            {
-                Transition t = trace.get(trace_i);
-                if (t.type != Transition.POST) break;
-                ++trace_i;
                 t.action.accept(match, item);
+                last = t.type;
             }
-        }
 
         return match;
     }
@@ -21,9 +21,9 @@ public final class Skelex
         runner.add(regex);
 
         for (Object it: input) {
-            runner.advance(it);
             if (runner.dead())
                 return new MatchStream(Stream.empty(), runner);
+            runner.advance(it);
         }
 
         return runner.matches();
@@ -37,16 +37,20 @@ public final class Skelex
     public static MatchStream matches_anywhere (Regex regex, List<?> input)
     {
         Runner runner = new Runner();
+        runner.add_anywhere(regex);
 
-        Stream<Checkpoint> stream = input.stream()
-            .map(it -> {
-                runner.add(regex);
-                runner.advance(it);
-                return runner.stream();
-            })
-            .flatMap(Function.identity());
+        ArrayList<Checkpoint> matches = new ArrayList<>();
 
-        return new MatchStream(stream, runner);
+        // Frozen right away: feeding the next item adds the (empty) match starting at the current
+        // position to the checkpoints of that position.
+        for (Object it: input) {
+            runner.advance(it);
+            runner.stream()
+                .map(cp -> cp.start == Checkpoint.ANYWHERE ? cp.frozen() : cp)
+                .forEach(matches::add);
+        }
+
+        return new MatchStream(matches.stream(), runner);
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -64,8 +68,8 @@ public final class Skelex
 
         for (Object it: input) {
             runner.advance(it);
-            if (runner.dead()) break;
             streams.add(runner.stream());
+            if (runner.dead()) break;
         }
 
         Stream<Checkpoint> stream = streams.stream().flatMap(Function.identity());
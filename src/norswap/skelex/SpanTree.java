@@ -0,0 +1,457 @@
+package norswap.skelex;
+
+import java.util.Arrays;
+
+/**
+ * A compact alternative to {@link MatchTree}, which records the structure of a match, but not the
+ * matched input items: each node only records the span of input it matches.
+ * <p>
+ * The tree is flattened in a few {@code int} arrays, and its nodes are designated by {@code int}
+ * handles. The nodes are the same as those of the corresponding {@link MatchTree}: lists (for
+ * sequences and repetitions), branches (for choices), null nodes (for empty optional regexes),
+ * and items. The node accessors take a handle and throw an {@link IllegalArgumentException} if
+ * the node is not of the required kind.
+ * <p>
+ * Like {@link MatchTree#get}, the chain access methods ({@link #get}, {@link #fmap}, ...) start
+ * from a node and repeatedly select an item of the current list, transparently going through
+ * branches. The wildcard {@link MatchTree#$} is not supported.
+ * <p>
+ * Span trees are obtained from match streams ({@link MatchStream#longest_span_tree}, {@link
+ * MatchStream#span_trees}) or by converting a match tree ({@link MatchTree#span_tree}). Building
+ * one doesn't allocate per node: this is the preferred representation to retain many matches.
+ */
+public final class SpanTree extends Match
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The handle returned by {@link #fmap} when the path can't be followed.
+     */
+    public static final int NONE = -1;
+
+    // ---------------------------------------------------------------------------------------------
+
+    // node kinds: branches are represented by their (non-negative) index
+    private static final int ITEM = -1;
+    private static final int NULL = -2;
+    private static final int LIST = -3;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * For each node, four integers: its kind, the start and end of its span, and an argument: the
+     * handle of the value for a branch, or the offset of its item count in {@link #items} for a
+     * list, which is followed by the handles of the items.
+     */
+    private int[] nodes;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int[] items;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final int root;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Builds a span tree by simulating the operations recorded in {@code trace} on a stack of node
+     * handles (cf. {@link TreeTrace}). Each input item is pushed by an {@link TreeTrace#ITEM}
+     * operation, in order, which tells us the position of each operation.
+     */
+    SpanTree (Regex regex, int start, int end, TreeTrace trace)
+    {
+        super(regex, start, end);
+
+        int size = trace.size();
+        nodes = new int[4 * Math.max(size, 1)];
+        // during construction: the first and last items of lists, the next item of list items
+        int[] first = new int[size];
+        int[] last = new int[size];
+        int[] next = new int[size];
+        int[] stack = new int[8];
+        int top = 0;
+        int count = 0;
+        int pos = start;
+
+        for (int i = 0; i < size; ++i)
+        {
+            if (top == stack.length)
+                stack = Arrays.copyOf(stack, top * 2);
+
+            switch (trace.op(i))
+            {
+                case TreeTrace.ITEM:
+                    stack[top++] = node(count++, ITEM, pos, pos + 1, -1);
+                    ++ pos;
+                    break;
+
+                case TreeTrace.NULL:
+                    stack[top++] = node(count++, NULL, pos, pos, -1);
+                    break;
+
+                case TreeTrace.LIST:
+                    stack[top++] = node(count++, LIST, pos, pos, 0);
+                    last[count - 1] = -1;
+                    break;
+
+                case TreeTrace.MARK:
+                    stack[top++] = ~pos;
+                    break;
+
+                case TreeTrace.COLLECT: {
+                    int bottom = top - 1;
+                    while (stack[bottom] >= 0) -- bottom;
+                    int list = node(count++, LIST, ~stack[bottom], pos, top - bottom - 1);
+                    last[list] = -1;
+                    for (int j = bottom + 1; j < top; ++j)
+                        append(list, stack[j], first, last, next);
+                    top = bottom;
+                    stack[top++] = list;
+                    break;
+                }
+
+                case TreeTrace.BRANCH: {
+                    int value = stack[top - 1];
+                    stack[top - 1] = node(count++, trace.branch(i),
+                        nodes[4 * value + 1], nodes[4 * value + 2], value);
+                    break;
+                }
+
+                case TreeTrace.DROP:
+                    -- top;
+                    break;
+
+                case TreeTrace.ACCRETE: {
+                    int list = stack[top - 2];
+                    append(list, stack[top - 1], first, last, next);
+                    ++ nodes[4 * list + 3];
+                    nodes[4 * list + 2] = pos;
+                    -- top;
+                    break;
+                }
+            }
+        }
+
+        assert top == 1;
+        root = stack[0];
+        nodes = Arrays.copyOf(nodes, 4 * count);
+
+        // lay out the items of each list contiguously
+        int item_count = 0;
+        for (int n = 0; n < count; ++n)
+            if (nodes[4 * n] == LIST)
+                item_count += 1 + nodes[4 * n + 3];
+
+        items = new int[item_count];
+        int offset = 0;
+
+        for (int n = 0; n < count; ++n)
+        {
+            if (nodes[4 * n] != LIST) continue;
+            int length = nodes[4 * n + 3];
+            items[offset] = length;
+            nodes[4 * n + 3] = offset;
+            int item = first[n];
+            for (int j = 1; j <= length; ++j) {
+                items[offset + j] = item;
+                item = next[item];
+            }
+            offset += 1 + length;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int node (int handle, int kind, int start, int end, int arg)
+    {
+        if (4 * handle == nodes.length)
+            nodes = Arrays.copyOf(nodes, nodes.length * 2);
+
+        nodes[4 * handle]     = kind;
+        nodes[4 * handle + 1] = start;
+        nodes[4 * handle + 2] = end;
+        nodes[4 * handle + 3] = arg;
+        return handle;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Appends {@code item} to the items of {@code list}, during construction.
+     */
+    private static void append (int list, int item, int[] first, int[] last, int[] next)
+    {
+        if (last[list] < 0) first[list] = item;
+        else next[last[list]] = item;
+        last[list] = item;
+    }
+
+    // =============================================================================================
+    // NODE ACCESS
+
+    /**
+     * Returns the handle of the root node.
+     */
+    public int root() {
+        return root;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the input position at which the node's span starts (inclusive).
+     */
+    public int start (int node) {
+        return nodes[4 * node + 1];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the input position at which the node's span ends (exclusive).
+     */
+    public int end (int node) {
+        return nodes[4 * node + 2];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the node is a list, matching a sequence or a repetition.
+     */
+    public boolean is_list (int node) {
+        return nodes[4 * node] == LIST;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the node is a branch, matching a choice.
+     */
+    public boolean is_branch (int node) {
+        return nodes[4 * node] >= 0;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the node is null, matching an empty optional regex.
+     */
+    public boolean is_null (int node) {
+        return nodes[4 * node] == NULL;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the node is an input item, whose position is {@code start(node)}.
+     */
+    public boolean is_item (int node) {
+        return nodes[4 * node] == ITEM;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of items in the list node.
+     */
+    public int size (int node) {
+        return items[list_offset(node)];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the handle of the item at {@code index} in the list node.
+     */
+    public int item (int node, int index)
+    {
+        int offset = list_offset(node);
+        if (index < 0 || index >= items[offset])
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + items[offset]);
+        return items[offset + 1 + index];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the index of the choice alternative selected by the branch node.
+     */
+    public int branch_index (int node) {
+        check_branch(node);
+        return nodes[4 * node];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the handle of the value of the branch node.
+     */
+    public int branch_value (int node) {
+        check_branch(node);
+        return nodes[4 * node + 3];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int list_offset (int node)
+    {
+        if (!is_list(node))
+            throw new IllegalArgumentException("Node " + node + " is not a list.");
+        return nodes[4 * node + 3];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void check_branch (int node)
+    {
+        if (!is_branch(node))
+            throw new IllegalArgumentException("Node " + node + " is not a branch.");
+    }
+
+    // =============================================================================================
+    // CHAIN ACCESS
+
+    /**
+     * Returns the handle of the node obtained by getting the item at the first index in {@code
+     * indices} in the list node {@code node}, then repeatedly applying this process on the last
+     * obtained node until all indices have been exhausted. Branches are traversed transparently.
+     * <p>
+     * If at some point a node is not a list or a list is too short for the given index, an
+     * exception is thrown.
+     */
+    public int _get (int node, int... indices)
+    {
+        int i = 0;
+        while (i < indices.length)
+        {
+            if (is_branch(node)) {
+                node = branch_value(node);
+                continue;
+            }
+
+            if (indices[i] == MatchTree.$)
+                throw new IllegalArgumentException("Span trees do not support wildcards.");
+            if (!is_list(node))
+                throw new IllegalArgumentException((i + 1) + "th item in the path cannot be indexed");
+
+            node = item(node, indices[i]);
+            ++i;
+        }
+        return node;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Like {@link #_get}, but returns {@link #NONE} if at some point the function attempts to index
+     * a null node, or if a list is too short for the given index.
+     */
+    public int _fmap (int node, int... indices)
+    {
+        int i = 0;
+        while (i < indices.length)
+        {
+            if (is_branch(node)) {
+                node = branch_value(node);
+                continue;
+            }
+
+            if (indices[i] == MatchTree.$)
+                throw new IllegalArgumentException("Span trees do not support wildcards.");
+            if (is_null(node))
+                return NONE;
+            if (!is_list(node))
+                throw new IllegalArgumentException((i + 1) + "th item in the path cannot be indexed");
+            if (indices[i] >= size(node))
+                return NONE;
+
+            node = item(node, indices[i]);
+            ++i;
+        }
+        return node;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #_get(int, int...)}, starting from the root node.
+     */
+    public int get (int... indices) {
+        return _get(root, indices);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #_fmap(int, int...)}, starting from the root node.
+     */
+    public int fmap (int... indices) {
+        return _fmap(root, indices);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #get}, but throws an exception if the node is not a branch.
+     */
+    public int get_branch (int... indices)
+    {
+        int node = get(indices);
+        check_branch(node);
+        return node;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #get}, but throws an exception if the node is not a list.
+     */
+    public int get_list (int... indices)
+    {
+        int node = get(indices);
+        list_offset(node);
+        return node;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void append (StringBuilder b, int node)
+    {
+        int kind = nodes[4 * node];
+
+        if (kind == ITEM)
+            b.append(start(node)).append('-').append(end(node));
+        else if (kind == NULL)
+            b.append("null");
+        else if (kind == LIST) {
+            b.append('[');
+            for (int i = 0; i < size(node); ++i) {
+                if (i > 0) b.append(", ");
+                append(b, item(node, i));
+            }
+            b.append(']');
+        }
+        else {
+            b.append('(').append(kind).append(", ");
+            append(b, branch_value(node));
+            b.append(')');
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Prints items as their span (e.g. {@code 3-4}), in the same structure as a {@link MatchTree}.
+     */
+    @Override public String toString()
+    {
+        StringBuilder b = new StringBuilder(super.toString()).append('<');
+        append(b, root);
+        return b.append('>').toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,190 @@
+package norswap.skelex;
+
+import norswap.skelex.regex.Pred;
+import norswap.skelex.regex.Seq;
+import norswap.skelex.regex.ZeroMore;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import static norswap.utils.Predicates.TRUE;
+
+/**
+ * Finds the positions of a long input at which matches of a regex end, by splitting the input in
+ * chunks that are matched in parallel (cf. {@link ParallelSkelex#match_ends}).
+ * <p>
+ * Like match-only runners, this uses the {@link DFA} of an automaton, here the automaton of {@code
+ * seq(zeromore(any), regex)}, whose DFA state after each position holds the anchor states reached
+ * by all the matches started so far. The state at the start of a chunk depends on all the previous
+ * input, so each chunk is first matched speculatively (in parallel) from the state obtained by
+ * running the DFA over the end of the previous chunk only (at most {@link #LOOKBACK} items). This
+ * state is a subset of the actual state, and is equal to it if the matches that span the chunk
+ * boundary start within the lookback window.
+ * <p>
+ * The speculation is then validated sequentially, in chunk order: once the actual state at the
+ * start of a chunk is known, the chunk is matched again from that state until it reaches the same
+ * DFA state as the speculative run, at which point the rest of the speculative run is valid (the
+ * DFA is deterministic). To avoid retaining a DFA state per input item, the speculative run only
+ * records its state every {@link #STRIDE} items, and the validation only checks for convergence at
+ * these positions.
+ */
+final class SpeculativeMatcher
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The maximum number of items that precede a chunk used to guess the state at its start.
+     */
+    static final int LOOKBACK = 1024;
+
+    // ---------------------------------------------------------------------------------------------
+
+    static final int STRIDE = 64;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final List<?> input;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final DFA dfa;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final int chunk_size;
+
+    // ---------------------------------------------------------------------------------------------
+
+    SpeculativeMatcher (Regex regex, List<?> input, int chunk_size)
+    {
+        if (chunk_size <= 0)
+            throw new IllegalArgumentException("The chunk size must be positive.");
+
+        this.input = input instanceof RandomAccess ? input : new ArrayList<>(input);
+        this.dfa = AutomatonBuilder.compile(new Seq(new ZeroMore(new Pred(TRUE)), regex)).dfa();
+        this.chunk_size = chunk_size;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The result of matching a chunk, speculatively then possibly again.
+     */
+    private final class Chunk
+    {
+        final int start;
+        final int end;
+
+        /**
+         * The positions at which a match ends, relative to {@link #start}.
+         */
+        final BitSet ends = new BitSet();
+
+        /**
+         * The DFA state at {@code start + STRIDE * i} for each {@code i}.
+         */
+        final DFAState[] samples;
+
+        DFAState first;
+        DFAState last;
+
+        Chunk (int start, int end) {
+            this.start = start;
+            this.end = end;
+            this.samples = new DFAState[(end - start) / STRIDE + 1];
+        }
+
+        /**
+         * Matches the chunk from the state obtained by running the DFA over the preceding items.
+         */
+        void speculate()
+        {
+            DFAState state = dfa.start;
+
+            for (int i = Math.max(0, start - LOOKBACK); i < start; ++i)
+                state = state.next(input.get(i));
+
+            first = state;
+            samples[0] = state;
+
+            for (int i = start; i < end; ++i)
+            {
+                state = state.next(input.get(i));
+                int offset = i + 1 - start;
+                if (state.accepting) ends.set(offset);
+                if (offset % STRIDE == 0) samples[offset / STRIDE] = state;
+            }
+
+            last = state;
+        }
+
+        /**
+         * Matches the chunk again from {@code state}, the actual state at its start, until the run
+         * converges with the speculative run.
+         */
+        void validate (DFAState state)
+        {
+            if (same(state, first)) return;
+
+            for (int i = start; i < end; ++i)
+            {
+                state = state.next(input.get(i));
+                int offset = i + 1 - start;
+                ends.set(offset, state.accepting);
+                if (offset % STRIDE == 0 && same(state, samples[offset / STRIDE])) return;
+            }
+
+            last = state;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether both DFA states represent the same set of anchor states. This is usually only the
+     * case if they are identical, but interned states may be duplicated (cf. {@link DFA}).
+     */
+    private static boolean same (DFAState a, DFAState b) {
+        return a == b || a.ids.equals(b.ids);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the set of positions {@code p} at which a match ends, i.e. such that the input items
+     * in {@code [s, p)} match the regex for some {@code s <= p}.
+     */
+    BitSet run (ForkJoinPool pool)
+    {
+        BitSet ends = new BitSet(input.size() + 1);
+        if (dfa.start.accepting) ends.set(0);
+
+        ArrayList<Chunk> chunks = new ArrayList<>();
+        for (int start = 0; start < input.size(); start += chunk_size)
+            chunks.add(new Chunk(start, Math.min(input.size(), start + chunk_size)));
+
+        ArrayList<ForkJoinTask<?>> tasks = new ArrayList<>(chunks.size());
+        for (Chunk chunk: chunks)
+            tasks.add(pool.submit(chunk::speculate));
+        for (ForkJoinTask<?> task: tasks)
+            task.join();
+
+        DFAState state = dfa.start;
+
+        for (Chunk chunk: chunks)
+        {
+            chunk.validate(state);
+            state = chunk.last;
+
+            for (int i = chunk.ends.nextSetBit(0); i >= 0; i = chunk.ends.nextSetBit(i + 1))
+                ends.set(chunk.start + i);
+        }
+
+        return ends;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
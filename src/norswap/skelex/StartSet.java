@@ -0,0 +1,115 @@
+package norswap.skelex;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Static methods to manipulate the sets of start positions of the checkpoints of registrations
+ * made with {@link Runner#add_anywhere} (cf. {@link Checkpoint#starts}).
+ * <p>
+ * A set is represented by an array of disjoint and non-adjacent intervals of positions, sorted in
+ * increasing order: {@code [low0, high0, low1, high1, ...]}, where the bounds are inclusive. The
+ * start positions that reach a checkpoint are usually contiguous, so these arrays are short. The
+ * empty set is represented by null.
+ * <p>
+ * Arrays are never modified once built, so that they can be shared between checkpoints: the
+ * union of two sets returns one of them if it contains the other.
+ */
+final class StartSet
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private StartSet() {}
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the set holding only {@code pos}.
+     */
+    static int[] of (int pos) {
+        return new int[] { pos, pos };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the smallest position in {@code set}, or {@link Integer#MAX_VALUE} if it is empty.
+     */
+    static int first (int[] set) {
+        return set == null ? Integer.MAX_VALUE : set[0];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the positions in {@code set}, in increasing order.
+     */
+    static IntStream stream (int[] set)
+    {
+        if (set == null) return IntStream.empty();
+
+        return IntStream.range(0, set.length / 2)
+            .flatMap(i -> IntStream.rangeClosed(set[2 * i], set[2 * i + 1]));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the union of {@code a} and {@code b}, which is {@code a} itself if it contains {@code
+     * b}, and {@code b} itself if it contains {@code a}.
+     */
+    static int[] union (int[] a, int[] b)
+    {
+        if (contains(a, b)) return a;
+        if (contains(b, a)) return b;
+
+        int[] union = new int[a.length + b.length];
+        int i = 0, j = 0, size = 0;
+
+        while (i < a.length || j < b.length)
+        {
+            int low, high;
+
+            if (j == b.length || i < a.length && a[i] <= b[j]) {
+                low = a[i]; high = a[i + 1]; i += 2;
+            }
+            else {
+                low = b[j]; high = b[j + 1]; j += 2;
+            }
+
+            if (size > 0 && low <= union[size - 1] + 1)
+                union[size - 1] = Math.max(union[size - 1], high);
+            else {
+                union[size++] = low;
+                union[size++] = high;
+            }
+        }
+
+        return Arrays.copyOf(union, size);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether {@code a} contains {@code b}.
+     */
+    private static boolean contains (int[] a, int[] b)
+    {
+        if (b == null || a == b) return true;
+        if (a == null) return false;
+
+        int i = 0;
+
+        for (int j = 0; j < b.length; j += 2)
+        {
+            while (i < a.length && a[i + 1] < b[j]) i += 2;
+
+            if (i == a.length || a[i] > b[j] || a[i + 1] < b[j + 1])
+                return false;
+        }
+
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -5,11 +5,49 @@ import java.util.ArrayList;
 /**
  * A state is a constituent part of an {@link Automaton} and can have multiple incoming or
  * outgoing {@link Transition}s. Only the outgoing transitions are recorded in this class.
+ * <p>
+ * For anchor states, the transition chains leading to other anchor states are precomputed by
+ * {@link AutomatonBuilder#compile} and stored in {@link #steps} and {@link #closure}.
  */
 final class State
 {
     final ArrayList<Transition> transitions = new ArrayList<>();
 
+    /**
+     * Index of the state amongst the anchor states of its automaton, or -1 if the state is not an
+     * anchor state.
+     */
+    int id = -1;
+
+    /**
+     * For the accepting states of the automaton of a {@link norswap.skelex.regex.RegexSet}, the
+     * regex of the set whose matches end in this state. Null for other states.
+     */
+    Regex regex;
+
+    /**
+     * The input-consuming chains starting from this state, grouped by NORMAL transition. This
+     * includes the steps hoisted from the states in its closure (cf. {@link
+     * AutomatonBuilder#compile}). Null if the state is not an anchor state.
+     */
+    Step[] steps;
+
+    /**
+     * All anchor states that can be reached from this state without consuming any input, in the
+     * order in which they should be checkpointed. Once the steps of the non-accepting states have
+     * been hoisted, only the accepting state remains. Null if the state is not an anchor state.
+     */
+    Chain[] closure;
+
+    /**
+     * Whether a match can end after consuming at least one more input item from this anchor state
+     * (cf. {@link AutomatonBuilder#compile}). Checkpoints for other states are only needed to
+     * record matches and the paths used to reach them. In automata with counted repetitions, this
+     * is true if a match can end from checkpoints with some count (cf. {@link
+     * AnchorTable#productive(int, int)}).
+     */
+    boolean productive;
+
     void add (Transition transition) {
         transitions.add(transition);
     }
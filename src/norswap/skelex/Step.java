@@ -0,0 +1,41 @@
+package norswap.skelex;
+
+/**
+ * A group of input-consuming {@link Chain}s that start from the same anchor state and go through
+ * the same NORMAL transition. Either all the chains can be taken for an input item (the predicate
+ * of the NORMAL transition is satisfied) or none can.
+ */
+final class Step
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The position of the step within the steps of its state.
+     */
+    final int index;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The NORMAL transition shared by all the chains.
+     */
+    final Transition normal;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The chains going through {@link #normal}, in the order they should be taken.
+     */
+    final Chain[] chains;
+
+    // ---------------------------------------------------------------------------------------------
+
+    Step (int index, Transition normal, Chain[] chains)
+    {
+        this.index  = index;
+        this.normal = normal;
+        this.chains = chains;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
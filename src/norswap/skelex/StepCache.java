@@ -0,0 +1,155 @@
+package norswap.skelex;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/**
+ * Caches the steps of anchor states that accept the input item being fed to a {@link Runner}.
+ * This lets the runner advance all the checkpoints of a position that hold the same anchor state
+ * (e.g. those of many registrations of the same regex) while selecting the steps of that state
+ * only once.
+ * <p>
+ * The selected steps of all states are appended to a single buffer. For each automaton (identified
+ * by its {@link AnchorTable}), an array holds three ints per anchor state: the generation at which
+ * the state's steps were selected, and the bounds of these steps in the buffer. Clearing the cache
+ * when moving to the next input item only requires incrementing the generation.
+ * <p>
+ * All methods taking a state refer to the states of the table last passed to {@link #use}.
+ */
+final class StepCache
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private int[] steps = new int[64];
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int size = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int generation = 1;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Index of the first step of the state whose steps are being recorded.
+     */
+    private int begin;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final IdentityHashMap<AnchorTable, int[]> entries = new IdentityHashMap<>();
+
+    // ---------------------------------------------------------------------------------------------
+
+    private AnchorTable table;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The entries of {@link #table}.
+     */
+    private int[] current;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Invalidates all cached steps, in preparation for a new input item.
+     */
+    void clear()
+    {
+        size = 0;
+
+        if (++ generation == 0) {
+            entries.values().forEach(it -> Arrays.fill(it, 0));
+            generation = 1;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Selects the automaton whose anchor states are passed to the other methods.
+     */
+    void use (AnchorTable table)
+    {
+        if (this.table == table) return;
+        this.table = table;
+        current = entries.computeIfAbsent(table, k -> new int[3 * k.accepting.length]);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the steps of {@code state} were selected for the current input item.
+     */
+    boolean has (int state) {
+        return current[3 * state] == generation;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Starts recording the steps of {@code state} that accept the current input item, which must
+     * then be supplied to {@link #add}, in order, followed by a call to {@link #finish}.
+     */
+    void start (int state)
+    {
+        current[3 * state] = generation;
+        current[3 * state + 1] = size;
+        begin = size;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether {@code step} was added since the last call to {@link #start}. Steps must be added in
+     * increasing order.
+     */
+    boolean added (int step) {
+        return Arrays.binarySearch(steps, begin, size, step) >= 0;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    void add (int step)
+    {
+        if (size == steps.length)
+            steps = Arrays.copyOf(steps, size * 2);
+
+        steps[size++] = step;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    void finish (int state) {
+        current[3 * state + 2] = size;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the index of the first step selected for {@code state} (cf. {@link #step}).
+     */
+    int from (int state) {
+        return current[3 * state + 1];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the index following the last step selected for {@code state} (cf. {@link #step}).
+     */
+    int to (int state) {
+        return current[3 * state + 2];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    int step (int index) {
+        return steps[index];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,141 @@
+package norswap.skelex;
+
+import norswap.skelex.dsl.EqualsPredicate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * An index built over the {@link Step}s of an anchor state, that quickly narrows down the steps
+ * whose NORMAL transition may accept an input item. Steps are designated by their number within
+ * the {@link AnchorTable} of their automaton.
+ * <p>
+ * The steps whose NORMAL transition has an {@link EqualsPredicate} (which includes string
+ * predicates) are indexed by the predicate's value: the steps accepting an item are retrieved with
+ * a single hash lookup (cf. {@link #equal}).
+ * <p>
+ * The other steps are indexed by the runtime class of input items: the index maps each class to
+ * the steps whose NORMAL transition either doesn't constrain the type of the item ({@link
+ * Transition#klass} is null), or whose type constraint is satisfied by that class (cf. {@link
+ * #others}). This mapping is computed lazily and cached using a {@link ClassValue}.
+ */
+final class StepIndex
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The minimum number of steps with an equality predicate or with a type constraint for an
+     * index to be built.
+     */
+    static final int MIN_INDEXED_STEPS = 2;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final int[] NONE = new int[0];
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The steps that do not have an equality predicate.
+     */
+    private final Step[] steps;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The number of the first step of the anchor state.
+     */
+    private final int offset;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final HashMap<Object, int[]> by_value;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final ClassValue<int[]> by_class = new ClassValue<int[]>()
+    {
+        @Override protected int[] computeValue (Class<?> klass)
+        {
+            int count = 0;
+            int[] out = new int[steps.length];
+
+            for (Step step: steps)
+                if (step.normal.klass == null || step.normal.klass.isAssignableFrom(klass))
+                    out[count++] = offset + step.index;
+
+            return count == 0 ? NONE : Arrays.copyOf(out, count);
+        }
+    };
+
+    // ---------------------------------------------------------------------------------------------
+
+    private StepIndex (Step[] steps, int offset, HashMap<Object, int[]> by_value)
+    {
+        this.steps = steps;
+        this.offset = offset;
+        this.by_value = by_value;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns an index for the given steps, whose first step has number {@code offset}, or null if
+     * building one is not worthwhile.
+     */
+    static StepIndex build (Step[] steps, int offset)
+    {
+        int typed = 0;
+        HashMap<Object, ArrayList<Step>> by_value = new HashMap<>();
+        ArrayList<Step> others = new ArrayList<>();
+
+        for (Step step: steps)
+        {
+            if (step.normal.predicate instanceof EqualsPredicate) {
+                Object value = ((EqualsPredicate) step.normal.predicate).value;
+                by_value.computeIfAbsent(value, k -> new ArrayList<>()).add(step);
+                continue;
+            }
+
+            if (step.normal.klass != null)
+                ++ typed;
+
+            others.add(step);
+        }
+
+        int equal = steps.length - others.size();
+
+        if (typed < MIN_INDEXED_STEPS && equal < MIN_INDEXED_STEPS)
+            return null;
+
+        HashMap<Object, int[]> map = new HashMap<>();
+        by_value.forEach((k, v) ->
+            map.put(k, v.stream().mapToInt(step -> offset + step.index).toArray()));
+        return new StepIndex(others.toArray(new Step[0]), offset, map);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the steps with an equality predicate that accept the (non-null) {@code item}, in
+     * order.
+     */
+    int[] equal (Object item) {
+        return by_value.getOrDefault(item, NONE);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the steps without an equality predicate that may accept the (non-null) {@code item},
+     * in order.
+     * <p>
+     * For the returned steps, whether the step accepts the item can be determined by {@link
+     * AnchorTable#refinements}.
+     */
+    int[] others (Object item) {
+        return by_class.get(item.getClass());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -24,11 +24,44 @@ final class Transition
     final BiConsumer<MatchTree, Object> action;
     final int type;
 
+    /**
+     * For NORMAL transitions built from a {@link norswap.skelex.regex.Typed} regex, the class of
+     * which input items must be instances to satisfy {@link #predicate}. Null otherwise.
+     */
+    final Class<?> klass;
+
+    /**
+     * If {@link #klass} is not null, a predicate equivalent to {@link #predicate} for instances of
+     * {@link #klass} (i.e. without the type check). Null otherwise.
+     */
+    final Predicate<Object> refinement;
+
+    /**
+     * The effect of the transition on the repetition count of the checkpoints (cf. {@link
+     * Counter}), or null if it has none.
+     */
+    final Counter counter;
+
     Transition (State target, Predicate<Object> predicate, BiConsumer<MatchTree, Object> action, int type)
     {
-        this.target    = target;
-        this.predicate = predicate;
-        this.action    = action;
-        this.type      = type;
+        this(target, predicate, action, type, null, null, null);
+    }
+
+    Transition (State target, Predicate<Object> predicate, BiConsumer<MatchTree, Object> action,
+                int type, Class<?> klass, Predicate<Object> refinement)
+    {
+        this(target, predicate, action, type, klass, refinement, null);
+    }
+
+    Transition (State target, Predicate<Object> predicate, BiConsumer<MatchTree, Object> action,
+                int type, Class<?> klass, Predicate<Object> refinement, Counter counter)
+    {
+        this.target     = target;
+        this.predicate  = predicate;
+        this.action     = action;
+        this.type       = type;
+        this.klass      = klass;
+        this.refinement = refinement;
+        this.counter    = counter;
     }
 }
@@ -0,0 +1,223 @@
+package norswap.skelex;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * Records the operations that build a {@link MatchTree}, and builds the nodes of the tree from
+ * them when they are first accessed.
+ * <p>
+ * The operations are recorded in postfix order, so the operations building a node form a
+ * contiguous span that ends with the operation that completes the node: {@link #COLLECT} for a
+ * sequence (which starts with {@link #MARK}), {@link #ACCRETE} or {@link #LIST} for a repetition
+ * (which starts with {@link #LIST}), {@link #BRANCH} for a branch (whose value spans the rest of
+ * the operations), or the single {@link #ITEM} or {@link #NULL} operation of a leaf.
+ * <p>
+ * Building a list node only scans its span to find the spans of its items, simulating the stack
+ * of the tree builder with the start of each node instead of the node itself. Items are only
+ * built when accessed. Accessing a single path of the tree thus takes time proportional to the
+ * size of the spans along that path, and only allocates the lists along it.
+ */
+final class TreeTrace
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** Pushes an input item. */
+    static final byte ITEM = 0;
+    /** Pushes null (empty {@link norswap.skelex.regex.Maybe}). */
+    static final byte NULL = 1;
+    /** Pushes an empty repetition list. */
+    static final byte LIST = 2;
+    /** Pushes a marker for the start of a sequence. */
+    static final byte MARK = 3;
+    /** Replaces the nodes above the last marker by a list. */
+    static final byte COLLECT = 4;
+    /** Wraps the top node in a branch. */
+    static final byte BRANCH = 5;
+    /** Pops the top node and adds it to the repetition list below it. */
+    static final byte ACCRETE = 6;
+    /** Pops the top node. */
+    static final byte DROP = 7;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final Object UNBUILT = new Object();
+
+    // ---------------------------------------------------------------------------------------------
+
+    private byte[] ops = new byte[16];
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The input item of {@link #ITEM} operations, the branch index of {@link #BRANCH} operations.
+     */
+    private Object[] args = new Object[16];
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int size = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    void record (byte op, Object arg)
+    {
+        if (size == ops.length) {
+            ops  = Arrays.copyOf(ops,  size * 2);
+            args = Arrays.copyOf(args, size * 2);
+        }
+
+        ops  [size] = op;
+        args [size] = arg;
+        ++ size;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of recorded operations.
+     */
+    int size() {
+        return size;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the operation at the given index.
+     */
+    byte op (int index) {
+        return ops[index];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the branch index of the {@link #BRANCH} operation at the given index.
+     */
+    int branch (int index) {
+        return (Integer) args[index];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Builds the root of the tree.
+     */
+    Object root() {
+        return node(0, size);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Builds the node whose operations span {@code [start, end)}.
+     */
+    private Object node (int start, int end)
+    {
+        switch (ops[end - 1])
+        {
+            case ITEM:    return args[end - 1];
+            case NULL:    return null;
+            case COLLECT: return new NodeList(start + 1, end - 1);
+            case LIST:
+            case ACCRETE: return new NodeList(start + 1, end);
+            case BRANCH:  return new Branch((Integer) args[end - 1], node(start, end - 1));
+            default:      throw new IllegalStateException("Malformed match tree trace.");
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The list of a sequence or repetition node, whose items are built when first accessed.
+     */
+    private final class NodeList extends AbstractList<Object> implements RandomAccess
+    {
+        int size = 0;
+        int[] starts = new int[4];
+        int[] ends = new int[4];
+        Object[] items;
+
+        /**
+         * Finds the spans of the items, given the span of the operations inside the list: between
+         * the marker and the collect operation for a sequence, after the list operation for a
+         * repetition.
+         */
+        NodeList (int from, int to)
+        {
+            // starts of the nodes on the stack, ~start for markers
+            int[] stack = new int[8];
+            int top = 0;
+
+            for (int i = from; i < to; ++i)
+            {
+                if (top == stack.length)
+                    stack = Arrays.copyOf(stack, top * 2);
+
+                switch (ops[i])
+                {
+                    case ITEM:
+                    case NULL:
+                    case LIST:
+                        stack[top++] = i;
+                        break;
+                    case MARK:
+                        stack[top++] = ~i;
+                        break;
+                    case COLLECT:
+                        do -- top; while (stack[top] >= 0);
+                        stack[top] = ~stack[top];
+                        ++ top;
+                        break;
+                    case BRANCH:
+                        break;
+                    case ACCRETE:
+                        // adds to our own repetition list (top-level) or to a nested one
+                        if (--top == 0) add(stack[0], i);
+                        break;
+                    case DROP:
+                        -- top;
+                        break;
+                }
+            }
+
+            // sequence items: each item spans until the next one
+            for (int i = 0; i < top; ++i)
+                add(stack[i], i + 1 < top ? stack[i + 1] : to);
+
+            items = new Object[size];
+            Arrays.fill(items, UNBUILT);
+        }
+
+        private void add (int start, int end)
+        {
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                ends   = Arrays.copyOf(ends,   size * 2);
+            }
+
+            starts [size] = start;
+            ends   [size] = end;
+            ++ size;
+        }
+
+        @Override public Object get (int index)
+        {
+            if (index < 0 || index >= size)
+                throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+
+            Object item = items[index];
+            if (item == UNBUILT)
+                item = items[index] = node(starts[index], ends[index]);
+            return item;
+        }
+
+        @Override public int size() {
+            return size;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
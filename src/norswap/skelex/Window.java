@@ -0,0 +1,160 @@
+package norswap.skelex;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A list indexed by input positions, whose items below a given position can be evicted in order to
+ * reclaim memory. Used by streaming {@link Runner}s (cf. {@link Runner#streaming()}).
+ * <p>
+ * Evicted items are nulled out immediately, but the underlying storage is only compacted once the
+ * evicted prefix makes up at least half of it, which keeps the cost of eviction amortized constant
+ * per item.
+ */
+final class Window<T>
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The minimum size of the evicted prefix before compaction is considered.
+     */
+    private static final int MIN_COMPACTION = 64;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final ArrayList<T> items = new ArrayList<>();
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The position of the first item in {@link #items}.
+     */
+    private int offset = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The position of the first item that wasn't evicted.
+     */
+    private int start = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    Window() {}
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a copy of {@code other}, holding the same items.
+     */
+    Window (Window<T> other)
+    {
+        items.addAll(other.items);
+        offset = other.offset;
+        start = other.start;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the position of the first item that wasn't evicted.
+     */
+    int start() {
+        return start;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the position following the last item.
+     */
+    int end() {
+        return offset + items.size();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the item at the given position, or null if there is no such item or if it was
+     * evicted.
+     */
+    T get (int index)
+    {
+        return start <= index && index < end()
+            ? items.get(index - offset)
+            : null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Sets the item at the given (non-evicted) position, padding with nulls as needed.
+     */
+    void set (int index, T item)
+    {
+        assert index >= start;
+
+        while (index >= end())
+            items.add(null);
+
+        items.set(index - offset, item);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Appends an item at position {@link #end()}.
+     */
+    void add (T item) {
+        items.add(item);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Removes all items at or after position {@code end} (which must not have been evicted).
+     */
+    void truncate (int end)
+    {
+        assert end >= start;
+
+        if (end < end())
+            items.subList(end - offset, items.size()).clear();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Evicts all items below position {@code below}.
+     */
+    void evict (int below)
+    {
+        if (below <= start) return;
+        int end = Math.min(below, end());
+
+        for (int i = start; i < end; ++i)
+            items.set(i - offset, null);
+
+        start = below;
+        int dead = Math.min(start, end()) - offset;
+
+        if (dead >= MIN_COMPACTION && dead >= items.size() / 2) {
+            items.subList(0, dead).clear();
+            offset += dead;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns an unmodifiable view of the items that weren't evicted.
+     */
+    List<T> view()
+    {
+        int from = Math.min(start, end()) - offset;
+        return Collections.unmodifiableList(items.subList(from, items.size()));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
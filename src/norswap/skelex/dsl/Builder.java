@@ -45,4 +45,43 @@ public abstract class Builder
     }
 
     // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a builder for a lazy {@link Maybe} regex (cf. {@link Maybe#lazy}) applied on
+     * the regex built by this builder.
+     */
+    public ContainerBuilder maybe_lazy() {
+        return new ContainerBuilder(new Maybe(end(), true));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a builder for a lazy {@link ZeroMore} regex (cf. {@link ZeroMore#lazy}) applied on
+     * the regex built by this builder.
+     */
+    public ContainerBuilder zeromore_lazy() {
+        return new ContainerBuilder(new ZeroMore(end(), true));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a builder for a lazy {@link OneMore} regex (cf. {@link OneMore#lazy}) applied on
+     * the regex built by this builder.
+     */
+    public ContainerBuilder onemore_lazy() {
+        return new ContainerBuilder(new OneMore(end(), true));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a builder for a {@link Repeat} regex applied on the regex built by this builder.
+     */
+    public ContainerBuilder repeat (int min, int max) {
+        return new ContainerBuilder(new Repeat(end(), min, max));
+    }
+
+    // ---------------------------------------------------------------------------------------------
 }
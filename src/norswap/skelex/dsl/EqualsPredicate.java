@@ -0,0 +1,31 @@
+package norswap.skelex.dsl;
+
+import java.util.function.Predicate;
+
+/**
+ * A predicate that succeeds if its argument equals a pre-determined value.
+ * <p>
+ * Regexes using such predicates are recognized when compiled, enabling the runner to select the
+ * transitions that accept an input item with a single hash lookup, instead of testing the
+ * predicates one by one. As such, the value must have consistent {@link Object#equals} and {@link
+ * Object#hashCode} methods.
+ */
+public class EqualsPredicate implements Predicate<Object>
+{
+    /**
+     * The value the argument must be equal to.
+     */
+    public final Object value;
+
+    public EqualsPredicate (Object value) {
+        this.value = value;
+    }
+
+    @Override public boolean test (Object o) {
+        return o.equals(value);
+    }
+
+    @Override public String toString() {
+        return "eq(" + value + ")";
+    }
+}
@@ -0,0 +1,42 @@
+package norswap.skelex.dsl;
+
+import norswap.skelex.CharRunner;
+import norswap.skelex.IntRunner;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+
+/**
+ * A predicate that succeeds if its argument is an {@link Integer} (or a {@link Character}, if
+ * {@link #chars} is set) whose value satisfies an {@link IntPredicate}.
+ * <p>
+ * Regexes using such predicates are recognized when compiled, enabling {@link IntRunner} and
+ * {@link CharRunner} to test input items without boxing them.
+ */
+public final class IntItemPredicate implements Predicate<Object>
+{
+    /**
+     * The predicate the value of the argument must satisfy.
+     */
+    public final IntPredicate pred;
+
+    /**
+     * Whether the argument must be a {@link Character} instead of an {@link Integer}.
+     */
+    public final boolean chars;
+
+    public IntItemPredicate (IntPredicate pred, boolean chars) {
+        this.pred = pred;
+        this.chars = chars;
+    }
+
+    @Override public boolean test (Object o)
+    {
+        return chars
+            ? o instanceof Character && pred.test((Character) o)
+            : o instanceof Integer && pred.test((Integer) o);
+    }
+
+    @Override public String toString() {
+        return chars ? "char_pred" : "int_pred";
+    }
+}
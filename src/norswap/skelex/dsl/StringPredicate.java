@@ -1,22 +1,20 @@
 package norswap.skelex.dsl;
 
-import java.util.function.Predicate;
-
 /**
  * A predicate that succeeds if its argument equals a pre-determined string.
  */
-public final class StringPredicate implements Predicate<Object>
+public final class StringPredicate extends EqualsPredicate
 {
-    private final String string;
+    /**
+     * The string the argument must be equal to.
+     */
+    public final String string;
 
     public StringPredicate (String string) {
+        super(string);
         this.string = string;
     }
 
-    @Override public boolean test (Object o) {
-        return o.equals(string);
-    }
-
     @Override public String toString() {
         return "str(" + string + ")";
     }
@@ -14,16 +14,32 @@ public final class Maybe extends Regex
      */
     public final Regex item;
 
+    /**
+     * Whether this regex is lazy (reluctant): when building match trees, it prefers not matching
+     * its item rather than matching it (the default).
+     */
+    public final boolean lazy;
+
     /**
      * Creates a {@link Maybe} regex with the given item.
      * <p>
      * Use {@link DSL#maybe(Object)} or {@link Builder#maybe()} in preference.
      */
     public Maybe (Regex item) {
+        this(item, false);
+    }
+
+    /**
+     * Creates a {@link Maybe} regex with the given item and laziness (cf. {@link #lazy}).
+     * <p>
+     * Use {@link DSL#maybe(Object)} or {@link DSL#maybe_lazy(Object)} in preference.
+     */
+    public Maybe (Regex item, boolean lazy) {
         this.item = item;
+        this.lazy = lazy;
     }
 
     @Override public String toString() {
-        return item + "?";
+        return lazy ? "lazy(" + item + "?)" : item + "?";
     }
 }
@@ -14,17 +14,33 @@ public final class OneMore extends Regex
      */
     public final Regex item;
 
+    /**
+     * Whether this regex is lazy (reluctant): when building match trees, it matches as few
+     * repetitions as possible rather than as many as possible (the default).
+     */
+    public final boolean lazy;
+
     /**
      * Creates a {@link OneMore} regex with the given item.
      * <p>
      * Use {@link DSL#onemore(Object)} or {@link Builder#onemore()} in preference.
      */
     public OneMore (Regex item) {
+        this(item, false);
+    }
+
+    /**
+     * Creates a {@link OneMore} regex with the given item and laziness (cf. {@link #lazy}).
+     * <p>
+     * Use {@link DSL#onemore(Object)} or {@link DSL#onemore_lazy(Object)} in preference.
+     */
+    public OneMore (Regex item, boolean lazy) {
         this.item = item;
+        this.lazy = lazy;
     }
 
     @Override public String toString()
     {
-        return item + "+";
+        return lazy ? "lazy(" + item + "+)" : item + "+";
     }
 }
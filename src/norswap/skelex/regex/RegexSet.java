@@ -0,0 +1,45 @@
+package norswap.skelex.regex;
+
+import norswap.skelex.Regex;
+import norswap.skelex.DSL;
+import norswap.skelex.MatchStream;
+import java.util.Arrays;
+
+/**
+ * A set of regexes compiled together into a single automaton, in which the regexes share their
+ * common prefixes: the leading items of {@link Seq} regexes that are structurally equal (as
+ * defined by {@link norswap.skelex.CompiledRegexCache}) are only matched once, whichever number
+ * of regexes start with them.
+ * <p>
+ * A regex set can only be registered with a runner: it can't be nested within another regex.
+ * Its matches are reported for the regexes of the set (e.g. by {@link MatchStream#for_regex} and
+ * {@link MatchStream#longest_per_regex}), and are the same as if these regexes had been
+ * registered at the same position, except that a set is a single registration (as far as {@link
+ * norswap.skelex.Runner#first_match()}, {@link norswap.skelex.Runner#filter_registrations} and
+ * {@link MatchStream#for_registration} are concerned).
+ */
+public final class RegexSet extends Regex
+{
+    /**
+     * The regexes in the set. Do not mutate.
+     */
+    public final Regex[] regexes;
+
+    /**
+     * Creates a set of the given regexes. Throws an {@link IllegalArgumentException} if there are
+     * none.
+     * <p>
+     * Use {@link DSL#regex_set(Object...)} in preference.
+     */
+    public RegexSet (Regex... regexes)
+    {
+        if (regexes.length == 0)
+            throw new IllegalArgumentException("A regex set must contain at least one regex.");
+
+        this.regexes = regexes;
+    }
+
+    @Override public String toString() {
+        return "set" + Arrays.toString(regexes);
+    }
+}
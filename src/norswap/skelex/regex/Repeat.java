@@ -0,0 +1,55 @@
+package norswap.skelex.regex;
+
+import norswap.skelex.Regex;
+import norswap.skelex.dsl.Builder;
+import norswap.skelex.DSL;
+
+/**
+ * A regex that matches between {@link #min} and {@link #max} repetitions of another regex.
+ * <p>
+ * Like {@link ZeroMore} and {@link OneMore}, its match node is a flat list of the matches of the
+ * repetitions.
+ */
+public final class Repeat extends Regex
+{
+    /**
+     * Value of {@link #max} for a repetition without upper bound.
+     */
+    public static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    /**
+     * The sub-regex repeatedly matched by this regex.
+     */
+    public final Regex item;
+
+    /**
+     * The minimum number of repetitions.
+     */
+    public final int min;
+
+    /**
+     * The maximum number of repetitions, or {@link #UNBOUNDED}.
+     */
+    public final int max;
+
+    /**
+     * Creates a {@link Repeat} regex with the given item and bounds. Throws an {@link
+     * IllegalArgumentException} unless {@code 0 <= min <= max} and {@code max > 0}.
+     * <p>
+     * Use {@link DSL#repeat(Object, int, int)} or {@link Builder#repeat(int, int)} in preference.
+     */
+    public Repeat (Regex item, int min, int max)
+    {
+        if (min < 0 || max < min || max == 0)
+            throw new IllegalArgumentException(
+                "Invalid repetition bounds: {" + min + "," + max + "}");
+
+        this.item = item;
+        this.min = min;
+        this.max = max;
+    }
+
+    @Override public String toString() {
+        return item + "{" + min + "," + (max == UNBOUNDED ? "" : max) + "}";
+    }
+}
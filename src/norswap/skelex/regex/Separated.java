@@ -0,0 +1,49 @@
+package norswap.skelex.regex;
+
+import norswap.skelex.Regex;
+import norswap.skelex.DSL;
+
+/**
+ * A regex that matches {@link #min} or more repetitions of a regex ({@link #item}), separated by
+ * matches of another regex ({@link #sep}).
+ * <p>
+ * Its match node is a flat list of the matches of the items: the matches of the separators are
+ * omitted.
+ */
+public final class Separated extends Regex
+{
+    /**
+     * The sub-regex repeatedly matched by this regex.
+     */
+    public final Regex item;
+
+    /**
+     * The sub-regex matched between two items.
+     */
+    public final Regex sep;
+
+    /**
+     * The minimum number of items.
+     */
+    public final int min;
+
+    /**
+     * Creates a {@link Separated} regex with the given item, separator and minimum number of items.
+     * Throws an {@link IllegalArgumentException} if {@code min} is negative.
+     * <p>
+     * Use {@link DSL#separated(Object, Object, int)} in preference.
+     */
+    public Separated (Regex item, Regex sep, int min)
+    {
+        if (min < 0)
+            throw new IllegalArgumentException("Negative minimum number of items: " + min);
+
+        this.item = item;
+        this.sep = sep;
+        this.min = min;
+    }
+
+    @Override public String toString() {
+        return "separated[" + item + ", " + sep + "]{" + min + ",}";
+    }
+}
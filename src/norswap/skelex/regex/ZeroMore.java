@@ -14,16 +14,32 @@ public final class ZeroMore extends Regex
      */
     public final Regex item;
 
+    /**
+     * Whether this regex is lazy (reluctant): when building match trees, it matches as few
+     * repetitions as possible rather than as many as possible (the default).
+     */
+    public final boolean lazy;
+
     /**
      * Creates a {@link ZeroMore} regex with the given item.
      * Use {@link DSL#zeromore(Object)} or {@link Builder#zeromore()} in preference.
      */
     public ZeroMore (Regex item) {
+        this(item, false);
+    }
+
+    /**
+     * Creates a {@link ZeroMore} regex with the given item and laziness (cf. {@link #lazy}).
+     * <p>
+     * Use {@link DSL#zeromore(Object)} or {@link DSL#zeromore_lazy(Object)} in preference.
+     */
+    public ZeroMore (Regex item, boolean lazy) {
         this.item = item;
+        this.lazy = lazy;
     }
 
     @Override public String toString()
     {
-        return item + "*";
+        return lazy ? "lazy(" + item + "*)" : item + "*";
     }
 }
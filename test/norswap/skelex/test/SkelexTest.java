@@ -1,15 +1,34 @@
 package norswap.skelex.test;
 
 import norswap.skelex.Branch;
+import norswap.skelex.CharRunner;
+import norswap.skelex.CompiledRegexCache;
+import norswap.skelex.IncrementalMatcher;
+import norswap.skelex.IntRunner;
+import norswap.skelex.Match;
+import norswap.skelex.MatchStream;
 import norswap.skelex.MatchTree;
+import norswap.skelex.ParallelSkelex;
 import norswap.skelex.Runner;
 import norswap.skelex.Regex;
+import norswap.skelex.Skelex;
+import norswap.skelex.SpanTree;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static norswap.skelex.DSL.*;
 import static norswap.utils.Vanilla.list;
@@ -20,19 +39,21 @@ public class SkelexTest
 
     private static void test_succeed (Regex regex, String input, Object expect)
     {
-        Runner runner = new Runner();
-        runner.add(regex);
-
         List<String> linput = input.isEmpty()
             ? Collections.emptyList()
             : Arrays.asList(input.split(""));
 
-        runner.advance(linput);
-        Assert.assertEquals(runner.pos(), input.length());
+        // both engines must select the same tree
+        for (Runner runner: new Runner[] { new Runner(), Runner.pike() })
+        {
+            runner.add(regex);
+            runner.advance(linput);
+            Assert.assertEquals(runner.pos(), input.length());
 
-        MatchTree match = runner.matches().longest_tree();
-        Assert.assertNotNull(match);
-        Assert.assertEquals(match.value(), expect);
+            MatchTree match = runner.matches().longest_tree();
+            Assert.assertNotNull(match);
+            Assert.assertEquals(match.value(), expect);
+        }
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -104,4 +125,836 @@ public class SkelexTest
     }
 
     // ---------------------------------------------------------------------------------------------
+
+    @Test public void test_typed()
+    {
+        Regex regex = zeromore(choice(
+            typed(String.class, (String it) -> it.length() > 1),
+            Integer.class,
+            Number.class,
+            String.class));
+
+        Runner runner = new Runner();
+        runner.add(regex);
+        runner.advance("ab", 1, 2.0, "c");
+
+        MatchTree match = runner.matches().longest_tree();
+        Assert.assertNotNull(match);
+        Assert.assertEquals(match.value(), list(
+            new Branch(0, "ab"), new Branch(1, 1), new Branch(2, 2.0), new Branch(3, "c")));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void test_literals()
+    {
+        Regex regex = onemore(choice("+", "-", typed(String.class), equal(1), "-", Integer.class));
+
+        Runner runner = new Runner();
+        runner.add(regex);
+        runner.advance("-", 1, 2, "x", "+");
+
+        MatchTree match = runner.matches().longest_tree();
+        Assert.assertNotNull(match);
+        Assert.assertEquals(match.value(), list(
+            new Branch(1, "-"), new Branch(3, 1), new Branch(5, 2),
+            new Branch(2, "x"), new Branch(0, "+")));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void test_anchor_table()
+    {
+        // indexed literals, with a duplicate, around steps that the index can't narrow down
+        Object[] items = new Object[23];
+        items[0] = typed(String.class, (String it) -> it.endsWith("9"));
+        for (int i = 0; i < 20; ++i) items[i + 1] = "k" + i;
+        items[21] = "k3";
+        items[22] = Integer.class;
+        Regex indexed = onemore(choice(items));
+
+        // the predicate of a step repeated in the same state is only tested once per item
+        int[] tests = new int[1];
+        Regex p = int_pred(x -> { ++ tests[0]; return x > 0; });
+        Regex repeated = onemore(choice(seq(p, equal(1)), seq(p, equal(2))));
+
+        for (boolean pike: new boolean[] { false, true })
+        {
+            Runner runner = pike ? Runner.pike() : new Runner();
+            runner.add(indexed);
+            runner.advance("k3", "k9", "k19", 7, "k0");
+            Assert.assertEquals(runner.matches().longest_tree().value(), list(
+                new Branch(4, "k3"), new Branch(0, "k9"), new Branch(0, "k19"),
+                new Branch(22, 7), new Branch(1, "k0")));
+
+            runner.advance("k20");
+            Assert.assertNull(runner.matches().longest());
+
+            IntRunner ints = new IntRunner(pike ? Runner.pike() : new Runner());
+            ints.runner.add(repeated);
+            tests[0] = 0;
+            ints.advance(5, 2, 7, 1);
+            Assert.assertEquals(tests[0], 2);
+            Assert.assertEquals(ints.runner.matches().longest_tree().value(), list(
+                new Branch(1, list(5, 2)), new Branch(0, list(7, 1))));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void test_nullable_repetition()
+    {
+        test_succeed (zeromore(maybe("a")), "aa", list("a", "a"));
+        test_succeed (zeromore(maybe("a")), "",   Collections.singletonList(null));
+        test_fail    (zeromore(maybe("a")), "b");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void test_match_only()
+    {
+        Regex regex = seq("a", zeromore("b"));
+        Runner runner = Runner.match_only();
+        runner.add(regex);
+        runner.advance("a", "b", "b");
+
+        Match match = runner.matches().longest();
+        Assert.assertNotNull(match);
+        Assert.assertEquals(match.start, 0);
+        Assert.assertEquals(match.end, 3);
+        Assert.assertEquals(runner.matches(1).get().size(), 1);
+
+        runner.advance("c");
+        Assert.assertTrue(runner.dead());
+        Assert.assertNull(runner.matches().longest());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void test_match_only_tree()
+    {
+        Runner runner = Runner.match_only();
+        runner.add(seq("a"));
+        runner.advance("a");
+        runner.matches().longest_tree();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void test_checkpoint_index()
+    {
+        // the checkpoints of many registrations (and counts) share each position, and only differ
+        // by their registration, state or count
+        Regex unbounded = zeromore(choice("a", seq("a", "a")));
+        Regex counted = repeat(choice("a", seq("a", "a")), 30, 50);
+
+        for (boolean pike: new boolean[] { false, true })
+        {
+            Runner runner = pike ? Runner.pike() : new Runner();
+
+            for (int i = 0; i < 200; ++i) {
+                runner.add(unbounded);
+                runner.add(counted);
+                runner.advance("a");
+            }
+
+            for (int pass = 0; pass < 2; ++pass)
+            {
+                Assert.assertEquals(runner.matches().for_regex(unbounded).get().size(), 200);
+                Assert.assertEquals(runner.matches().for_regex(counted).get().size(), 71);
+                assert_match(runner.matches().longest(), 0, 200);
+                assert_match(runner.matches().for_regex(counted).longest(), 100, 200);
+                Assert.assertEquals(runner.matches(100).for_regex(counted).get().size(), 71);
+
+                if (pike || pass == 1) break;
+
+                // the positions are indexed again after moving back
+                runner.clear_last(100);
+                for (int i = 100; i < 200; ++i) {
+                    runner.add(unbounded);
+                    runner.add(counted);
+                    runner.advance("a");
+                }
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static Runner streaming_runner()
+    {
+        Regex regex = seq("a", zeromore("b"));
+        Runner runner = new Runner().streaming();
+
+        for (int i = 0; i < 1000; ++i) {
+            runner.add(regex);
+            runner.advance(i % 10 == 0 ? "a" : "b");
+        }
+
+        return runner;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void test_streaming()
+    {
+        Runner runner = streaming_runner();
+        Assert.assertTrue(runner.window_start() > 0);
+        Assert.assertTrue(runner.input().size() < runner.pos());
+
+        MatchTree match = runner.matches().longest_tree();
+        Assert.assertNotNull(match);
+        Assert.assertEquals(match.start, 990);
+        Assert.assertEquals(match.value(), list("a", Collections.nCopies(9, "b")));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void test_streaming_discarded()
+    {
+        streaming_runner().matches(0);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void test_streaming_recycled()
+    {
+        // checkpoints with several links are recycled at each reclamation, then reused
+        Regex regex = seq("a", zeromore(choice("b", seq("b", "b"), onemore("b"))), "c");
+        String pattern = "abbcabcbbabbbbc";
+
+        for (boolean pike: new boolean[] { false, true })
+        {
+            Runner streaming = (pike ? Runner.pike() : new Runner()).streaming();
+            Runner retaining = pike ? Runner.pike() : new Runner();
+
+            for (int i = 0; i < 3000; ++i)
+            {
+                String item = String.valueOf(pattern.charAt(i % pattern.length()));
+
+                for (Runner runner: new Runner[] { streaming, retaining }) {
+                    runner.add(regex);
+                    runner.advance(item);
+                }
+
+                // matches at the window start may have started before it
+                for (int pos: new int[] { streaming.pos(), streaming.window_start() })
+                {
+                    MatchTree expected = retaining.matches(pos).longest_tree();
+                    MatchTree actual = streaming.matches(pos).longest_tree();
+
+                    if (expected == null)
+                        Assert.assertNull(actual);
+                    else {
+                        Assert.assertNotNull(actual);
+                        Assert.assertEquals(actual.start, expected.start);
+                        Assert.assertEquals(actual.value(), expected.value());
+                    }
+                }
+            }
+
+            Assert.assertTrue(streaming.window_start() > 2900);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void test_streaming_retained()
+    {
+        Regex regex = seq("a", "b");
+
+        for (Runner runner: new Runner[] { new Runner().streaming(), Runner.pike().streaming() })
+        {
+            runner.add(regex);
+            runner.advance("a", "b");
+            MatchStream matches = runner.matches();
+            MatchStream trees = runner.matches();
+
+            for (int i = 0; i < 1000; ++i) {
+                runner.add(regex);
+                runner.advance("a", "b");
+            }
+
+            // the streams survive their position being discarded
+            Assert.assertTrue(runner.window_start() > 2);
+            Match match = matches.get().iterator().next();
+            Assert.assertEquals(match.start, 0);
+            Assert.assertEquals(match.end, 2);
+            Assert.assertEquals(trees.longest_tree().value(), list("a", "b"));
+
+            // memory is reclaimed once the streams are consumed
+            for (int i = 0; i < 1000; ++i) {
+                runner.add(regex);
+                runner.advance("a", "b");
+                if (i % 100 == 0) runner.matches().longest();
+            }
+
+            Assert.assertTrue(runner.input().size() < 100);
+            Assert.assertEquals(runner.matches().longest().start, 4000);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void test_anywhere()
+    {
+        Regex regex = seq("a", zeromore("b"));
+        Runner runner = new Runner();
+        runner.add_anywhere(regex);
+
+        for (String item: new String[] { "b", "a", "b", "a", "b", "b" })
+            runner.advance(item);
+
+        Assert.assertFalse(runner.dead());
+        Assert.assertEquals(runner.matches(2).get().size(), 1);
+        Assert.assertEquals(runner.matches(4).get().size(), 1);
+
+        MatchTree match = runner.matches().longest_tree();
+        Assert.assertNotNull(match);
+        Assert.assertEquals(match.start, 3);
+        Assert.assertEquals(match.end, 6);
+        Assert.assertEquals(match.value(), list("a", list("b", "b")));
+
+        Assert.assertEquals(
+            Skelex.matches_anywhere(regex, Arrays.asList("a", "a", "b")).get().stream()
+                .map(m -> m.start + "-" + m.end)
+                .sorted()
+                .collect(Collectors.toList()),
+            Arrays.asList("0-1", "1-2", "1-3"));
+
+        // the start positions 0 and 2 (but not 1) reach the same checkpoint
+        Runner gaps = new Runner();
+        gaps.add_anywhere(seq("a", zeromore(choice("a", "b"))));
+        gaps.advance("a", "b", "a");
+        Assert.assertEquals(
+            gaps.matches().get().stream().map(m -> m.start).sorted().collect(Collectors.toList()),
+            Arrays.asList(0, 2));
+
+        List<Object> input = new ArrayList<>();
+        input.add("a");
+        for (int i = 0; i < 10000; ++i) input.add("b");
+        Assert.assertEquals(Skelex.matches_anywhere(regex, input).get().size(), 10001);
+        Assert.assertEquals(Skelex.matches_anywhere(regex, input).longest().end, 10001);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void test_pike()
+    {
+        Regex regex = seq(onemore("a"), onemore("a"), choice("b", "b"));
+        Runner runner = Runner.pike().streaming();
+
+        for (int i = 0; i < 1000; ++i) {
+            runner.add(regex);
+            runner.advance(i % 10 == 9 ? "b" : "a");
+        }
+
+        Assert.assertTrue(runner.window_start() > 0);
+
+        MatchTree match = runner.matches().longest_tree();
+        Assert.assertNotNull(match);
+        Assert.assertEquals(match.start, 990);
+        Assert.assertEquals(match.value(),
+            list(Collections.nCopies(8, "a"), list("a"), new Branch(0, "b")));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void test_pike_clear_last()
+    {
+        Runner runner = Runner.pike();
+        runner.add(seq("a"));
+        runner.advance("a");
+        runner.clear_last(1);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void test_int_runner()
+    {
+        Regex regex = seq(int_pred(x -> x < 0), onemore(int_pred(x -> x >= 0)));
+        IntRunner runner = new IntRunner(Runner.pike());
+        runner.runner.add(regex);
+        runner.advance(new int[] { -1, 2, 3, -4 }, 0, 3);
+
+        MatchTree match = runner.runner.matches().longest_tree();
+        Assert.assertNotNull(match);
+        Assert.assertEquals(match.value(), list(-1, list(2, 3)));
+        Assert.assertEquals(runner.runner.input(), list(-1, 2, 3));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void test_char_runner()
+    {
+        Regex regex = seq(equal('<'), zeromore(char_pred(Character::isLetter)), equal('>'));
+        CharRunner runner = new CharRunner();
+        runner.runner.add(regex);
+        runner.advance("<ab>");
+
+        MatchTree match = runner.runner.matches().longest_tree();
+        Assert.assertNotNull(match);
+        Assert.assertEquals(match.value(), list('<', list('a', 'b'), '>'));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void test_parallel()
+    {
+        Regex regex = seq("a", zeromore("b"));
+        List<List<String>> inputs = list(list("a", "b"), list("c", "a", "b", "b"), list("c"));
+        List<MatchStream> results = ParallelSkelex.matches_anywhere(regex, inputs);
+
+        Assert.assertEquals(results.size(), 3);
+        Assert.assertEquals(results.get(0).longest().end, 2);
+        Match match = results.get(1).longest();
+        Assert.assertEquals(match.start, 1);
+        Assert.assertEquals(match.end, 4);
+        Assert.assertFalse(results.get(2).matching());
+
+        List<MatchStream> exact = ParallelSkelex.match_exactly(regex, inputs);
+        Assert.assertEquals(exact.get(0).longest_tree().value(), list("a", list("b")));
+        Assert.assertFalse(exact.get(1).matching());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void test_compiled_regex_cache()
+    {
+        CompiledRegexCache cache = new CompiledRegexCache(1);
+        Regex regex1 = cache.compile(seq("a", zeromore("b")));
+        Regex regex2 = cache.compile(seq("a", zeromore("b")));
+        Assert.assertEquals(cache.size(), 1);
+
+        Runner runner = Runner.match_only();
+        runner.add(regex1);
+        runner.add(regex2);
+        runner.advance("a", "b");
+        Assert.assertEquals(runner.matches().regexes(), new HashSet<>(list(regex1, regex2)));
+
+        cache.compile(seq("b"));
+        Assert.assertEquals(cache.size(), 1);
+
+        // the automaton of the repetition is built for the first two regexes, then copied
+        CompiledRegexCache shared = new CompiledRegexCache(8);
+        Regex regex3 = shared.compile(seq("a", zeromore("b", "c")));
+        Regex regex4 = shared.compile(seq("x", zeromore("b", "c")));
+        Regex regex5 = shared.compile(choice("y", zeromore("b", "c")));
+        Regex regex6 = shared.compile(seq(zeromore("b", "c"), "d"));
+        test_succeed(regex3, "abc",  list("a", list(list("b", "c"))));
+        test_succeed(regex4, "x",    list("x", list()));
+        test_succeed(regex5, "bcbc", new Branch(1, list(list("b", "c"), list("b", "c"))));
+        test_succeed(regex6, "bcd",  list(list(list("b", "c")), "d"));
+        test_fail   (regex6, "bc");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void test_match_ends()
+    {
+        Regex regex = seq("a", zeromore("b"), "c");
+        List<String> input = Arrays.asList("xabcxxacabbbbbbc".split(""));
+        BitSet expected = new BitSet();
+        expected.set(4); expected.set(8); expected.set(16);
+
+        for (int chunk_size: new int[] { 1, 3, 100 })
+            Assert.assertEquals(ParallelSkelex.match_ends(regex, input, chunk_size), expected);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void assert_match (Match match, int start, int end)
+    {
+        Assert.assertNotNull(match);
+        Assert.assertEquals(match.start, start);
+        Assert.assertEquals(match.end, end);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void test_incremental()
+    {
+        Regex regex = seq("a", zeromore("b"), "c");
+        IncrementalMatcher matcher = new IncrementalMatcher(regex);
+        for (String item: "xabcxxabbx".split(""))
+            matcher.advance(item);
+
+        assert_match(matcher.longest(4), 1, 4);
+        Assert.assertNull(matcher.longest(10));
+
+        // recomputes positions 10 and 11 only
+        Assert.assertEquals(matcher.replace(9, "c"), 11);
+        assert_match(matcher.longest(10), 6, 10);
+
+        Assert.assertEquals(matcher.insert(3, "b"), 6);
+        assert_match(matcher.longest(5), 1, 5);
+        assert_match(matcher.longest(11), 7, 11);
+
+        matcher.remove(1);
+        Assert.assertTrue(matcher.matches(5).isEmpty());
+        assert_match(matcher.longest(10), 6, 10);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void test_snapshot()
+    {
+        Runner runner = new Runner();
+        runner.add(seq("a", zeromore("b"), "c"));
+        runner.advance("a");
+        runner.advance("b");
+
+        Runner.Snapshot snapshot = runner.snapshot();
+        Runner fork = runner.fork();
+
+        runner.advance("c");
+        assert_match(runner.matches().longest(), 0, 3);
+
+        runner.restore(snapshot);
+        Assert.assertEquals(runner.pos(), 2);
+        Assert.assertNull(runner.matches().longest());
+        runner.advance("b");
+        runner.advance("c");
+        assert_match(runner.matches().longest(), 0, 4);
+
+        // the fork is unaffected by the original runner
+        fork.advance("c");
+        assert_match(fork.matches().longest(), 0, 3);
+        Assert.assertEquals(fork.pos(), 3);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void test_invalid_snapshot()
+    {
+        Runner runner = new Runner();
+        runner.add(seq("a", "b"));
+        runner.advance("a");
+        Runner.Snapshot snapshot = runner.snapshot();
+        runner.clear_last(1);
+        runner.advance("a");
+        runner.restore(snapshot);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void test_on_match()
+    {
+        Regex regex = seq("a", zeromore("b"), "c");
+        Runner runner = new Runner().streaming();
+        runner.add_anywhere(regex);
+
+        ArrayList<Match> matches = new ArrayList<>();
+        runner.on_match(regex, matches::add);
+
+        runner.advance(Arrays.asList("x", "a", "b", "c", "a").iterator());
+        Assert.assertEquals(matches.size(), 1);
+        assert_match(matches.get(0), 1, 4);
+
+        runner.advance(Stream.of("c", "x").spliterator());
+        Assert.assertEquals(matches.size(), 2);
+        assert_match(matches.get(1), 4, 6);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void test_lazy_tree()
+    {
+        Regex regex = seq(zeromore(seq("a", maybe("b"))), "c");
+        ArrayList<Object> input = new ArrayList<>();
+        for (int i = 0; i < 1000; ++i)
+            Collections.addAll(input, "a", "b");
+        input.add("c");
+
+        MatchTree tree = Skelex.match_exactly(regex, input).longest_tree();
+        Assert.assertEquals(tree.get(0, 500, 1), "b");
+        Assert.assertEquals(tree.get_list(0).size(), 1000);
+        Assert.assertEquals(tree.get(1), "c");
+        Assert.assertEquals(tree.get_list(0, 999), list("a", "b"));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void test_span_tree()
+    {
+        Regex regex = seq(zeromore(seq("a", maybe("b"))), choice("c", "d"));
+        SpanTree tree = Skelex.match_exactly(regex, list("a", "b", "a", "d")).longest_span_tree();
+
+        Assert.assertEquals(tree.size(tree.get(0)), 2);
+        int second = tree.get(0, 1);
+        Assert.assertEquals(tree.start(second), 2);
+        Assert.assertEquals(tree.end(second), 3);
+        Assert.assertTrue(tree.is_null(tree.get(0, 1, 1)));
+        Assert.assertEquals(tree.fmap(0, 2), SpanTree.NONE);
+
+        int branch = tree.get_branch(1);
+        Assert.assertEquals(tree.branch_index(branch), 1);
+        Assert.assertEquals(tree.start(tree.branch_value(branch)), 3);
+        Assert.assertEquals(tree.toString(),
+            "Match[0-4](" + regex + ")<[[[0-1, 1-2], [2-3, null]], (1, 3-4)]>");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void test_repeat()
+    {
+        Regex regex = repeat("a", 2, 3);
+        Assert.assertNull(Skelex.match_exactly(regex, list("a")).longest());
+        Assert.assertEquals(Skelex.match_exactly(regex, list("a", "a", "a")).longest_tree().value(),
+            list("a", "a", "a"));
+        Assert.assertNull(Skelex.match_exactly(regex, list("a", "a", "a", "a")).longest());
+        Assert.assertEquals(
+            Skelex.match_exactly(repeat("a", 1), list("a", "a", "a", "a")).longest_tree().value(),
+            list("a", "a", "a", "a"));
+
+        Regex separated = separated("a", ",", 2);
+        Assert.assertNull(Skelex.match_exactly(separated, list("a")).longest());
+        Assert.assertEquals(
+            Skelex.match_exactly(separated, list("a", ",", "a", ",", "a")).longest_tree().value(),
+            list("a", "a", "a"));
+        Assert.assertEquals(
+            Skelex.match_exactly(separated("a", ",", 0), list()).longest_tree().value(),
+            list());
+
+        Regex counted = repeat(seq("a", choice("b", "c")), 2, 64);
+        List<Object> input = new ArrayList<>();
+        for (int i = 0; i < 64; ++i) input.addAll(list("a", i % 2 == 0 ? "b" : "c"));
+        List<?> items = Skelex.match_exactly(counted, input).longest_tree().value();
+        Assert.assertEquals(items.size(), 64);
+        Assert.assertNull(Skelex.match_exactly(counted, input.subList(0, 2)).longest());
+
+        Runner match_only = Runner.match_only();
+        match_only.add(counted);
+        match_only.advance(input);
+        assert_match(match_only.matches().longest(), 0, 128);
+        Assert.assertTrue(match_only.dead());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void test_lazy_repetition()
+    {
+        List<?> input = list("a", "a", "a");
+        Assert.assertEquals(Skelex.match_exactly(seq(zeromore_lazy("a"), zeromore("a")), input)
+            .longest_tree().value(), list(list(), list("a", "a", "a")));
+        Assert.assertEquals(Skelex.match_exactly(seq(onemore_lazy("a"), onemore("a")), input)
+            .longest_tree().value(), list(list("a"), list("a", "a")));
+        Assert.assertEquals(Skelex.match_exactly(seq(maybe_lazy("a"), zeromore("a")), input)
+            .longest_tree().value(), list(null, list("a", "a", "a")));
+        Assert.assertEquals(Skelex.match_exactly(seq(maybe("a"), zeromore("a")), input)
+            .longest_tree().value(), list("a", list("a", "a")));
+        Assert.assertNotEquals(zeromore_lazy("a").toString(), maybe(zeromore("a")).toString());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void test_first_match()
+    {
+        Regex regex = seq("<", zeromore_lazy(String.class), ">");
+        Runner runner = new Runner().first_match();
+        runner.add(regex);
+        runner.advance("<", "x", ">", "y", ">");
+
+        assert_match(runner.matches(3).longest(), 0, 3);
+        Assert.assertEquals(runner.matches(3).longest_tree().value(), list("<", list("x"), ">"));
+        Assert.assertNull(runner.matches().longest());
+        Assert.assertTrue(runner.matches().get().isEmpty());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void test_dead_registrations()
+    {
+        Runner runner = new Runner();
+        runner.add(seq("a", "b"));
+        runner.advance("a");
+        Assert.assertFalse(runner.dead());
+        runner.advance("b");
+        Assert.assertTrue(runner.dead());
+        assert_match(runner.matches().longest(), 0, 2);
+
+        runner = new Runner().max_span(3);
+        runner.add(seq("a", zeromore("b")));
+        runner.advance("a", "b", "b");
+        assert_match(runner.matches().longest(), 0, 3);
+        Assert.assertTrue(runner.dead());
+        runner.advance("b");
+        Assert.assertNull(runner.matches().longest());
+
+        Runner match_only = Runner.match_only().max_span(2);
+        match_only.add(onemore("a"));
+        match_only.advance("a", "a", "a");
+        Assert.assertTrue(match_only.dead());
+        Assert.assertTrue(match_only.matches().get().isEmpty());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void test_regex_set()
+    {
+        Regex plus  = seq(Integer.class, "+", Integer.class);
+        Regex minus = seq(Integer.class, "-", Integer.class);
+        Regex sum   = seq(Integer.class, "+", Integer.class, "+", Integer.class);
+        Regex ints  = onemore(Integer.class);
+        Regex set   = regex_set(plus, minus, sum, ints);
+
+        for (Runner runner: new Runner[] { new Runner(), Runner.pike(), Runner.match_only() })
+        {
+            runner.add(set);
+            runner.advance(1, "+", 2);
+            Assert.assertEquals(runner.matches().regexes(), new HashSet<>(list(plus)));
+            assert_match(runner.matches().for_regex(plus).longest(), 0, 3);
+            Assert.assertNull(runner.matches().for_regex(minus).longest());
+            Assert.assertEquals(runner.matches().for_regex(set).get().size(), 1);
+
+            runner.advance("+", 3);
+            Assert.assertEquals(runner.matches().longest_per_regex().keySet(),
+                new HashSet<>(list(sum)));
+            Assert.assertEquals(runner.matches(1).longest_per_regex().keySet(),
+                new HashSet<>(list(ints)));
+        }
+
+        Runner runner = new Runner();
+        runner.add(set);
+        runner.advance(1, "-", 2);
+        Assert.assertEquals(runner.matches().for_regex(minus).longest_tree().value(),
+            list(1, "-", 2));
+        Assert.assertEquals(runner.matches(1).longest_tree_per_regex().get(ints).value(),
+            list(1));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles {@code regex} into an automaton whose anchor states are simplified or not, and
+     * caches it in the regex so that runners use it. The compiler is internal, hence reflection.
+     */
+    private static Regex compiled (Regex regex, boolean simplify) throws Exception
+    {
+        Method compile = Class.forName("norswap.skelex.AutomatonBuilder")
+            .getDeclaredMethod("compile", Regex.class, CompiledRegexCache.class, boolean.class);
+        Method automaton = Regex.class.getDeclaredMethod("automaton", Function.class);
+        compile.setAccessible(true);
+        automaton.setAccessible(true);
+
+        Function<Regex, Object> compiler = it -> {
+            try {
+                return compile.invoke(null, it, null, simplify);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        };
+
+        automaton.invoke(regex, compiler);
+        return regex;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of anchor states of the automaton of {@code regex}.
+     */
+    private static int anchor_count (Regex regex) throws Exception
+    {
+        Method automaton = Regex.class.getDeclaredMethod("automaton");
+        automaton.setAccessible(true);
+        Object compiled = automaton.invoke(regex);
+        Field table = compiled.getClass().getDeclaredField("table");
+        table.setAccessible(true);
+        Object anchors = table.get(compiled);
+        Field accepting = anchors.getClass().getDeclaredField("accepting");
+        accepting.setAccessible(true);
+        return ((boolean[]) accepting.get(anchors)).length;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void assert_anchor_count (Supplier<Regex> regex, int before, int after)
+        throws Exception
+    {
+        Assert.assertEquals(anchor_count(compiled(regex.get(), false)), before);
+        Assert.assertEquals(anchor_count(compiled(regex.get(), true)), after);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void test_simplified_anchor_count() throws Exception
+    {
+        // zeromore
+        assert_anchor_count(() -> seq(zeromore("a"), "b"), 4, 3);
+        assert_anchor_count(() -> zeromore(zeromore("a")), 4, 3);
+        // choice
+        assert_anchor_count(() -> seq(zeromore(choice("a", "b")), "c"), 4, 3);
+        assert_anchor_count(() -> seq(choice("a", "b"), zeromore("c"), "d"), 5, 4);
+        // concatenation
+        assert_anchor_count(() -> seq("x", zeromore("a"), zeromore("b"), "c"), 7, 5);
+        assert_anchor_count(() -> seq("a", "b", "c"), 4, 4);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a description of the match trees at each position, for all start positions, when
+     * matching {@code regex} against {@code input}.
+     */
+    private static List<Set<String>> trees (Runner runner, Regex regex, String input)
+    {
+        List<Set<String>> trees = new ArrayList<>();
+        runner.add_anywhere(regex);
+
+        for (String item: input.split("")) {
+            runner.advance(item);
+            trees.add(runner.matches().trees().stream()
+                .map(it -> it.start + "-" + it.end + ": " + it.value())
+                .collect(Collectors.toSet()));
+        }
+
+        return trees;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void test_simplified_trees() throws Exception
+    {
+        List<Supplier<Regex>> regexes = Arrays.asList(
+            // lazy
+            () -> seq(zeromore_lazy("a"), zeromore("a")),
+            () -> seq(maybe_lazy("a"), onemore_lazy(choice("a", "b")), maybe("b")),
+            // nested repetitions
+            () -> zeromore(onemore(choice("a", seq("a", "b")))),
+            () -> onemore(seq(maybe("a"), zeromore(zeromore("b")))),
+            // nullable choices
+            () -> zeromore(choice(maybe("a"), "b")),
+            () -> seq(choice(zeromore("a"), maybe("b"), "c"), "c"),
+            // fused PUSH, ACCRETE and DROP chains
+            () -> seq(seq(seq("a", maybe(seq("b")))), seq(seq("c"))),
+            () -> separated(onemore("a"), seq(maybe("b")), 0),
+            () -> separated(zeromore(maybe("a")), maybe("b"), 1));
+
+        List<String> inputs = new ArrayList<>(list(""));
+        for (int i = 0; i < 5; ++i)
+            for (String input: new ArrayList<>(inputs))
+                for (String item: list("a", "b", "c"))
+                    if (input.length() == i)
+                        inputs.add(input + item);
+        inputs.remove("");
+
+        for (Supplier<Regex> regex: regexes)
+            for (String input: inputs) {
+                Regex plain = compiled(regex.get(), false);
+                Regex simplified = compiled(regex.get(), true);
+                Assert.assertEquals(
+                    trees(new Runner(), simplified, input),
+                    trees(new Runner(), plain, input), regex.get() + " " + input);
+                Assert.assertEquals(
+                    trees(Runner.pike(), simplified, input),
+                    trees(Runner.pike(), plain, input), regex.get() + " " + input);
+            }
+    }
+
+    // ---------------------------------------------------------------------------------------------
 }